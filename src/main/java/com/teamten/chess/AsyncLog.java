@@ -0,0 +1,302 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A log file that's written on a background thread, so that logging costs the
+ * caller only a timestamp and a store into a ring buffer. Formatting and I/O
+ * happen on the writer thread, which writes whatever has accumulated in one
+ * batch. When the file grows past a size it's rotated, keeping a few old files
+ * as "name.1", "name.2", and so on.
+ *
+ * Logging never blocks. If the writer falls so far behind that the ring is full,
+ * lines are dropped, and the number dropped is written once there's room.
+ *
+ * Each line is written as "yyyy-MM-dd HH:mm:ss.SSS message".
+ */
+public class AsyncLog {
+    private static final int DEFAULT_CAPACITY = 8*1024;
+    private static final long DEFAULT_MAX_FILE_SIZE = 10*1024*1024;
+    private static final int DEFAULT_BACKUP_COUNT = 3;
+    /**
+     * How long the writer sleeps when there's nothing to write.
+     */
+    private static final long IDLE_NANOS = 10*1000*1000;
+    private final File mFile;
+    private final long mMaxFileSize;
+    private final int mBackupCount;
+    private final PrintStream mEcho;
+    // The ring. A slot whose sequence number equals the tail is free to be
+    // claimed by a logger, and one whose sequence is the head plus one has been
+    // filled and is ready for the writer.
+    private final int mMask;
+    private final long[] mTimes;
+    private final String[] mFormats;
+    private final Object[][] mArgs;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final Thread mWriterThread;
+    private volatile boolean mClosed;
+    // Only used by the writer thread.
+    private long mHead;
+    private OutputStream mOutputStream;
+    private long mFileSize;
+
+    /**
+     * Create a log that replaces the file, with the default size and rotation.
+     */
+    public AsyncLog(File file) throws IOException {
+        this(file, DEFAULT_MAX_FILE_SIZE, DEFAULT_BACKUP_COUNT, null);
+    }
+
+    /**
+     * Create a log that replaces the file, with the default size and rotation, and
+     * that also prints each message (without the timestamp) to the echo stream.
+     */
+    public AsyncLog(File file, PrintStream echo) throws IOException {
+        this(file, DEFAULT_MAX_FILE_SIZE, DEFAULT_BACKUP_COUNT, echo);
+    }
+
+    /**
+     * Create a log that replaces the file.
+     *
+     * @param maxFileSize rotate the file when it gets this large.
+     * @param backupCount number of rotated files to keep.
+     * @param echo if not null, also gets each message (without the timestamp).
+     */
+    public AsyncLog(File file, long maxFileSize, int backupCount, PrintStream echo)
+        throws IOException {
+
+        mFile = file;
+        mMaxFileSize = maxFileSize;
+        mBackupCount = backupCount;
+        mEcho = echo;
+
+        mMask = DEFAULT_CAPACITY - 1;
+        mTimes = new long[DEFAULT_CAPACITY];
+        mFormats = new String[DEFAULT_CAPACITY];
+        mArgs = new Object[DEFAULT_CAPACITY][];
+        mSequences = new AtomicLongArray(DEFAULT_CAPACITY);
+        for (int i = 0; i < DEFAULT_CAPACITY; i++) {
+            mSequences.set(i, i);
+        }
+
+        mOutputStream = new FileOutputStream(mFile);
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override // Runnable
+            public void run() {
+                writeUntilClosed();
+            }
+        }, "log-" + file.getName());
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+
+        // Don't lose the last lines when the program exits.
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override // Thread
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Log a line, formatted later as by String.format(). A newline is added. The
+     * arguments must not change after the call, so they should be immutable
+     * values such as strings and boxed numbers. Safe to call from any thread.
+     */
+    public void log(String format, Object ... args) {
+        long time = System.currentTimeMillis();
+
+        // Claim a slot.
+        long tail = mTail.get();
+        int slot;
+        while (true) {
+            slot = (int) tail & mMask;
+            long sequence = mSequences.get(slot);
+            if (sequence == tail) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    break;
+                }
+                tail = mTail.get();
+            } else if (sequence < tail) {
+                // Full.
+                mDroppedCount.incrementAndGet();
+                return;
+            } else {
+                // Someone else claimed it.
+                tail = mTail.get();
+            }
+        }
+
+        mTimes[slot] = time;
+        mFormats[slot] = format;
+        mArgs[slot] = args;
+        mSequences.set(slot, tail + 1);
+    }
+
+    /**
+     * Write everything logged so far and close the file. Later lines are ignored.
+     */
+    public void close() {
+        mClosed = true;
+        LockSupport.unpark(mWriterThread);
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Main loop of the writer thread.
+     */
+    private void writeUntilClosed() {
+        StringBuilder batch = new StringBuilder();
+        Formatter formatter = new Formatter(batch);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.");
+        long second = -1;
+        String secondPrefix = "";
+        long reportedDroppedCount = 0;
+
+        while (true) {
+            // Read the flag before draining, so nothing logged before close() is missed.
+            boolean closed = mClosed;
+
+            while (true) {
+                int slot = (int) mHead & mMask;
+                if (mSequences.get(slot) != mHead + 1) {
+                    break;
+                }
+
+                long time = mTimes[slot];
+                String format = mFormats[slot];
+                Object[] args = mArgs[slot];
+                mFormats[slot] = null;
+                mArgs[slot] = null;
+                mSequences.set(slot, mHead + DEFAULT_CAPACITY);
+                mHead++;
+
+                // Format the date only once per second.
+                if (time/1000 != second) {
+                    second = time/1000;
+                    secondPrefix = dateFormat.format(new Date(second*1000));
+                }
+                batch.append(secondPrefix);
+                int millis = (int) (time % 1000);
+                batch.append((char) ('0' + millis/100));
+                batch.append((char) ('0' + millis/10 % 10));
+                batch.append((char) ('0' + millis % 10));
+                batch.append(' ');
+                int echoStart = batch.length();
+                try {
+                    formatter.format(format, args);
+                } catch (RuntimeException e) {
+                    batch.append(format).append(" (").append(e).append(')');
+                }
+                batch.append('\n');
+                if (mEcho != null) {
+                    mEcho.print(batch.substring(echoStart));
+                }
+            }
+
+            long droppedCount = mDroppedCount.get();
+            if (droppedCount != reportedDroppedCount) {
+                batch.append(String.format("(%d log lines dropped)%n",
+                            droppedCount - reportedDroppedCount));
+                reportedDroppedCount = droppedCount;
+            }
+
+            if (batch.length() > 0) {
+                write(batch);
+                batch.setLength(0);
+            } else if (closed) {
+                break;
+            } else {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+
+        try {
+            mOutputStream.close();
+        } catch (IOException e) {
+            // Nothing we can do.
+        }
+    }
+
+    /**
+     * Write a batch to the file, then rotate it if it's full.
+     */
+    private void write(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            mOutputStream.write(bytes);
+            mFileSize += bytes.length;
+            if (mFileSize >= mMaxFileSize) {
+                rotate();
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot write to log " + mFile + " (" + e + ")");
+        }
+    }
+
+    /**
+     * Move the file to "name.1" (and that one to "name.2", and so on) and start
+     * a new one.
+     */
+    private void rotate() throws IOException {
+        mOutputStream.close();
+
+        if (mBackupCount > 0) {
+            for (int i = mBackupCount - 1; i >= 1; i--) {
+                File backup = getBackupFile(i);
+                if (backup.exists()) {
+                    File newBackup = getBackupFile(i + 1);
+                    newBackup.delete();
+                    backup.renameTo(newBackup);
+                }
+            }
+            File backup = getBackupFile(1);
+            backup.delete();
+            mFile.renameTo(backup);
+        }
+
+        mOutputStream = new FileOutputStream(mFile);
+        mFileSize = 0;
+    }
+
+    private File getBackupFile(int index) {
+        return new File(mFile.getPath() + "." + index);
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the tables of Bitbases by retrograde analysis. First every position
+ * that's mate, or that wins by capturing or promoting into a smaller ending, is
+ * resolved. Then, level by level, we go backward from the positions resolved in
+ * the previous level with un-moves: a position that can move into a loss is a
+ * win, and a position whose moves all lead to wins for the opponent is a loss.
+ * Whatever is left at the end is a draw. Each pass is split across all cores
+ * with fork/join.
+ *
+ * https://chessprogramming.wikispaces.com/Retrograde+Analysis
+ */
+public class BitbaseGenerator {
+    /**
+     * Value of a position that's legal and not yet resolved. Ends up as a draw.
+     */
+    private static final int UNRESOLVED = Bitbases.DRAW;
+    /**
+     * Number of positions below which a pass isn't split further.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+    private static final Piece[] WHITE_PROMOTIONS = new Piece[] {
+        Piece.WHITE_QUEEN, Piece.WHITE_ROOK, Piece.WHITE_BISHOP, Piece.WHITE_KNIGHT
+    };
+    private static final Piece[] BLACK_PROMOTIONS = new Piece[] {
+        Piece.BLACK_QUEEN, Piece.BLACK_ROOK, Piece.BLACK_BISHOP, Piece.BLACK_KNIGHT
+    };
+    private final Bitbases mBitbases;
+    private final Bitbases.Ending mEnding;
+    /**
+     * Value (two bits) of each position. Resolved positions also have the level
+     * they were resolved at, plus one, in the higher bits.
+     */
+    private final AtomicIntegerArray mState;
+    private final AtomicLong mChangeCount = new AtomicLong();
+
+    /**
+     * Create a generator for an ending. The bitbases must already have the tables
+     * of all endings that this one can capture or promote into.
+     */
+    private BitbaseGenerator(Bitbases bitbases, Bitbases.Ending ending) {
+        mBitbases = bitbases;
+        mEnding = ending;
+        mState = new AtomicIntegerArray(ending.mEntryCount);
+    }
+
+    /**
+     * Generate all bitbases and write them to the file. Reports the time and size
+     * of each table to standard error, since standard output may be a UCI channel.
+     * The file is written under a temporary name and then renamed, so it's never
+     * seen half-written, even if we're killed.
+     */
+    public static void generate(File file) throws IOException {
+        long beforeTime = System.currentTimeMillis();
+        Bitbases bitbases = new Bitbases();
+        List<byte[]> tables = new ArrayList<byte[]>();
+
+        for (Bitbases.Ending ending : Bitbases.ENDINGS) {
+            long tableBeforeTime = System.currentTimeMillis();
+            BitbaseGenerator generator = new BitbaseGenerator(bitbases, ending);
+            int levels = generator.resolve();
+            byte[] table = generator.pack();
+            tables.add(table);
+            bitbases.addTable(ending.mName, ByteBuffer.wrap(table));
+
+            long[] counts = new long[4];
+            for (int index = 0; index < ending.mEntryCount; index++) {
+                counts[Bitbases.getValue(ByteBuffer.wrap(table), index)]++;
+            }
+            System.err.printf("%s: %,d positions (%,d wins, %,d draws, %,d losses), "
+                    + "%d levels, %,d bytes, %d ms%n",
+                    ending.mName, ending.mEntryCount - counts[Bitbases.ILLEGAL],
+                    counts[Bitbases.WIN], counts[Bitbases.DRAW], counts[Bitbases.LOSS],
+                    levels, table.length, System.currentTimeMillis() - tableBeforeTime);
+        }
+
+        // Same directory, so that the rename can be atomic.
+        File tempFile = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        tempFile.deleteOnExit();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(tempFile)))) {
+
+                out.writeInt(Bitbases.MAGIC);
+                out.writeInt(tables.size());
+                for (int i = 0; i < tables.size(); i++) {
+                    out.writeUTF(Bitbases.ENDINGS[i].mName);
+                    out.writeInt(tables.get(i).length);
+                    out.write(tables.get(i));
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // Nothing to delete if it was moved.
+            tempFile.delete();
+        }
+
+        System.err.printf("Wrote bitbases to %s: %,d bytes, %d ms on %d threads%n",
+                file, file.length(), System.currentTimeMillis() - beforeTime,
+                ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    /**
+     * Generate the bitbases into the file named on the command line.
+     */
+    public static void main(String[] args) throws IOException {
+        generate(new File(args.length > 0 ? args[0] : "bitbases.bin"));
+    }
+
+    /**
+     * Resolve all positions. Returns the number of levels.
+     */
+    private int resolve() {
+        forEachPosition(new PositionAction() {
+            @Override // PositionAction
+            public void run(int index, Scratch scratch) {
+                initialize(index, scratch);
+            }
+        });
+
+        int level = 0;
+        while (true) {
+            mChangeCount.set(0);
+            final int currentLevel = level;
+            forEachPosition(new PositionAction() {
+                @Override // PositionAction
+                public void run(int index, Scratch scratch) {
+                    if (mState.get(index) >>> 2 == currentLevel + 1) {
+                        propagate(index, currentLevel, scratch);
+                    }
+                }
+            });
+            level++;
+            if (mChangeCount.get() == 0) {
+                break;
+            }
+        }
+
+        return level;
+    }
+
+    /**
+     * Mark illegal positions, and resolve positions that don't depend on others
+     * in this table.
+     */
+    private void initialize(int index, Scratch scratch) {
+        int side = Bitbases.decode(mEnding, index, scratch.mSquares);
+
+        if (!isLegal(scratch.mSquares, side)) {
+            mState.set(index, Bitbases.ILLEGAL);
+        } else {
+            int value = examine(scratch.mSquares, side, scratch);
+            if (value == Bitbases.WIN || value == Bitbases.LOSS) {
+                mState.compareAndSet(index, UNRESOLVED, value | 1 << 2);
+            }
+        }
+    }
+
+    /**
+     * Look at the predecessors of a position resolved at level.
+     */
+    private void propagate(int index, int level, Scratch scratch) {
+        int side = Bitbases.decode(mEnding, index, scratch.mSquares);
+        boolean isLoss = (mState.get(index) & 3) == Bitbases.LOSS;
+        int mover = Side.getOtherSide(side);
+        int[] squares = scratch.mSquares;
+        long occupied = getOccupied(squares, squares.length);
+
+        for (int i = 0; i < squares.length; i++) {
+            Piece piece = mEnding.mPieces[i];
+            if (piece.getSide() != mover) {
+                continue;
+            }
+            int to = squares[i];
+
+            long origins;
+            if (piece.getPieceType() == PieceType.PAWN) {
+                origins = getPawnUnmoves(to, mover, occupied);
+            } else {
+                origins = Board.getAttacks(piece, to, occupied) & ~occupied;
+            }
+
+            while (origins != 0) {
+                int from = Long.numberOfTrailingZeros(origins);
+                origins &= origins - 1;
+
+                int[] predecessor = scratch.mPredecessor;
+                System.arraycopy(squares, 0, predecessor, 0, squares.length);
+                predecessor[i] = from;
+                Bitbases.canonicalize(mEnding, predecessor);
+                resolvePredecessor(Bitbases.getCanonicalIndex(mEnding, predecessor, mover),
+                        predecessor, mover, isLoss, level, scratch);
+
+                // The mirror image of this position is stored separately.
+                if (Bitbases.isOnDiagonal(mEnding, predecessor)) {
+                    Bitbases.mirrorDiagonal(predecessor);
+                    resolvePredecessor(Bitbases.getCanonicalIndex(mEnding, predecessor, mover),
+                            predecessor, mover, isLoss, level, scratch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolve a position that can move into one that was resolved at level.
+     */
+    private void resolvePredecessor(int index, int[] squares, int side, boolean successorIsLoss,
+            int level, Scratch scratch) {
+
+        if (mState.get(index) != UNRESOLVED) {
+            // Already resolved, or illegal.
+            return;
+        }
+
+        int value;
+        if (successorIsLoss) {
+            // We can move into a loss for the opponent.
+            value = Bitbases.WIN;
+        } else {
+            // See if all our moves now lose.
+            value = examine(squares, side, scratch);
+        }
+
+        if ((value == Bitbases.WIN || value == Bitbases.LOSS)
+                && mState.compareAndSet(index, UNRESOLVED, value | (level + 2) << 2)) {
+
+            mChangeCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Look at all legal moves of the position. Returns WIN if any move leads to a
+     * loss for the opponent, LOSS if all moves lead to wins for the opponent (or
+     * it's mate), DRAW if it's stalemate, and UNRESOLVED otherwise.
+     */
+    private int examine(int[] squares, int side, Scratch scratch) {
+        int otherSide = Side.getOtherSide(side);
+        int count = squares.length;
+        long occupied = getOccupied(squares, count);
+        long own = 0;
+        for (int i = 0; i < count; i++) {
+            if (mEnding.mPieces[i].getSide() == side) {
+                own |= 1L << squares[i];
+            }
+        }
+
+        int legalMoves = 0;
+        boolean allLose = true;
+        for (int i = 0; i < count; i++) {
+            Piece piece = mEnding.mPieces[i];
+            if (piece.getSide() != side) {
+                continue;
+            }
+            int from = squares[i];
+
+            long targets;
+            if (piece.getPieceType() == PieceType.PAWN) {
+                targets = getPawnMoves(from, side, occupied, occupied & ~own);
+            } else {
+                targets = Board.getAttacks(piece, from, occupied) & ~own;
+            }
+
+            while (targets != 0) {
+                int to = Long.numberOfTrailingZeros(targets);
+                targets &= targets - 1;
+
+                // Build the position after the move, without any captured piece.
+                Piece[] pieces = scratch.mPieces;
+                int[] newSquares = scratch.mNewSquares;
+                int newCount = 0;
+                int movedIndex = -1;
+                boolean capture = false;
+                for (int j = 0; j < count; j++) {
+                    if (j == i) {
+                        movedIndex = newCount;
+                        pieces[newCount] = piece;
+                        newSquares[newCount++] = to;
+                    } else if (squares[j] == to) {
+                        capture = true;
+                    } else {
+                        pieces[newCount] = mEnding.mPieces[j];
+                        newSquares[newCount++] = squares[j];
+                    }
+                }
+
+                boolean promotion = piece.getPieceType() == PieceType.PAWN
+                    && (Board.getRank(to) == 1 || Board.getRank(to) == Board.SIZE);
+                Piece[] promotions = scratch.mNoPromotion;
+                if (promotion) {
+                    promotions = side == Side.WHITE ? WHITE_PROMOTIONS : BLACK_PROMOTIONS;
+                } else {
+                    promotions[0] = piece;
+                }
+
+                for (Piece newPiece : promotions) {
+                    pieces[movedIndex] = newPiece;
+                    // Kings are never captured, so they're still first.
+                    if (isAttacked(newSquares[side == Side.WHITE ? 0 : 1],
+                                otherSide, pieces, newSquares, newCount)) {
+                        // Moving into check.
+                        continue;
+                    }
+
+                    int successorValue;
+                    if (capture || promotion) {
+                        // Into another table.
+                        successorValue = mBitbases.probe(pieces, newSquares, newCount, otherSide);
+                    } else {
+                        int[] successor = scratch.mSuccessor;
+                        System.arraycopy(newSquares, 0, successor, 0, count);
+                        successorValue = mState.get(Bitbases.getIndex(mEnding, successor, otherSide)) & 3;
+                    }
+
+                    legalMoves++;
+                    if (successorValue == Bitbases.LOSS) {
+                        return Bitbases.WIN;
+                    }
+                    if (successorValue != Bitbases.WIN) {
+                        allLose = false;
+                    }
+                }
+            }
+        }
+
+        if (legalMoves == 0) {
+            int king = squares[side == Side.WHITE ? 0 : 1];
+            return isAttacked(king, otherSide, mEnding.mPieces, squares, count)
+                ? Bitbases.LOSS : Bitbases.DRAW;
+        }
+
+        return allLose ? Bitbases.LOSS : UNRESOLVED;
+    }
+
+    /**
+     * Whether the decoded position can happen with side to move.
+     */
+    private boolean isLegal(int[] squares, int side) {
+        long occupied = getOccupied(squares, squares.length);
+        if (Long.bitCount(occupied) != squares.length) {
+            // Two pieces on one square.
+            return false;
+        }
+
+        for (int i = 0; i < squares.length; i++) {
+            if (mEnding.mPieces[i].getPieceType() == PieceType.PAWN) {
+                int rank = Board.getRank(squares[i]);
+                if (rank == 1 || rank == Board.SIZE) {
+                    return false;
+                }
+            }
+        }
+
+        // Side that just moved can't be in check.
+        int otherSide = Side.getOtherSide(side);
+        int king = squares[otherSide == Side.WHITE ? 0 : 1];
+
+        return !isAttacked(king, side, mEnding.mPieces, squares, squares.length);
+    }
+
+    /**
+     * Whether any piece of attackingSide attacks the index.
+     */
+    private static boolean isAttacked(int index, int attackingSide, Piece[] pieces, int[] squares,
+            int count) {
+
+        long occupied = getOccupied(squares, count);
+        for (int i = 0; i < count; i++) {
+            Piece piece = pieces[i];
+            if (piece.getSide() == attackingSide
+                    && (Board.getAttacks(piece, squares[i], occupied) & 1L << index) != 0) {
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static long getOccupied(int[] squares, int count) {
+        long occupied = 0;
+        for (int i = 0; i < count; i++) {
+            occupied |= 1L << squares[i];
+        }
+
+        return occupied;
+    }
+
+    /**
+     * Squares a pawn can move to, including captures of enemy pieces.
+     */
+    private static long getPawnMoves(int from, int side, long occupied, long enemies) {
+        int rankDelta = side == Side.WHITE ? 1 : -1;
+        long moves = Board.getAttacks(side == Side.WHITE ? Piece.WHITE_PAWN : Piece.BLACK_PAWN,
+                from, occupied) & enemies;
+
+        int oneStep = Board.getRelativeIndex(from, 0, rankDelta);
+        if (oneStep != -1 && (occupied & 1L << oneStep) == 0) {
+            moves |= 1L << oneStep;
+
+            int startRank = side == Side.WHITE ? 2 : Board.SIZE - 1;
+            if (Board.getRank(from) == startRank) {
+                int twoSteps = Board.getRelativeIndex(from, 0, 2*rankDelta);
+                if ((occupied & 1L << twoSteps) == 0) {
+                    moves |= 1L << twoSteps;
+                }
+            }
+        }
+
+        return moves;
+    }
+
+    /**
+     * Squares a pawn could have come from, without capturing, to get to the index.
+     */
+    private static long getPawnUnmoves(int to, int side, long occupied) {
+        int rankDelta = side == Side.WHITE ? 1 : -1;
+        int startRank = side == Side.WHITE ? 2 : Board.SIZE - 1;
+        long origins = 0;
+
+        int oneStep = Board.getRelativeIndex(to, 0, -rankDelta);
+        if (oneStep != -1 && (occupied & 1L << oneStep) == 0) {
+            int rank = Board.getRank(oneStep);
+            if (rank != 1 && rank != Board.SIZE) {
+                origins |= 1L << oneStep;
+            }
+
+            int twoSteps = Board.getRelativeIndex(to, 0, -2*rankDelta);
+            if (twoSteps != -1 && Board.getRank(twoSteps) == startRank
+                    && (occupied & 1L << twoSteps) == 0) {
+
+                origins |= 1L << twoSteps;
+            }
+        }
+
+        return origins;
+    }
+
+    /**
+     * Pack the values into two bits per position.
+     */
+    private byte[] pack() {
+        byte[] table = new byte[mEnding.getTableSize()];
+
+        for (int index = 0; index < mEnding.mEntryCount; index++) {
+            table[index >>> 2] |= (mState.get(index) & 3) << ((index & 3)*2);
+        }
+
+        return table;
+    }
+
+    /**
+     * Run the action on every position, in parallel.
+     */
+    private void forEachPosition(PositionAction action) {
+        ForkJoinPool.commonPool().invoke(new RangeTask(action, 0, mEnding.mEntryCount));
+    }
+
+    /**
+     * Work done on one position by a pass.
+     */
+    private interface PositionAction {
+        void run(int index, Scratch scratch);
+    }
+
+    /**
+     * Arrays reused by one thread, so that we don't allocate per position.
+     */
+    private class Scratch {
+        final int[] mSquares = new int[mEnding.mPieces.length];
+        final int[] mPredecessor = new int[mEnding.mPieces.length];
+        final int[] mSuccessor = new int[mEnding.mPieces.length];
+        final int[] mNewSquares = new int[mEnding.mPieces.length];
+        final Piece[] mPieces = new Piece[mEnding.mPieces.length];
+        final Piece[] mNoPromotion = new Piece[1];
+    }
+
+    /**
+     * Runs an action on a range of positions, splitting the range in half until
+     * it's small.
+     */
+    @SuppressWarnings("serial") // Never serialized.
+    private class RangeTask extends RecursiveAction {
+        private final PositionAction mAction;
+        private final int mBegin;
+        private final int mEnd;
+
+        RangeTask(PositionAction action, int begin, int end) {
+            mAction = action;
+            mBegin = begin;
+            mEnd = end;
+        }
+
+        @Override // RecursiveAction
+        protected void compute() {
+            if (mEnd - mBegin <= PARALLEL_THRESHOLD) {
+                Scratch scratch = new Scratch();
+                for (int index = mBegin; index < mEnd; index++) {
+                    mAction.run(index, scratch);
+                }
+            } else {
+                int middle = (mBegin + mEnd) >>> 1;
+                invokeAll(new RangeTask(mAction, mBegin, middle),
+                        new RangeTask(mAction, middle, mEnd));
+            }
+        }
+    }
+}
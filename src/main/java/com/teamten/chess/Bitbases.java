@@ -0,0 +1,508 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Win/draw/loss tables for endings with three or four pieces, generated by
+ * BitbaseGenerator. Each position takes two bits, from the point of view of
+ * the side to move. The tables are stored in one file that's memory-mapped,
+ * so loading is instant and the tables don't take heap space.
+ *
+ * Tables are stored with the extra material on white's side. Positions with
+ * the extra material on black's side are flipped before probing. Pawnless
+ * positions are also reflected so that the white king is in the a1-d1-d4
+ * triangle, and positions with pawns so that the white king is on files a to d.
+ *
+ * File format: a magic number, the number of tables, and then for each table
+ * its name (as in DataOutputStream.writeUTF()), its length in bytes, and its data.
+ */
+public class Bitbases {
+    public static final int DRAW = 0;
+    public static final int WIN = 1;
+    public static final int LOSS = 2;
+    public static final int ILLEGAL = 3;
+    /**
+     * Returned by probe() when we don't have a table for the material.
+     */
+    public static final int UNKNOWN = -1;
+    static final int MAGIC = 0x42425331;
+    private static final int MAX_PIECES = 4;
+    /**
+     * Order of pieces in an ending's name.
+     */
+    private static final String PIECE_ORDER = "QRBNP";
+    /**
+     * Slot of each white king square in the a1-d1-d4 triangle, or -1.
+     */
+    private static final int[] TRIANGLE_SLOT = new int[Board.NUM_SQUARES];
+    private static final int[] TRIANGLE_SQUARE = new int[10];
+    /**
+     * Slot of each white king square on files a to d, or -1.
+     */
+    private static final int[] HALF_BOARD_SLOT = new int[Board.NUM_SQUARES];
+    private static final int[] HALF_BOARD_SQUARE = new int[Board.NUM_SQUARES/2];
+
+    static {
+        int triangleCount = 0;
+        int halfBoardCount = 0;
+        for (int index = 0; index < Board.NUM_SQUARES; index++) {
+            int file = getFile(index);
+            int rank = getRank(index);
+
+            TRIANGLE_SLOT[index] = -1;
+            if (file < 4 && rank <= file) {
+                TRIANGLE_SLOT[index] = triangleCount;
+                TRIANGLE_SQUARE[triangleCount++] = index;
+            }
+
+            HALF_BOARD_SLOT[index] = -1;
+            if (file < 4) {
+                HALF_BOARD_SLOT[index] = halfBoardCount;
+                HALF_BOARD_SQUARE[halfBoardCount++] = index;
+            }
+        }
+    }
+
+    /**
+     * Endings we generate, in the order they must be generated, since each can
+     * only refer to tables before it. Must be after the slot tables above.
+     */
+    static final Ending[] ENDINGS = new Ending[] {
+        new Ending("KQK", Piece.WHITE_QUEEN),
+        new Ending("KRK", Piece.WHITE_ROOK),
+        new Ending("KPK", Piece.WHITE_PAWN),
+        new Ending("KBNK", Piece.WHITE_BISHOP, Piece.WHITE_KNIGHT),
+        new Ending("KQKR", Piece.WHITE_QUEEN, Piece.BLACK_ROOK),
+    };
+
+    /**
+     * Replaced all at once when tables are generated in the background.
+     */
+    private volatile Map<String,ByteBuffer> mTables = new HashMap<String,ByteBuffer>();
+
+    Bitbases() {
+        // Tables are added by load() or by the generator.
+    }
+
+    /**
+     * Load the bitbases from the file. If the file is missing or can't be used,
+     * the bitbases are generated into it on a background thread, which takes
+     * about a minute. Until then the returned bitbases have no tables and
+     * every probe is UNKNOWN, so a UCI engine can answer the GUI right away.
+     */
+    public static Bitbases loadOrGenerate(final File file) {
+        if (file.exists()) {
+            try {
+                return load(file);
+            } catch (IOException e) {
+                System.err.println("Regenerating bitbases (" + e.getMessage() + ")");
+            }
+        }
+
+        final Bitbases bitbases = new Bitbases();
+        Thread thread = new Thread(new Runnable() {
+            @Override // Runnable
+            public void run() {
+                try {
+                    BitbaseGenerator.generate(file);
+                    bitbases.mTables = load(file).mTables;
+                } catch (IOException e) {
+                    System.err.println("Playing without bitbases (" + e + ")");
+                }
+            }
+        }, "bitbases");
+        thread.setDaemon(true);
+        thread.start();
+
+        return bitbases;
+    }
+
+    /**
+     * Memory-map the bitbases in the file. The file must have every table of
+     * ENDINGS at its proper size.
+     *
+     * @throws IOException if the file can't be read, isn't a bitbase file, or is
+     * truncated.
+     */
+    public static Bitbases load(File file) throws IOException {
+        Bitbases bitbases = new Bitbases();
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            checkRemaining(buffer, 8, file);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a bitbase file: " + file);
+            }
+            int tableCount = buffer.getInt();
+            if (tableCount != ENDINGS.length) {
+                throw new IOException("Expected " + ENDINGS.length + " tables but found "
+                        + tableCount + " in " + file);
+            }
+            for (int i = 0; i < tableCount; i++) {
+                checkRemaining(buffer, 2, file);
+                byte[] nameBytes = new byte[buffer.getShort() & 0xFFFF];
+                checkRemaining(buffer, nameBytes.length + 4, file);
+                buffer.get(nameBytes);
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+                Ending ending = getEnding(name);
+                if (ending == null) {
+                    throw new IOException("Unknown table " + name + " in " + file);
+                }
+                int length = buffer.getInt();
+                if (length != ending.getTableSize()) {
+                    throw new IOException("Table " + name + " is " + length + " bytes instead of "
+                            + ending.getTableSize() + " in " + file);
+                }
+                checkRemaining(buffer, length, file);
+
+                ByteBuffer table = buffer.slice();
+                table.limit(length);
+                bitbases.addTable(name, table);
+                buffer.position(buffer.position() + length);
+            }
+        }
+
+        return bitbases;
+    }
+
+    /**
+     * Make sure the buffer has at least count more bytes.
+     *
+     * @throws IOException if it doesn't.
+     */
+    private static void checkRemaining(ByteBuffer buffer, int count, File file) throws IOException {
+        if (buffer.remaining() < count) {
+            throw new IOException("Bitbase file is truncated: " + file);
+        }
+    }
+
+    /**
+     * Add a table, two bits per position, four positions per byte.
+     */
+    void addTable(String name, ByteBuffer table) {
+        mTables.put(name, table);
+    }
+
+    /**
+     * Return the number of tables loaded.
+     */
+    public int getTableCount() {
+        return mTables.size();
+    }
+
+    /**
+     * Return WIN, DRAW, or LOSS for the side to move, or UNKNOWN if the board
+     * has material we don't have a table for. The side to move is passed in
+     * since the search doesn't always keep the board's side up to date.
+     */
+    public int probe(Board board, int side) {
+        long occupied = board.getOccupied(Side.WHITE) | board.getOccupied(Side.BLACK);
+        int count = Long.bitCount(occupied);
+        if (count > MAX_PIECES || board.getKingIndex(Side.WHITE) == -1
+                || board.getKingIndex(Side.BLACK) == -1) {
+
+            return UNKNOWN;
+        }
+
+        Piece[] pieces = new Piece[count];
+        int[] squares = new int[count];
+        for (int i = 0; i < count; i++) {
+            int index = Long.numberOfTrailingZeros(occupied);
+            occupied &= occupied - 1;
+            pieces[i] = board.getPiece(index);
+            squares[i] = index;
+        }
+
+        return probe(pieces, squares, count, side);
+    }
+
+    /**
+     * Return WIN, DRAW, LOSS, or ILLEGAL for the side to move, or UNKNOWN if
+     * we don't have a table for the material. The first count entries of the
+     * arrays are the pieces (including kings) and their board indices.
+     */
+    public int probe(Piece[] pieces, int[] squares, int count, int side) {
+        StringBuilder white = new StringBuilder();
+        StringBuilder black = new StringBuilder();
+        boolean hasPawns = false;
+        int whiteMinors = 0;
+        int blackMinors = 0;
+        for (int i = 0; i < count; i++) {
+            Piece piece = pieces[i];
+            PieceType pieceType = piece.getPieceType();
+            if (pieceType == PieceType.KING) {
+                continue;
+            }
+            char ch = Character.toUpperCase(pieceType.getCharacter());
+            insertInOrder(piece.getSide() == Side.WHITE ? white : black, ch);
+            if (pieceType == PieceType.BISHOP || pieceType == PieceType.KNIGHT) {
+                if (piece.getSide() == Side.WHITE) {
+                    whiteMinors++;
+                } else {
+                    blackMinors++;
+                }
+            } else {
+                // Pawns and major pieces.
+                hasPawns = true;
+            }
+        }
+
+        // Not enough material to mate: KK, KBK, KNK.
+        if (!hasPawns && white.length() == whiteMinors && black.length() == blackMinors
+                && whiteMinors + blackMinors <= 1) {
+
+            return DRAW;
+        }
+
+        boolean flip = false;
+        ByteBuffer table = mTables.get("K" + white + "K" + black);
+        Ending ending = getEnding("K" + white + "K" + black);
+        if (table == null) {
+            flip = true;
+            table = mTables.get("K" + black + "K" + white);
+            ending = getEnding("K" + black + "K" + white);
+        }
+        if (table == null || ending == null) {
+            return UNKNOWN;
+        }
+
+        // Put the squares in the order of the ending's pieces, flipping colors
+        // and the board if the extra material is black's.
+        int[] endingSquares = new int[ending.mPieces.length];
+        boolean[] used = new boolean[count];
+        for (int i = 0; i < ending.mPieces.length; i++) {
+            Piece wanted = ending.mPieces[i];
+            for (int j = 0; j < count; j++) {
+                Piece piece = pieces[j];
+                int pieceSide = flip ? Side.getOtherSide(piece.getSide()) : piece.getSide();
+                if (!used[j] && piece.getPieceType() == wanted.getPieceType()
+                        && pieceSide == wanted.getSide()) {
+
+                    used[j] = true;
+                    endingSquares[i] = flip ? flipRanks(squares[j]) : squares[j];
+                    break;
+                }
+            }
+        }
+
+        int index = getIndex(ending, endingSquares, flip ? Side.getOtherSide(side) : side);
+
+        return getValue(table, index);
+    }
+
+    /**
+     * Return the two-bit value at index in the table.
+     */
+    static int getValue(ByteBuffer table, int index) {
+        return (table.get(index >>> 2) >>> ((index & 3)*2)) & 3;
+    }
+
+    /**
+     * Return the ending with this name, or null.
+     */
+    static Ending getEnding(String name) {
+        for (Ending ending : ENDINGS) {
+            if (ending.mName.equals(name)) {
+                return ending;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reflect the squares (in the order of the ending's pieces) into the canonical
+     * part of the board, based on the white king.
+     */
+    static void canonicalize(Ending ending, int[] squares) {
+        int whiteKing = squares[0];
+        boolean flipFile = getFile(whiteKing) >= 4;
+        boolean flipRank = false;
+        boolean swap = false;
+        if (!ending.mHasPawns) {
+            flipRank = getRank(whiteKing) >= 4;
+            int file = flipFile ? 7 - getFile(whiteKing) : getFile(whiteKing);
+            int rank = flipRank ? 7 - getRank(whiteKing) : getRank(whiteKing);
+            swap = rank > file;
+        }
+
+        for (int i = 0; i < squares.length; i++) {
+            squares[i] = transform(squares[i], flipFile, flipRank, swap);
+        }
+    }
+
+    /**
+     * Return whether the white king is on the a1-h8 diagonal of canonical squares.
+     * Those positions have a mirror image that's also canonical.
+     */
+    static boolean isOnDiagonal(Ending ending, int[] squares) {
+        return !ending.mHasPawns && getFile(squares[0]) == getRank(squares[0]);
+    }
+
+    /**
+     * Reflect the squares across the a1-h8 diagonal.
+     */
+    static void mirrorDiagonal(int[] squares) {
+        for (int i = 0; i < squares.length; i++) {
+            squares[i] = transform(squares[i], false, false, true);
+        }
+    }
+
+    /**
+     * Return the index of the position, after making the squares canonical.
+     */
+    static int getIndex(Ending ending, int[] squares, int side) {
+        canonicalize(ending, squares);
+
+        return getCanonicalIndex(ending, squares, side);
+    }
+
+    /**
+     * Return the index of the position, which must already be canonical.
+     */
+    static int getCanonicalIndex(Ending ending, int[] squares, int side) {
+        int index = ending.mHasPawns ? HALF_BOARD_SLOT[squares[0]] : TRIANGLE_SLOT[squares[0]];
+        for (int i = 1; i < squares.length; i++) {
+            index = index*Board.NUM_SQUARES + squares[i];
+        }
+
+        return index*2 + side;
+    }
+
+    /**
+     * Fill the squares of the position at the index, and return the side to move.
+     */
+    static int decode(Ending ending, int index, int[] squares) {
+        int side = index & 1;
+        index >>>= 1;
+        for (int i = squares.length - 1; i >= 1; i--) {
+            squares[i] = index % Board.NUM_SQUARES;
+            index /= Board.NUM_SQUARES;
+        }
+        squares[0] = ending.mHasPawns ? HALF_BOARD_SQUARE[index] : TRIANGLE_SQUARE[index];
+
+        return side;
+    }
+
+    /**
+     * Zero-based file, 0 for the a file.
+     */
+    private static int getFile(int index) {
+        return index % Board.SIZE;
+    }
+
+    /**
+     * Zero-based rank, 0 for the first rank.
+     */
+    private static int getRank(int index) {
+        return Board.SIZE - 1 - index/Board.SIZE;
+    }
+
+    private static int transform(int index, boolean flipFile, boolean flipRank, boolean swap) {
+        int file = getFile(index);
+        int rank = getRank(index);
+        if (flipFile) {
+            file = 7 - file;
+        }
+        if (flipRank) {
+            rank = 7 - rank;
+        }
+        if (swap) {
+            int tmp = file;
+            file = rank;
+            rank = tmp;
+        }
+
+        return (Board.SIZE - 1 - rank)*Board.SIZE + file;
+    }
+
+    /**
+     * Mirror the index between white's and black's side of the board.
+     */
+    private static int flipRanks(int index) {
+        return index ^ (Board.NUM_SQUARES - Board.SIZE);
+    }
+
+    /**
+     * Insert the piece letter keeping the order of PIECE_ORDER.
+     */
+    private static void insertInOrder(StringBuilder builder, char ch) {
+        int order = PIECE_ORDER.indexOf(ch);
+        int i = 0;
+        while (i < builder.length() && PIECE_ORDER.indexOf(builder.charAt(i)) <= order) {
+            i++;
+        }
+        builder.insert(i, ch);
+    }
+
+    /**
+     * Material of one table, white having the extra material.
+     */
+    static class Ending {
+        final String mName;
+        /**
+         * White king, black king, then the other pieces.
+         */
+        final Piece[] mPieces;
+        final boolean mHasPawns;
+        final int mEntryCount;
+
+        Ending(String name, Piece ... pieces) {
+            mName = name;
+            mPieces = new Piece[pieces.length + 2];
+            mPieces[0] = Piece.WHITE_KING;
+            mPieces[1] = Piece.BLACK_KING;
+            System.arraycopy(pieces, 0, mPieces, 2, pieces.length);
+
+            boolean hasPawns = false;
+            for (Piece piece : pieces) {
+                if (piece.getPieceType() == PieceType.PAWN) {
+                    hasPawns = true;
+                }
+            }
+            mHasPawns = hasPawns;
+
+            int entryCount = (hasPawns ? HALF_BOARD_SQUARE.length : TRIANGLE_SQUARE.length)*2;
+            for (int i = 1; i < mPieces.length; i++) {
+                entryCount *= Board.NUM_SQUARES;
+            }
+            mEntryCount = entryCount;
+        }
+
+        /**
+         * Size of the table in bytes, four positions per byte.
+         */
+        int getTableSize() {
+            return (mEntryCount + 3)/4;
+        }
+    }
+}
@@ -43,7 +43,69 @@ public class Board {
      */
     private static final int[] KNIGHT_FILE_DELTAS = new int[] { 1, 2, 2, 1, -1, -2, -2, -1 };
     private static final int[] KNIGHT_RANK_DELTAS = new int[] { 2, 1, -1, -2, -2, -1, 1, 2 };
+    /**
+     * Squares attacked by a knight or king on each square. Bit N is board index N.
+     */
+    private static final long[] KNIGHT_ATTACKS = new long[NUM_SQUARES];
+    private static final long[] KING_ATTACKS = new long[NUM_SQUARES];
+    /**
+     * Squares attacked by a pawn of each side on each square.
+     */
+    private static final long[][] PAWN_ATTACKS = new long[2][NUM_SQUARES];
+    /**
+     * Squares from each square to the edge of the board, in each of the queen
+     * directions, not including the square itself.
+     */
+    private static final long[][] RAYS = new long[QUEEN_FILE_DELTAS.length][NUM_SQUARES];
+    /**
+     * Whether each queen direction goes toward higher indices.
+     */
+    private static final boolean[] RAY_IS_INCREASING = new boolean[QUEEN_FILE_DELTAS.length];
+    private static final long FILE_A = 0x0101010101010101L;
+    private static final long FILE_H = FILE_A << (SIZE - 1);
     private static final Random RANDOM = new Random();
+    /**
+     * Whether to check the incrementally-updated evaluation against a full
+     * recompute every time it's used. Very slow, for debugging only.
+     */
+    private static final boolean VERIFY_EVALUATION = false;
+
+    static {
+        for (int index = 0; index < NUM_SQUARES; index++) {
+            for (int i = 0; i < KNIGHT_FILE_DELTAS.length; i++) {
+                int otherIndex = getRelativeIndex(index, KNIGHT_FILE_DELTAS[i], KNIGHT_RANK_DELTAS[i]);
+                if (otherIndex != -1) {
+                    KNIGHT_ATTACKS[index] |= 1L << otherIndex;
+                }
+            }
+
+            for (int i = 0; i < QUEEN_FILE_DELTAS.length; i++) {
+                int fileDelta = QUEEN_FILE_DELTAS[i];
+                int rankDelta = QUEEN_RANK_DELTAS[i];
+
+                int otherIndex = getRelativeIndex(index, fileDelta, rankDelta);
+                if (otherIndex != -1) {
+                    KING_ATTACKS[index] |= 1L << otherIndex;
+                    if (fileDelta != 0 && rankDelta != 0) {
+                        PAWN_ATTACKS[rankDelta == 1 ? Side.WHITE : Side.BLACK][index] |= 1L << otherIndex;
+                    }
+                }
+
+                for (int distance = 1; distance < SIZE; distance++) {
+                    otherIndex = getRelativeIndex(index, distance*fileDelta, distance*rankDelta);
+                    if (otherIndex == -1) {
+                        break;
+                    }
+                    RAYS[i][index] |= 1L << otherIndex;
+                }
+            }
+        }
+
+        for (int i = 0; i < QUEEN_FILE_DELTAS.length; i++) {
+            // Ranks go down as the index goes up.
+            RAY_IS_INCREASING[i] = QUEEN_FILE_DELTAS[i] - QUEEN_RANK_DELTAS[i]*SIZE > 0;
+        }
+    }
 
     /**
      * SIZE*SIZE array, with 0 being black's queen-side rook, 1 black's
@@ -56,6 +118,33 @@ public class Board {
      */
     private final int[] mKingIndex = new int[] { -1, -1 };
 
+    /**
+     * Squares occupied by each piece, indexed by Piece.getIndex(). Bit N is board index N.
+     */
+    private final long[] mPieceBits = new long[Piece.NUM_PIECES];
+
+    /**
+     * Squares occupied by each side.
+     */
+    private final long[] mOccupied = new long[2];
+
+    /**
+     * Number of each piece on the board, indexed by Piece.getIndex().
+     */
+    private final int[] mPieceCounts = new int[Piece.NUM_PIECES];
+
+    /**
+     * Index into the MaterialTable, kept up to date from the piece counts. Only
+     * valid if mMaterialOverflow is zero.
+     */
+    private int mMaterialKey;
+
+    /**
+     * Number of pieces (of all kinds) beyond what fits in the material key,
+     * such as a second queen.
+     */
+    private int mMaterialOverflow;
+
     /**
      * Whose turn it is.
      */
@@ -66,6 +155,37 @@ public class Board {
      */
     private final int[] mNumPieces = new int[2];
 
+    /**
+     * Total value in centipawns of each side's pieces, not counting the king.
+     */
+    private final int[] mMaterial = new int[2];
+
+    /**
+     * Total middle game position bonus in centipawns of each side's pieces.
+     */
+    private final int[] mMiddleGamePositionBonus = new int[2];
+
+    /**
+     * Total end game position bonus in centipawns of each side's pieces.
+     */
+    private final int[] mEndGamePositionBonus = new int[2];
+
+    /**
+     * Game phase, from PieceType.MAX_PHASE at the start of the game down to 0 with
+     * only kings and pawns. Can exceed MAX_PHASE after promotions.
+     */
+    private int mPhase;
+
+    /**
+     * Zobrist hash of the position, including the side to move.
+     */
+    private long mHash;
+
+    /**
+     * Zobrist hash of the pawns only.
+     */
+    private long mPawnHash;
+
     /**
      * Parse FEN notation.
      *
@@ -102,9 +222,9 @@ public class Board {
         }
 
         if (fields[1].equals("w")) {
-            mSide = Side.WHITE;
+            setSide(Side.WHITE);
         } else {
-            mSide = Side.BLACK;
+            setSide(Side.BLACK);
         }
     }
 
@@ -112,13 +232,29 @@ public class Board {
      * Clears the board.
      */
     public void initializeEmpty() {
-        mSide = Side.WHITE;
+        setSide(Side.WHITE);
 
         for (int i = 0; i < SIZE*SIZE; i++) {
             setPiece(i, Piece.EMPTY);
         }
     }
 
+    /**
+     * Return a new board with the same pieces and side to move. Searches that
+     * run on several threads give each thread its own copy, since the board is
+     * modified in place while searching.
+     */
+    public Board copy() {
+        Board board = new Board();
+
+        for (int i = 0; i < NUM_SQUARES; i++) {
+            board.setPiece(i, mSquare[i]);
+        }
+        board.setSide(mSide);
+
+        return board;
+    }
+
     /**
      * Put the pawns on the board at their traditional place.
      */
@@ -311,6 +447,9 @@ public class Board {
      * Set the side whose turn it is.
      */
     public void setSide(int side) {
+        if (side != mSide) {
+            mHash ^= Zobrist.SIDE_KEY;
+        }
         mSide = side;
     }
 
@@ -319,6 +458,7 @@ public class Board {
      */
     public int swapSides() {
         mSide = Side.getOtherSide(mSide);
+        mHash ^= Zobrist.SIDE_KEY;
         return mSide;
     }
 
@@ -329,24 +469,73 @@ public class Board {
         Piece previousPiece = mSquare[index];
         mSquare[index] = piece;
 
+        if (previousPiece != null) {
+            long key = Zobrist.getPieceKey(previousPiece, index);
+            mHash ^= key;
+            if (previousPiece.getPieceType() == PieceType.PAWN) {
+                mPawnHash ^= key;
+            }
+        }
+        long key = Zobrist.getPieceKey(piece, index);
+        mHash ^= key;
+        if (piece.getPieceType() == PieceType.PAWN) {
+            mPawnHash ^= key;
+        }
+
         // Forget previous king location.
         if (previousPiece != null && previousPiece != Piece.EMPTY) {
-            if (previousPiece.getPieceType() == PieceType.KING) {
-                mKingIndex[previousPiece.getSide()] = -1;
+            int side = previousPiece.getSide();
+            PieceType pieceType = previousPiece.getPieceType();
+            if (pieceType == PieceType.KING) {
+                // Unless the king's already been put elsewhere, as when a new
+                // position is set up over an old one.
+                if (mKingIndex[side] == index) {
+                    mKingIndex[side] = -1;
+                }
+            } else {
+                mMaterial[side] -= pieceType.getValue();
+            }
+            if (pieceType != PieceType.PAWN) {
+                mNumPieces[side] -= 1;
             }
-            if (previousPiece.getPieceType() != PieceType.PAWN) {
-                mNumPieces[previousPiece.getSide()] -= 1;
+            mPieceBits[previousPiece.getIndex()] &= ~(1L << index);
+            mPieceCounts[previousPiece.getIndex()]--;
+            if (pieceType != PieceType.KING) {
+                if (mPieceCounts[previousPiece.getIndex()] >= MaterialTable.getMaxCount(previousPiece)) {
+                    mMaterialOverflow--;
+                }
+                mMaterialKey -= MaterialTable.getKeyWeight(previousPiece);
             }
+            mOccupied[side] &= ~(1L << index);
+            mMiddleGamePositionBonus[side] -= previousPiece.getMiddleGamePositionBonus(index);
+            mEndGamePositionBonus[side] -= previousPiece.getEndGamePositionBonus(index);
+            mPhase -= pieceType.getPhase();
         }
 
         if (piece != Piece.EMPTY) {
+            int side = piece.getSide();
+            PieceType pieceType = piece.getPieceType();
             // Remember new king location.
-            if (piece.getPieceType() == PieceType.KING) {
-                mKingIndex[piece.getSide()] = index;
+            if (pieceType == PieceType.KING) {
+                mKingIndex[side] = index;
+            } else {
+                mMaterial[side] += pieceType.getValue();
+            }
+            if (pieceType != PieceType.PAWN) {
+                mNumPieces[side] += 1;
             }
-            if (piece.getPieceType() != PieceType.PAWN) {
-                mNumPieces[piece.getSide()] += 1;
+            mPieceBits[piece.getIndex()] |= 1L << index;
+            mPieceCounts[piece.getIndex()]++;
+            if (pieceType != PieceType.KING) {
+                if (mPieceCounts[piece.getIndex()] > MaterialTable.getMaxCount(piece)) {
+                    mMaterialOverflow++;
+                }
+                mMaterialKey += MaterialTable.getKeyWeight(piece);
             }
+            mOccupied[side] |= 1L << index;
+            mMiddleGamePositionBonus[side] += piece.getMiddleGamePositionBonus(index);
+            mEndGamePositionBonus[side] += piece.getEndGamePositionBonus(index);
+            mPhase += pieceType.getPhase();
         }
     }
 
@@ -373,6 +562,43 @@ public class Board {
         return previousToPiece;
     }
 
+    /**
+     * Return the Zobrist hash of the position, including the side to move.
+     */
+    public long getHash() {
+        return mHash;
+    }
+
+    /**
+     * Return the Zobrist hash of the pawns only. It changes only when a pawn moves
+     * or is captured, so it's good for caching pawn structure evaluation.
+     */
+    public long getPawnHash() {
+        return mPawnHash;
+    }
+
+    /**
+     * Return the index of the side's king, or -1 if it has none.
+     */
+    public int getKingIndex(int side) {
+        return mKingIndex[side];
+    }
+
+    /**
+     * Return the number of the piece on the board.
+     */
+    public int getPieceCount(Piece piece) {
+        return mPieceCounts[piece.getIndex()];
+    }
+
+    /**
+     * Return the index of this material into MaterialTable, or -1 if there are
+     * more of some piece (usually after a promotion) than the table covers.
+     */
+    public int getMaterialKey() {
+        return mMaterialOverflow == 0 ? mMaterialKey : -1;
+    }
+
     /**
      * Return the number of (non-pawn) pieces for this side.
      */
@@ -397,80 +623,238 @@ public class Board {
     }
 
     /**
-     * If the given square is attacked by the given side, returns the index of (any)
-     * attacking piece. Otherwise returns -1.
+     * Return the static evaluation of the board in centipawns from the point of
+     * view of the side whose turn it is. This is kept up to date as pieces are
+     * moved, so it takes constant time.
      */
-    public int getAttackingPieceIndex(int index, int attackingSide) {
-        // Check every direction for queen (includes rook, bishop, king, and pawn).
-        for (int i = 0; i < QUEEN_FILE_DELTAS.length; i++) {
-            // Check every distance.
-            for (int distance = 1; distance < SIZE; distance++) {
-                int fileDelta = QUEEN_FILE_DELTAS[i];
-                int rankDelta = QUEEN_RANK_DELTAS[i];
-                int otherIndex = getRelativeIndex(index, distance*fileDelta, distance*rankDelta);
-                if (otherIndex == -1) {
-                    // Off board.
-                    break;
-                }
+    public int evaluate() {
+        return evaluate(mSide);
+    }
 
-                Piece piece = getPiece(otherIndex);
-                if (piece != Piece.EMPTY) {
-                    if (piece.getSide() == attackingSide) {
-                        if (piece.getPieceType() == PieceType.QUEEN) {
-                            return otherIndex;
-                        }
-                        if (piece.getPieceType() == PieceType.KING && distance == 1) {
-                            return otherIndex;
-                        }
-
-                        if (fileDelta == 0 || rankDelta == 0) {
-                            // Orthogonal.
-                            if (piece.getPieceType() == PieceType.ROOK) {
-                                return otherIndex;
-                            }
-                        } else {
-                            // Diagonal.
-                            if (piece.getPieceType() == PieceType.BISHOP) {
-                                return otherIndex;
-                            }
-
-                            if (piece.getPieceType() == PieceType.PAWN && distance == 1) {
-                                if (attackingSide == Side.WHITE) {
-                                    if (otherIndex > index) {
-                                        return otherIndex;
-                                    }
-                                } else {
-                                    if (otherIndex < index) {
-                                        return otherIndex;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    // Stop this direction anyway, we've hit a piece.
-                    break;
+    /**
+     * Return the static evaluation of the board in centipawns from the point of
+     * view of the specified side. The position bonus is tapered: it's blended
+     * between the middle and end game bonuses according to the game phase.
+     */
+    public int evaluate(int side) {
+        if (VERIFY_EVALUATION) {
+            verifyEvaluation();
+        }
+
+        int otherSide = Side.getOtherSide(side);
+        int phase = getPhase();
+        int middleGame = mMiddleGamePositionBonus[side] - mMiddleGamePositionBonus[otherSide];
+        int endGame = mEndGamePositionBonus[side] - mEndGamePositionBonus[otherSide];
+
+        return mMaterial[side] - mMaterial[otherSide]
+            + (middleGame*phase + endGame*(PieceType.MAX_PHASE - phase))/PieceType.MAX_PHASE;
+    }
+
+    /**
+     * Return the game phase, from PieceType.MAX_PHASE in the middle game down to 0
+     * in the end game.
+     */
+    public int getPhase() {
+        return Math.min(mPhase, PieceType.MAX_PHASE);
+    }
+
+    /**
+     * Recomputes the evaluation totals and hashes from scratch and compares them
+     * to the incrementally-updated ones.
+     *
+     * @throws IllegalStateException if they don't match.
+     */
+    public void verifyEvaluation() {
+        int[] material = new int[2];
+        int[] middleGamePositionBonus = new int[2];
+        int[] endGamePositionBonus = new int[2];
+        int phase = 0;
+        long hash = mSide == Side.BLACK ? Zobrist.SIDE_KEY : 0;
+        long pawnHash = 0;
+        long[] pieceBits = new long[Piece.NUM_PIECES];
+
+        for (int index = 0; index < NUM_SQUARES; index++) {
+            Piece piece = mSquare[index];
+            hash ^= Zobrist.getPieceKey(piece, index);
+            if (piece.getPieceType() == PieceType.PAWN) {
+                pawnHash ^= Zobrist.getPieceKey(piece, index);
+            }
+            if (piece != Piece.EMPTY) {
+                int side = piece.getSide();
+                PieceType pieceType = piece.getPieceType();
+                if (pieceType != PieceType.KING) {
+                    material[side] += pieceType.getValue();
                 }
+                middleGamePositionBonus[side] += piece.getMiddleGamePositionBonus(index);
+                endGamePositionBonus[side] += piece.getEndGamePositionBonus(index);
+                phase += pieceType.getPhase();
+                pieceBits[piece.getIndex()] |= 1L << index;
             }
         }
 
-        // Check knights.
-        for (int i = 0; i < KNIGHT_FILE_DELTAS.length; i++) {
-            int fileDelta = KNIGHT_FILE_DELTAS[i];
-            int rankDelta = KNIGHT_RANK_DELTAS[i];
-            int otherIndex = getRelativeIndex(index, fileDelta, rankDelta);
-            // Check if off board.
-            if (otherIndex != -1) {
-                Piece piece = getPiece(otherIndex);
-                if (piece != Piece.EMPTY
-                        && piece.getPieceType() == PieceType.KNIGHT
-                        && piece.getSide() == attackingSide) {
+        for (int side = Side.WHITE; side <= Side.BLACK; side++) {
+            if (material[side] != mMaterial[side]
+                    || middleGamePositionBonus[side] != mMiddleGamePositionBonus[side]
+                    || endGamePositionBonus[side] != mEndGamePositionBonus[side]) {
 
-                    return otherIndex;
-                }
+                throw new IllegalStateException("Incremental evaluation for "
+                        + Side.toString(side) + " is out of date: " + this);
             }
         }
+        if (phase != mPhase) {
+            throw new IllegalStateException("Incremental game phase is out of date: " + this);
+        }
+        if (hash != mHash || pawnHash != mPawnHash) {
+            throw new IllegalStateException("Incremental hash is out of date: " + this);
+        }
+        int materialKey = 0;
+        for (int i = 0; i < Piece.NUM_PIECES; i++) {
+            Piece piece = Piece.getPieceForIndex(i);
+            if (piece.getPieceType() != PieceType.KING) {
+                materialKey += Long.bitCount(pieceBits[i])*MaterialTable.getKeyWeight(piece);
+            }
+            if (Long.bitCount(pieceBits[i]) != mPieceCounts[i]) {
+                throw new IllegalStateException("Incremental piece counts are out of date: " + this);
+            }
+        }
+        if (materialKey != mMaterialKey) {
+            throw new IllegalStateException("Incremental material key is out of date: " + this);
+        }
+        for (int i = 0; i < Piece.NUM_PIECES; i++) {
+            if (pieceBits[i] != mPieceBits[i]) {
+                throw new IllegalStateException("Incremental bitboards are out of date: " + this);
+            }
+        }
+    }
 
-        return -1;
+    /**
+     * Return the squares occupied by the piece, as a long where bit N is board index N.
+     */
+    public long getPieceBits(Piece piece) {
+        return mPieceBits[piece.getIndex()];
+    }
+
+    /**
+     * Return the squares occupied by the side's pieces.
+     */
+    public long getOccupied(int side) {
+        return mOccupied[side];
+    }
+
+    /**
+     * Return the squares attacked by the piece at index, whether empty or occupied
+     * by either side. Returns 0 for an empty square. For pawns, only the diagonal
+     * captures are included.
+     */
+    public long getAttacks(int index) {
+        return getAttacks(mSquare[index], index, mOccupied[Side.WHITE] | mOccupied[Side.BLACK]);
+    }
+
+    /**
+     * Return the squares attacked by the piece if it were at index, with the
+     * specified squares occupied. Returns 0 for EMPTY.
+     */
+    public static long getAttacks(Piece piece, int index, long occupied) {
+        PieceType pieceType = piece.getPieceType();
+
+        if (pieceType == PieceType.PAWN) {
+            return PAWN_ATTACKS[piece.getSide()][index];
+        } else if (pieceType == PieceType.KNIGHT) {
+            return KNIGHT_ATTACKS[index];
+        } else if (pieceType == PieceType.KING) {
+            return KING_ATTACKS[index];
+        } else if (pieceType == PieceType.BISHOP) {
+            return getSlidingAttacks(index, occupied, 1);
+        } else if (pieceType == PieceType.ROOK) {
+            return getSlidingAttacks(index, occupied, 0);
+        } else if (pieceType == PieceType.QUEEN) {
+            return getSlidingAttacks(index, occupied, 0) | getSlidingAttacks(index, occupied, 1);
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Return the number of squares in targets attacked by the piece at index.
+     * This is much cheaper than generating moves, and is meant for evaluating
+     * mobility and king safety.
+     */
+    public int countAttacks(int index, long targets) {
+        return Long.bitCount(getAttacks(index) & targets);
+    }
+
+    /**
+     * Return all squares attacked by the pawns of the side.
+     */
+    public long getPawnAttacks(int side) {
+        long pawns = getPieceBits(side == Side.WHITE ? Piece.WHITE_PAWN : Piece.BLACK_PAWN);
+
+        if (side == Side.WHITE) {
+            // Up the board is down in index.
+            return ((pawns & ~FILE_A) >>> (SIZE + 1)) | ((pawns & ~FILE_H) >>> (SIZE - 1));
+        } else {
+            return ((pawns & ~FILE_A) << (SIZE - 1)) | ((pawns & ~FILE_H) << (SIZE + 1));
+        }
+    }
+
+    /**
+     * Return the squares attacked by a king on the index.
+     */
+    public static long getKingAttacks(int index) {
+        return KING_ATTACKS[index];
+    }
+
+    /**
+     * Return the squares attacked by a sliding piece at index in every other queen
+     * direction, starting with firstDirection (0 for orthogonal, 1 for diagonal).
+     * Each ray stops at (and includes) the first occupied square.
+     */
+    private static long getSlidingAttacks(int index, long occupied, int firstDirection) {
+        long attacks = 0;
+
+        for (int i = firstDirection; i < RAYS.length; i += 2) {
+            long ray = RAYS[i][index];
+            long blockers = ray & occupied;
+            if (blockers != 0) {
+                int blocker = RAY_IS_INCREASING[i]
+                    ? Long.numberOfTrailingZeros(blockers)
+                    : 63 - Long.numberOfLeadingZeros(blockers);
+                ray ^= RAYS[i][blocker];
+            }
+            attacks |= ray;
+        }
+
+        return attacks;
+    }
+
+    /**
+     * If the given square is attacked by the given side, returns the index of (any)
+     * attacking piece. Otherwise returns -1.
+     */
+    public int getAttackingPieceIndex(int index, int attackingSide) {
+        long attackers = getAttackers(index, attackingSide);
+
+        return attackers == 0 ? -1 : Long.numberOfTrailingZeros(attackers);
+    }
+
+    /**
+     * Return the squares of the pieces of the attacking side that attack the index.
+     * Since attacks are symmetric, this looks outward from the index with the
+     * attack tables of each piece type.
+     */
+    public long getAttackers(int index, int attackingSide) {
+        long occupied = mOccupied[Side.WHITE] | mOccupied[Side.BLACK];
+        int pieceOffset = attackingSide == Side.WHITE ? 0 : Piece.BLACK_PAWN.getIndex();
+        long queens = mPieceBits[Piece.WHITE_QUEEN.getIndex() + pieceOffset];
+
+        return (PAWN_ATTACKS[Side.getOtherSide(attackingSide)][index]
+                    & mPieceBits[Piece.WHITE_PAWN.getIndex() + pieceOffset])
+            | (KNIGHT_ATTACKS[index] & mPieceBits[Piece.WHITE_KNIGHT.getIndex() + pieceOffset])
+            | (KING_ATTACKS[index] & mPieceBits[Piece.WHITE_KING.getIndex() + pieceOffset])
+            | (getSlidingAttacks(index, occupied, 1)
+                    & (mPieceBits[Piece.WHITE_BISHOP.getIndex() + pieceOffset] | queens))
+            | (getSlidingAttacks(index, occupied, 0)
+                    & (mPieceBits[Piece.WHITE_ROOK.getIndex() + pieceOffset] | queens));
     }
 
     /**
@@ -629,6 +1013,20 @@ public class Board {
         return moveList;
     }
 
+    /**
+     * Whether the side has any legal move. Stops at the first one, so it's much
+     * cheaper than generateAllLegalMoves() for detecting mate.
+     */
+    public boolean hasLegalMove(int side) {
+        for (Move move : generateAllMoves(side, false)) {
+            if (verifyMoveLegal(move) == -1) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Like generateAllMoves() but only generates moves that wouldn't put us in check.
      * Also updates the Move objects' check status.
@@ -791,7 +1189,7 @@ public class Board {
             board.setPiece(i, piece);
         }
 
-        board.mSide = (int) (str.charAt(NUM_SQUARES) - '0');
+        board.setSide((int) (str.charAt(NUM_SQUARES) - '0'));
 
         return board;
     }
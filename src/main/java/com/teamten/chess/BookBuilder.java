@@ -0,0 +1,675 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds a Polyglot opening book from PGN files. Games are read on one thread
+ * and replayed on the others, which add the win/draw/loss count of each
+ * position and move to a hash map. The map is split into shards with their
+ * own locks so that threads rarely wait on each other. When a shard is full it's
+ * sorted and written to a temporary run file, and at the end all runs are
+ * merged into the book. Memory is therefore bounded no matter how large the
+ * input.
+ *
+ * Games that castle or capture en passant are only used up to that move,
+ * since the board can't play them.
+ */
+public class BookBuilder {
+    private static final int SHARD_COUNT = 64;
+    private static final int QUEUE_SIZE = 1024;
+    /**
+     * Size of a record in a run file: key, move, wins, draws, losses.
+     */
+    private static final int RUN_RECORD_SIZE = 8 + 2 + 4 + 4 + 4;
+    private static final GameRecord END_OF_GAMES = new GameRecord(new String[0], Side.DRAW);
+    private final File mOutputFile;
+    private final File mTempDirectory;
+    private final Shard[] mShards = new Shard[SHARD_COUNT];
+    private final List<File> mRunFiles = new ArrayList<File>();
+    private int mThreadCount = Runtime.getRuntime().availableProcessors();
+    private int mMaxPly = 30;
+    private int mMinGames = 3;
+    private final AtomicLong mGamesUsed = new AtomicLong();
+    private final AtomicLong mGamesCut = new AtomicLong();
+    private final AtomicLong mPositionCount = new AtomicLong();
+
+    /**
+     * @param maxEntries the number of position/move entries to keep in memory
+     * before spilling to disk.
+     */
+    public BookBuilder(File outputFile, int maxEntries) {
+        if (!PolyglotKeys.isAvailable()) {
+            // Don't spend an hour reading games only to write a book nobody can use.
+            throw new IllegalStateException(PolyglotKeys.getLoadError());
+        }
+
+        mOutputFile = outputFile;
+        File parent = outputFile.getAbsoluteFile().getParentFile();
+        mTempDirectory = parent == null ? new File(".") : parent;
+
+        int shardCapacity = Math.max(maxEntries/SHARD_COUNT, 1024);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            mShards[i] = new Shard(shardCapacity);
+        }
+    }
+
+    /**
+     * Set the number of threads replaying games.
+     */
+    public void setThreadCount(int threadCount) {
+        mThreadCount = Math.max(threadCount, 1);
+    }
+
+    /**
+     * Set the number of plies of each game to add to the book.
+     */
+    public void setMaxPly(int maxPly) {
+        mMaxPly = maxPly;
+    }
+
+    /**
+     * Set the minimum number of games a move must be played in to be in the book.
+     */
+    public void setMinGames(int minGames) {
+        mMinGames = minGames;
+    }
+
+    /**
+     * Read all the PGN files and write the book.
+     */
+    public void build(List<File> pgnFiles) throws IOException {
+        long beforeTime = System.currentTimeMillis();
+        final BlockingQueue<GameRecord> queue = new ArrayBlockingQueue<GameRecord>(QUEUE_SIZE);
+        // The first exception thrown by a replaying thread, rethrown on this one.
+        final Exception[] workerException = new Exception[1];
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < mThreadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override // Runnable
+                public void run() {
+                    try {
+                        replayGames(queue);
+                    } catch (IOException | RuntimeException e) {
+                        synchronized (workerException) {
+                            if (workerException[0] == null) {
+                                workerException[0] = e;
+                            }
+                        }
+                        // Keep taking games so the reading thread doesn't block.
+                        drain(queue);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        // Read games on this thread.
+        long gameCount = 0;
+        try {
+            for (File pgnFile : pgnFiles) {
+                try (PgnReader pgnReader = PgnReader.open(pgnFile)) {
+
+                    while (pgnReader.readGame()) {
+                        // No point reading the rest if a replaying thread has failed.
+                        synchronized (workerException) {
+                            if (workerException[0] != null) {
+                                break;
+                            }
+                        }
+                        gameCount++;
+                        int result = pgnReader.getResult();
+                        // Skip unfinished games and games that don't start at the normal position.
+                        if (result != Side.IN_PROGRESS && pgnReader.getTag("FEN") == null) {
+                            List<String> moves = pgnReader.getMoves();
+                            int plyCount = Math.min(moves.size(), mMaxPly);
+                            queue.put(new GameRecord(moves.subList(0, plyCount).toArray(new String[plyCount]),
+                                        result));
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading games", e);
+        } finally {
+            for (int i = 0; i < mThreadCount; i++) {
+                putUninterruptibly(queue, END_OF_GAMES);
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        synchronized (workerException) {
+            if (workerException[0] instanceof IOException) {
+                throw (IOException) workerException[0];
+            } else if (workerException[0] != null) {
+                throw (RuntimeException) workerException[0];
+            }
+        }
+
+        // Spill what's left, then merge everything.
+        for (Shard shard : mShards) {
+            shard.spill();
+        }
+        long entryCount = merge();
+
+        long afterTime = System.currentTimeMillis();
+        System.err.printf("Read %d games, used %d (%d cut short by castling or en passant)%n",
+                gameCount, mGamesUsed.get(), mGamesCut.get());
+        System.err.printf("Recorded %d positions in %d runs, wrote %d entries to %s in %.1f seconds%n",
+                mPositionCount.get(), mRunFiles.size(), entryCount, mOutputFile,
+                (afterTime - beforeTime)/1000.0);
+    }
+
+    /**
+     * Take games from the queue and add their positions until the end marker.
+     */
+    private void replayGames(BlockingQueue<GameRecord> queue) throws IOException {
+        while (true) {
+            GameRecord gameRecord;
+            try {
+                gameRecord = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (gameRecord == END_OF_GAMES) {
+                return;
+            }
+
+            Board board = new Board();
+            board.initializeTraditionalChess();
+            Game game = new Game(board);
+            mGamesUsed.incrementAndGet();
+
+            for (String san : gameRecord.mMoves) {
+                int side = board.getSide();
+                Move move;
+                try {
+                    move = Move.parseAlgebraicNotation(board, san);
+                } catch (IllegalArgumentException e) {
+                    // Castling, en passant, or a bad game. Keep what we have.
+                    mGamesCut.incrementAndGet();
+                    break;
+                }
+
+                int outcome;
+                if (gameRecord.mResult == Side.DRAW) {
+                    outcome = Shard.DRAW;
+                } else if (gameRecord.mResult == side) {
+                    outcome = Shard.WIN;
+                } else {
+                    outcome = Shard.LOSS;
+                }
+
+                long key = PolyglotKeys.getKey(game, side);
+                mShards[getShardIndex(key)].add(key, OpeningBook.getMoveBits(move), outcome);
+                mPositionCount.incrementAndGet();
+
+                game.addMove(move);
+            }
+        }
+    }
+
+    /**
+     * Merge all runs into the book. Returns the number of book entries written.
+     */
+    private long merge() throws IOException {
+        PriorityQueue<RunReader> runReaders = new PriorityQueue<RunReader>(
+                Math.max(mRunFiles.size(), 1), new Comparator<RunReader>() {
+                    @Override // Comparator
+                    public int compare(RunReader r1, RunReader r2) {
+                        return compareEntries(r1.mKey, r1.mMove, r2.mKey, r2.mMove);
+                    }
+                });
+
+        long entryCount = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mOutputFile), 1024*1024))) {
+
+            for (File runFile : mRunFiles) {
+                RunReader runReader = new RunReader(runFile);
+                if (runReader.next()) {
+                    runReaders.add(runReader);
+                } else {
+                    runReader.close();
+                }
+            }
+
+            PositionMoves positionMoves = new PositionMoves();
+            while (!runReaders.isEmpty()) {
+                // Sum this key and move across all runs.
+                RunReader runReader = runReaders.poll();
+                long key = runReader.mKey;
+                int move = runReader.mMove;
+                int wins = 0;
+                int draws = 0;
+                int losses = 0;
+
+                while (true) {
+                    wins += runReader.mWins;
+                    draws += runReader.mDraws;
+                    losses += runReader.mLosses;
+
+                    if (runReader.next()) {
+                        runReaders.add(runReader);
+                    } else {
+                        runReader.close();
+                    }
+
+                    runReader = runReaders.peek();
+                    if (runReader == null || runReader.mKey != key || runReader.mMove != move) {
+                        break;
+                    }
+                    runReaders.poll();
+                }
+
+                if (positionMoves.mCount > 0 && positionMoves.mKey != key) {
+                    entryCount += positionMoves.write(out);
+                }
+                if (wins + draws + losses >= mMinGames) {
+                    positionMoves.add(key, move, wins, draws, losses);
+                }
+            }
+            entryCount += positionMoves.write(out);
+        } finally {
+            for (RunReader runReader : runReaders) {
+                runReader.close();
+            }
+            for (File runFile : mRunFiles) {
+                runFile.delete();
+            }
+        }
+
+        return entryCount;
+    }
+
+    /**
+     * Write a shard's sorted entries to a new run file.
+     */
+    private void writeRun(long[] keys, int[] moves, int[] wins, int[] draws, int[] losses, int[] order,
+            int count) throws IOException {
+
+        File runFile = File.createTempFile("book", ".run", mTempDirectory);
+        runFile.deleteOnExit();
+        synchronized (mRunFiles) {
+            mRunFiles.add(runFile);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(runFile), 256*1024))) {
+
+            for (int i = 0; i < count; i++) {
+                int slot = order[i];
+                out.writeLong(keys[slot]);
+                out.writeShort(moves[slot]);
+                out.writeInt(wins[slot]);
+                out.writeInt(draws[slot]);
+                out.writeInt(losses[slot]);
+            }
+        }
+    }
+
+    /**
+     * Pick a shard using key bits that aren't used for the slot in the shard.
+     */
+    private static int getShardIndex(long key) {
+        return (int) (key >>> 58) & (SHARD_COUNT - 1);
+    }
+
+    /**
+     * Compare entries by unsigned key, then by move, which is the book's order.
+     */
+    private static int compareEntries(long key1, int move1, long key2, int move2) {
+        int compare = Long.compareUnsigned(key1, key2);
+        return compare != 0 ? compare : Integer.compare(move1, move2);
+    }
+
+    /**
+     * Discard games until the end marker.
+     */
+    private static void drain(BlockingQueue<GameRecord> queue) {
+        try {
+            while (queue.take() != END_OF_GAMES) {
+                // Discard.
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<GameRecord> queue, GameRecord gameRecord) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(gameRecord);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+
+    /**
+     * Command-line options are "-threads N", "-max-ply N", "-min-games N", and
+     * "-max-entries N", followed by the output book and the PGN files.
+     */
+    public static void main(String[] args) throws IOException {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        int maxPly = 30;
+        int minGames = 3;
+        int maxEntries = 4*1024*1024;
+        List<String> filenames = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                threadCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-max-ply") && i + 1 < args.length) {
+                maxPly = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-min-games") && i + 1 < args.length) {
+                minGames = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-max-entries") && i + 1 < args.length) {
+                maxEntries = Integer.parseInt(args[++i]);
+            } else if (args[i].startsWith("-")) {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            } else {
+                filenames.add(args[i]);
+            }
+        }
+
+        if (filenames.size() < 2) {
+            System.err.println("Usage: BookBuilder [options] book.bin games.pgn ...");
+            System.exit(1);
+        }
+
+        BookBuilder bookBuilder = new BookBuilder(new File(filenames.get(0)), maxEntries);
+        bookBuilder.setThreadCount(threadCount);
+        bookBuilder.setMaxPly(maxPly);
+        bookBuilder.setMinGames(minGames);
+
+        List<File> pgnFiles = new ArrayList<File>();
+        for (String filename : filenames.subList(1, filenames.size())) {
+            pgnFiles.add(new File(filename));
+        }
+        bookBuilder.build(pgnFiles);
+    }
+
+    // --------------------------------------------------------------------------------
+
+    /**
+     * The moves and result of a game, passed from the reading thread to the
+     * replaying threads.
+     */
+    private static class GameRecord {
+        private final String[] mMoves;
+        private final int mResult;
+
+        public GameRecord(String[] moves, int result) {
+            mMoves = moves;
+            mResult = result;
+        }
+    }
+
+    /**
+     * Open-addressed hash map from (key, move) to win, draw, and loss counts,
+     * in parallel primitive arrays. A move of zero (a1 to a1) marks an empty slot.
+     */
+    private class Shard {
+        public static final int WIN = 0;
+        public static final int DRAW = 1;
+        public static final int LOSS = 2;
+        private final int mMaxCount;
+        private final int mMask;
+        private final long[] mKeys;
+        private final int[] mMoves;
+        private final int[] mWins;
+        private final int[] mDraws;
+        private final int[] mLosses;
+        private int mCount;
+
+        public Shard(int maxCount) {
+            // Keep the load factor at most one half.
+            int capacity = Integer.highestOneBit(maxCount*2 - 1) << 1;
+            mMaxCount = maxCount;
+            mMask = capacity - 1;
+            mKeys = new long[capacity];
+            mMoves = new int[capacity];
+            mWins = new int[capacity];
+            mDraws = new int[capacity];
+            mLosses = new int[capacity];
+        }
+
+        /**
+         * Count a game where the move was played in the position.
+         */
+        public synchronized void add(long key, int move, int outcome) throws IOException {
+            int slot = (int) ((key ^ (key >>> 29) ^ move*0x9E3779B9L)) & mMask;
+            while (mMoves[slot] != 0 && (mKeys[slot] != key || mMoves[slot] != move)) {
+                slot = (slot + 1) & mMask;
+            }
+
+            if (mMoves[slot] == 0) {
+                if (mCount == mMaxCount) {
+                    spill();
+                    add(key, move, outcome);
+                    return;
+                }
+                mKeys[slot] = key;
+                mMoves[slot] = move;
+                mCount++;
+            }
+
+            switch (outcome) {
+                case WIN:
+                    mWins[slot]++;
+                    break;
+
+                case DRAW:
+                    mDraws[slot]++;
+                    break;
+
+                case LOSS:
+                    mLosses[slot]++;
+                    break;
+            }
+        }
+
+        /**
+         * Write the entries to a run file in book order and empty the shard.
+         */
+        public synchronized void spill() throws IOException {
+            if (mCount == 0) {
+                return;
+            }
+
+            int[] order = new int[mCount];
+            int count = 0;
+            for (int slot = 0; slot < mMoves.length; slot++) {
+                if (mMoves[slot] != 0) {
+                    order[count++] = slot;
+                }
+            }
+            sort(order, 0, count - 1);
+
+            writeRun(mKeys, mMoves, mWins, mDraws, mLosses, order, count);
+
+            Arrays.fill(mMoves, 0);
+            Arrays.fill(mWins, 0);
+            Arrays.fill(mDraws, 0);
+            Arrays.fill(mLosses, 0);
+            mCount = 0;
+        }
+
+        /**
+         * Quicksort the slots by key and move, without boxing.
+         */
+        private void sort(int[] order, int low, int high) {
+            while (low < high) {
+                int pivot = order[(low + high) >>> 1];
+                long pivotKey = mKeys[pivot];
+                int pivotMove = mMoves[pivot];
+                int i = low;
+                int j = high;
+
+                while (i <= j) {
+                    while (compareEntries(mKeys[order[i]], mMoves[order[i]], pivotKey, pivotMove) < 0) {
+                        i++;
+                    }
+                    while (compareEntries(mKeys[order[j]], mMoves[order[j]], pivotKey, pivotMove) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int tmp = order[i];
+                        order[i] = order[j];
+                        order[j] = tmp;
+                        i++;
+                        j--;
+                    }
+                }
+
+                // Recurse on the smaller half to bound the stack.
+                if (j - low < high - i) {
+                    sort(order, low, j);
+                    low = i;
+                } else {
+                    sort(order, i, high);
+                    high = j;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the sorted records of one run file.
+     */
+    private static class RunReader {
+        private final DataInputStream mIn;
+        private long mKey;
+        private int mMove;
+        private int mWins;
+        private int mDraws;
+        private int mLosses;
+
+        public RunReader(File file) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                        RUN_RECORD_SIZE*4096));
+        }
+
+        /**
+         * Read the next record. Returns false at the end of the run.
+         */
+        public boolean next() throws IOException {
+            try {
+                mKey = mIn.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            mMove = mIn.readShort() & 0xFFFF;
+            mWins = mIn.readInt();
+            mDraws = mIn.readInt();
+            mLosses = mIn.readInt();
+
+            return true;
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    /**
+     * The moves being collected for one position during the merge.
+     */
+    private static class PositionMoves {
+        private long mKey;
+        private int mCount;
+        private int[] mMoves = new int[16];
+        private long[] mWeights = new long[16];
+
+        public void add(long key, int move, int wins, int draws, int losses) {
+            if (mCount == mMoves.length) {
+                mMoves = Arrays.copyOf(mMoves, mCount*2);
+                mWeights = Arrays.copyOf(mWeights, mCount*2);
+            }
+            mKey = key;
+            mMoves[mCount] = move;
+            // Polyglot's usual weight: two points for a win, one for a draw.
+            mWeights[mCount] = 2L*wins + draws;
+            mCount++;
+        }
+
+        /**
+         * Write the moves as book entries, scaling weights to fit in 16 bits, and
+         * clear the list. Moves that never scored are dropped. Returns the number
+         * of entries written.
+         */
+        public int write(DataOutputStream out) throws IOException {
+            long maxWeight = 0;
+            for (int i = 0; i < mCount; i++) {
+                maxWeight = Math.max(maxWeight, mWeights[i]);
+            }
+
+            int written = 0;
+            for (int i = 0; i < mCount; i++) {
+                long weight = maxWeight > 0xFFFF ? mWeights[i]*0xFFFF/maxWeight : mWeights[i];
+                if (weight > 0) {
+                    out.writeLong(mKey);
+                    out.writeShort(mMoves[i]);
+                    out.writeShort((int) weight);
+                    out.writeInt(0);
+                    written++;
+                }
+            }
+
+            mCount = 0;
+            return written;
+        }
+    }
+}
@@ -22,6 +22,16 @@ public class Chess {
     private static final boolean PLAY_GAME = false;
     private static final boolean PLAY_PUZZLE_GAME = true;
     private static final boolean CHESS_SERVER = false;
+    private static final boolean LAZY_EVALUATION_TEST = false;
+    private static final int LAZY_EVALUATION_TEST_DEPTH = 4;
+    private static final String[] TEST_POSITIONS = new String[] {
+        "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+        "r1bqkb1r/pppp1ppp/2n2n2/4p3/2B1P3/5N2/PPPP1PPP/RNBQK2R w KQkq - 4 4",
+        "r2q1rk1/pp2bppp/2n1bn2/3p4/3P4/2NBBN2/PP3PPP/R2Q1RK1 w - - 0 11",
+        "8/5pk1/6p1/3P4/1p6/1P3KP1/8/8 w - - 0 45",
+        "8/8/4k3/8/2KP4/8/8/8 w - - 0 1",
+        "r3r1k1/1pq2ppp/p1p2n2/3p4/3P1B2/2PB4/PPQ2PPP/R3R1K1 b - - 5 16",
+    };
 
     public static void main(String[] args) {
         final Board board = new Board();
@@ -92,6 +102,10 @@ public class Chess {
             board.print(System.out, "", null);
         }
 
+        if (LAZY_EVALUATION_TEST) {
+            compareLazyEvaluation();
+        }
+
         if (CHESS_SERVER) {
             ChessServer chessServer = new ChessServer();
             chessServer.start();
@@ -320,6 +334,51 @@ public class Chess {
         }
     }
 
+    /**
+     * Search a few positions to a fixed depth with and without lazy evaluation,
+     * and print how much time it saves and how often it changes the result.
+     */
+    private static void compareLazyEvaluation() {
+        long fullTime = 0;
+        long lazyTime = 0;
+        int sameMoves = 0;
+        long totalScoreDifference = 0;
+
+        for (String fen : TEST_POSITIONS) {
+            ComputerPlayer.Result[] results = new ComputerPlayer.Result[2];
+            for (int i = 0; i < results.length; i++) {
+                Board board = new Board();
+                board.initializeWithFen(fen);
+                Game game = new Game(board);
+                ComputerPlayer player = new ComputerPlayer(board, game, board.getSide());
+                player.setLazyEvaluation(i == 1);
+                results[i] = player.searchToDepth(LAZY_EVALUATION_TEST_DEPTH);
+            }
+
+            ComputerPlayer.EvaluatedMove full = results[0].mEvaluatedMove;
+            ComputerPlayer.EvaluatedMove lazy = results[1].mEvaluatedMove;
+            int scoreDifference = Math.abs(full.getScore() - lazy.getScore());
+            boolean sameMove = full.getMove().equals(lazy.getMove());
+
+            System.out.printf("%s: full %s %d (%d ms), lazy %s %d (%d ms, %s)%n",
+                    fen, full.getMove(), full.getScore(), results[0].mElapsedTime,
+                    lazy.getMove(), lazy.getScore(), results[1].mElapsedTime,
+                    results[1].mEvaluationStatistics);
+
+            fullTime += results[0].mElapsedTime;
+            lazyTime += results[1].mElapsedTime;
+            if (sameMove) {
+                sameMoves++;
+            }
+            totalScoreDifference += scoreDifference;
+        }
+
+        System.out.printf("Depth %d: full %d ms, lazy %d ms, same move in %d of %d positions, " +
+                "average score difference %.1f centipawns%n",
+                LAZY_EVALUATION_TEST_DEPTH, fullTime, lazyTime, sameMoves, TEST_POSITIONS.length,
+                (double) totalScoreDifference/TEST_POSITIONS.length);
+    }
+
     private static ComputerPlayer.EvaluatedMove makePlayerMove(ComputerPlayer computerPlayer) {
         ComputerPlayer.Result result = computerPlayer.makeMove(20000);
         ComputerPlayer.EvaluatedMove evaluatedMove = result.mEvaluatedMove;
@@ -329,9 +388,9 @@ public class Chess {
         if (move == null) {
             System.out.println(Side.toString(side) + " cannot move, end of game");
         } else {
-            System.out.printf("%s makes move %s with score %f (%d ms, %,d moves considered)%n",
-                    Side.toString(side), move, evaluatedMove.getScore(),
-                    result.mElapsedTime, result.mMovesConsidered);
+            System.out.printf("%s makes move %s with score %.2f (%d ms, %,d moves considered, %s)%n",
+                    Side.toString(side), move, evaluatedMove.getScore()/100.0,
+                    result.mElapsedTime, result.mMovesConsidered, result.mEvaluationStatistics);
 
             System.out.print("Principal variation:");
             for (ComputerPlayer.EvaluatedMove e = evaluatedMove; e != null && e.getMove() != null; e = e.getNextMove()) {
@@ -29,97 +29,364 @@ import java.util.List;
  * Plays chess.
  */
 public class ComputerPlayer {
+    /**
+     * Larger than any score, in centipawns.
+     */
+    public static final int INFINITY = 32000;
+    /**
+     * Score for checkmating on this move. Mate in N plies scores MATE_SCORE - N,
+     * so that we checkmate as soon as possible.
+     */
+    public static final int MATE_SCORE = 30000;
+    /**
+     * Deepest ply we'll ever search, so that any score beyond MATE_SCORE - MAX_PLY
+     * is a mate score.
+     */
+    public static final int MAX_PLY = 256;
+    /**
+     * Score for a position that the bitbases say is won. The static evaluation
+     * is added so that the search still makes progress toward mate.
+     */
+    public static final int BITBASE_WIN = 20000;
+    /**
+     * Depth of the first iteration, which always completes so that we have a move.
+     */
+    private static final int MIN_DEPTH = 2;
     private final Board mBoard;
     private final Game mGame;
-    private final int mSide;
+    private int mSide;
+    private final Evaluator mEvaluator;
+    private Bitbases mBitbases;
+    private Listener mListener;
+    private volatile boolean mStopRequested;
+    private long mStartTime;
     private long mTimeOfLastPrint;
     private long mMovesConsidered;
-    private long mStopTime;
+    private volatile long mStopTime;
+    private volatile boolean mSearching;
+    private int mSelDepth;
+    private Move mRootMove;
+    private int mRootMoveNumber;
+    private int mMultiPv = 1;
+    private int mMaxDepth = MAX_PLY/2;
+    private long mMaxNodes = Long.MAX_VALUE;
+    /**
+     * Root moves already found by the current iteration's earlier principal variations.
+     */
+    private final List<Move> mExcludedRootMoves = new ArrayList<Move>();
+    private long mSeed;
 
     /**
      * Create a player for a side in a game.
      */
     public ComputerPlayer(Board board, Game game, int side) {
+        this(board, game, side, new EvaluationCache());
+    }
+
+    /**
+     * Create a player for a side in a game, caching evaluations in the given cache.
+     */
+    public ComputerPlayer(Board board, Game game, int side, EvaluationCache evaluationCache) {
         mBoard = board;
         mGame = game;
         mSide = side;
+        mEvaluator = new Evaluator(evaluationCache);
     }
 
     public int getSide() {
         return mSide;
     }
 
+    /**
+     * Set the side to move for, so that one player can be kept across moves
+     * of a game (or several games) instead of being re-created for each move.
+     */
+    public void setSide(int side) {
+        mSide = side;
+    }
+
+    /**
+     * Set the seed used to break ties between equally-scored moves. The search is
+     * deterministic for a given seed.
+     */
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    /**
+     * Set the endgame bitbases to probe during the search, or null for none.
+     */
+    public void setBitbases(Bitbases bitbases) {
+        mBitbases = bitbases;
+    }
+
+    /**
+     * Set the listener to report search progress to, or null for none. Without a
+     * listener, each iteration is logged to standard out.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set the number of principal variations to find, each with a different first
+     * move. Defaults to 1. The result's mEvaluatedMoves has them from best to worst.
+     */
+    public void setMultiPv(int multiPv) {
+        mMultiPv = Math.max(multiPv, 1);
+    }
+
+    /**
+     * Set the deepest iteration that makeMove() and analyze() will search, or 0
+     * for no limit other than time.
+     */
+    public void setMaxDepth(int maxDepth) {
+        // Quiescence search goes to twice the depth, which must stay within MAX_PLY.
+        mMaxDepth = maxDepth <= 0 ? MAX_PLY/2 : Math.min(maxDepth, MAX_PLY/2);
+    }
+
+    /**
+     * Set the number of nodes after which makeMove() and analyze() stop, or 0
+     * for no limit other than time. Unlike a time limit, this gives the same
+     * result on every run. The evaluation cache doesn't affect it, since the
+     * evaluator gives the same score whether or not it's cached.
+     */
+    public void setMaxNodes(long maxNodes) {
+        mMaxNodes = maxNodes <= 0 ? Long.MAX_VALUE : maxNodes;
+    }
+
+    /**
+     * Forget cached evaluations, for example to start a new game with an empty
+     * cache. This doesn't change what the search does, only how fast.
+     */
+    public void clearCaches() {
+        mEvaluator.getEvaluationCache().clear();
+    }
+
+    /**
+     * Ask the search to finish as soon as possible, from any thread. makeMove()
+     * returns the best move of the last complete iteration. A stop that comes in
+     * before makeMove() starts is ignored, so callers should keep asking until the
+     * search thread is done.
+     */
+    public void stop() {
+        mStopRequested = true;
+    }
+
+    /**
+     * Change the time allowed for the search in progress, counting from now. Used
+     * to turn an infinite search (such as pondering) into a timed one. A search
+     * that hasn't started yet sets its own time when it does, so callers should
+     * wait until isSearching() is true.
+     */
+    public void setMoveTime(long moveTime) {
+        mStopTime = System.currentTimeMillis() + moveTime;
+    }
+
+    /**
+     * Whether a search is in progress and has set its time, so that setMoveTime()
+     * applies to it.
+     */
+    public boolean isSearching() {
+        return mSearching;
+    }
+
+    /**
+     * Return how full the evaluation cache is, in thousandths.
+     */
+    public int getHashFull() {
+        return mEvaluator.getEvaluationCache().getPermillFull();
+    }
+
+    /**
+     * Whether the evaluator may skip expensive terms far outside the search window.
+     */
+    public void setLazyEvaluation(boolean lazyEvaluation) {
+        mEvaluator.setLazyEvaluation(lazyEvaluation);
+    }
+
+    /**
+     * Return whether the score (in centipawns) means that one side can force mate.
+     */
+    public static boolean isMateScore(int score) {
+        return Math.abs(score) >= MATE_SCORE - MAX_PLY;
+    }
+
     /**
      * Makes a move on this board. Returns the move made along with a linked list of
      * the principal variation.
+     *
+     * @param moveTime the time to search in milliseconds, or Long.MAX_VALUE to
+     * search until stop() is called.
      */
     public Result makeMove(long moveTime) {
+        Result result = analyze(moveTime);
+
+        Move move = result.mEvaluatedMove.getMove();
+        if (move != null) {
+            mGame.addMove(move);
+        }
+
+        return result;
+    }
+
+    /**
+     * Search like makeMove(), but don't make the move.
+     */
+    public Result analyze(long moveTime) {
         long beforeTime = System.currentTimeMillis();
+        mStopRequested = false;
+        mStartTime = beforeTime;
         mTimeOfLastPrint = beforeTime;
         mMovesConsidered = 0;
-        mStopTime = beforeTime + moveTime;
-        EvaluatedMove bestEvaluatedMove = null;
+        mEvaluator.getStatistics().clear();
+        mStopTime = moveTime == Long.MAX_VALUE ? Long.MAX_VALUE : beforeTime + moveTime;
+        mSearching = true;
+        List<EvaluatedMove> bestEvaluatedMoves = null;
 
-        int maxDepth = 2;
+        int maxDepth = Math.min(MIN_DEPTH, mMaxDepth);
         while (true) {
-            EvaluatedMove evaluatedMove = getBestMove(0.0, 0, maxDepth, mSide,
-                    new ArrayList<Move>(), -10000, 10000, false, false, 1);
+            mSelDepth = 0;
+            List<EvaluatedMove> evaluatedMoves = searchRoot(maxDepth);
 
             long now = System.currentTimeMillis();
-            System.out.println(maxDepth + " " + (now - beforeTime));
-            if (now >= mStopTime || evaluatedMove == null || evaluatedMove.getMove() == null) {
+            if (mListener == null) {
+                System.out.println(maxDepth + " " + (now - beforeTime) + " " + mEvaluator.getStatistics());
+            }
+            if (evaluatedMoves == null) {
                 break;
             }
 
-            bestEvaluatedMove = evaluatedMove;
+            bestEvaluatedMoves = evaluatedMoves;
+            if (mListener != null) {
+                for (int i = 0; i < evaluatedMoves.size(); i++) {
+                    mListener.iterationFinished(maxDepth, mSelDepth, i + 1, evaluatedMoves.get(i),
+                            mMovesConsidered, now - beforeTime);
+                }
+            }
+
+            if (now >= mStopTime || maxDepth >= mMaxDepth || mMovesConsidered >= mMaxNodes) {
+                break;
+            }
 
             maxDepth++;
         }
+        mSearching = false;
 
-        if (bestEvaluatedMove == null) {
-            // Can't really happen, it means that even at minimal depth we ran out
-            // of time. I suppose we could have been passed a very short time window,
-            // like when we're running out of time. We should force the minimal depth
-            // search to always complete.
-            bestEvaluatedMove = new EvaluatedMove(null, 0, null);
+        if (bestEvaluatedMoves == null) {
+            // No legal moves.
+            bestEvaluatedMoves = Collections.singletonList(new EvaluatedMove(null, 0, null));
         }
+        long afterTime = System.currentTimeMillis();
 
-        Move move = bestEvaluatedMove.getMove();
-        if (move != null) {
-            mGame.addMove(move);
+        return new Result(bestEvaluatedMoves, afterTime - beforeTime, mMovesConsidered,
+                mEvaluator.getStatistics());
+    }
+
+    /**
+     * Search to a fixed depth with no time limit and return the result without
+     * making the move. Useful for comparing searches, since the result doesn't
+     * depend on the speed of the machine.
+     */
+    public Result searchToDepth(int maxDepth) {
+        long beforeTime = System.currentTimeMillis();
+        mStopRequested = false;
+        mMovesConsidered = 0;
+        mEvaluator.getStatistics().clear();
+        mStopTime = Long.MAX_VALUE;
+
+        List<EvaluatedMove> evaluatedMoves = searchRoot(maxDepth);
+        if (evaluatedMoves == null) {
+            // No legal moves.
+            evaluatedMoves = Collections.singletonList(new EvaluatedMove(null, 0, null));
         }
         long afterTime = System.currentTimeMillis();
 
-        return new Result(bestEvaluatedMove, afterTime - beforeTime, mMovesConsidered);
+        return new Result(evaluatedMoves, afterTime - beforeTime, mMovesConsidered,
+                mEvaluator.getStatistics());
     }
 
     /**
-     * Make a move for this particular side.
-     *
-     * @param color is 1 for the top-level side being moved, -1 for the other
-     * side. This is not related to "side".
+     * Search the root to the depth once per principal variation, each time
+     * excluding the first moves of the ones already found. The evaluation cache
+     * carries over from one to the next. Returns null if we ran out of time or
+     * there are no legal moves.
+     */
+    private List<EvaluatedMove> searchRoot(int maxDepth) {
+        List<EvaluatedMove> evaluatedMoves = new ArrayList<EvaluatedMove>(mMultiPv);
+
+        // Each variation can't score better than the one before, so that's an
+        // upper bound for the search window.
+        int beta = INFINITY;
+        mExcludedRootMoves.clear();
+        try {
+            while (evaluatedMoves.size() < mMultiPv) {
+                EvaluatedMove evaluatedMove = getBestMove(0, maxDepth, mSide,
+                        new ArrayList<Move>(), -INFINITY, beta, false, false);
+                if (evaluatedMove == null) {
+                    // Out of time.
+                    return null;
+                }
+                if (evaluatedMove.getMove() == null) {
+                    // No moves left.
+                    break;
+                }
+
+                evaluatedMoves.add(evaluatedMove);
+                mExcludedRootMoves.add(evaluatedMove.getMove());
+                beta = evaluatedMove.getScore() + 1;
+            }
+        } finally {
+            mExcludedRootMoves.clear();
+        }
+
+        return evaluatedMoves.isEmpty() ? null : evaluatedMoves;
+    }
+
+    /**
+     * Make a move for this particular side. Scores are from the point of view
+     * of side.
      */
-    private EvaluatedMove getBestMove(double boardValue, int depth, int maxDepth, int side,
-            List<Move> allMoves, double alpha, double beta, boolean noisyMove,
-            boolean noisyCheckMove, int color) {
+    private EvaluatedMove getBestMove(int depth, int maxDepth, int side,
+            List<Move> allMoves, int alpha, int beta, boolean noisyMove,
+            boolean noisyCheckMove) {
+
+        if (depth > mSelDepth) {
+            mSelDepth = depth;
+        }
+
+        // Neither side can mate, no need to search further.
+        if (depth > 0 && MaterialTable.isDraw(mBoard.getMaterialKey())) {
+            return new EvaluatedMove(null, 0, null);
+        }
+
+        // Known result, cut off the subtree. Only right after a capture or pawn move,
+        // when we enter a new ending. Within an ending a win/draw/loss table can't
+        // tell us how to make progress, so we search it normally.
+        if (depth > 0 && mBitbases != null && isZeroingMove(allMoves.get(allMoves.size() - 1))) {
+            int result = mBitbases.probe(mBoard, side);
+            if (result == Bitbases.DRAW) {
+                return new EvaluatedMove(null, 0, null);
+            } else if (result == Bitbases.WIN || result == Bitbases.LOSS) {
+                int score = BITBASE_WIN - depth;
+                if (result == Bitbases.LOSS) {
+                    score = -score;
+                }
+                return new EvaluatedMove(null, score + mEvaluator.evaluate(mBoard, side), null);
+            }
+        }
 
         // Cap the search at a depth, unless the last move is noisy.
         // See http://en.wikipedia.org/wiki/Quiescence_search
         if (depth >= maxDepth && (!noisyMove || depth >= maxDepth*2)) {
-            return new EvaluatedMove(null, color*boardValue, null);
-        }
+            int score = mEvaluator.evaluate(mBoard, side, alpha, beta);
 
-        if (mMovesConsidered % 10000 == 0) {
-            long now = System.currentTimeMillis();
-            if (now > mStopTime) {
-                // Return an error, we know nothing about this node.
-                return null;
+            // Break ties between otherwise equal lines.
+            if (!allMoves.isEmpty()) {
+                score += getTieBreak(allMoves.get(allMoves.size() - 1), depth);
             }
 
-            if (false && now - mTimeOfLastPrint >= 1000) {
-                System.out.printf("Considering moves %s (%.2f)%n", allMoves, alpha);
-                mTimeOfLastPrint = now;
-            }
+            return new EvaluatedMove(null, score, null);
         }
 
         // Generate all legal moves for this side.
@@ -128,8 +395,8 @@ public class ComputerPlayer {
         // If we have no legal moves left, then it's either stalemate or checkmate.
         if (moveList.isEmpty()) {
             if (mBoard.getCheckIndex(side) != -1) {
-                // Checkmate. Add 10 points per ply so that we checkmate as soon as possible.
-                return new EvaluatedMove(null, -1000 + depth*10, null);
+                // Checkmate. Prefer the shortest mate.
+                return new EvaluatedMove(null, -MATE_SCORE + depth, null);
             } else {
                 // Stalemate.
                 // XXX here this should be absolute zero so that our decision depends
@@ -145,42 +412,43 @@ public class ComputerPlayer {
         Move bestMove = null;
         EvaluatedMove bestSubEvaluatedMove = null;
 
-        for (Move move : moveList) {
+        for (int i = 0; i < moveList.size(); i++) {
+            Move move = moveList.get(i);
+            if (depth == 0 && !mExcludedRootMoves.isEmpty() && isExcludedRootMove(move)) {
+                continue;
+            }
             mMovesConsidered++;
-
-            allMoves.add(move);
-
-            double moveBoardValue = boardValue;
-
-            // Account for piece loss.
-            noisyMove = noisyCheckMove; // Response to being in check is also noisy.
-            Piece piece = move.getCapturedPiece();
-            if (piece != Piece.EMPTY) {
-                moveBoardValue += color*piece.getPieceType().getValue();
-                noisyMove = true;
+            if (depth == 0) {
+                mRootMove = move;
+                mRootMoveNumber = i + 1;
             }
-            piece = move.getPromotedPiece();
-            if (piece != Piece.EMPTY) {
-                moveBoardValue -= color*PieceType.PAWN.getValue();
-                moveBoardValue += color*piece.getPieceType().getValue();
-                noisyMove = true;
+            if (mMovesConsidered >= mMaxNodes && maxDepth > MIN_DEPTH) {
+                return null;
             }
 
-            if (mBoard.isEndGame()) {
-                // Advance pawns in endgame.
-                if (move.getMovingPiece().getPieceType() == PieceType.PAWN) {
-                    moveBoardValue += color*0.3;
+            // Checked here rather than on entry, since most nodes are leaves
+            // that return before getting that far.
+            if (mMovesConsidered % 10000 == 0) {
+                long now = System.currentTimeMillis();
+                if ((mStopRequested || now > mStopTime) && maxDepth > MIN_DEPTH) {
+                    // Return an error, we know nothing about this node.
+                    return null;
+                }
+
+                if (mListener != null && now - mTimeOfLastPrint >= 1000) {
+                    mListener.searching(mRootMove, mRootMoveNumber, mMovesConsidered,
+                            now - mStartTime);
+                    mTimeOfLastPrint = now;
                 }
             }
 
-            // Add board position.
-            double fromBonus = move.getMovingPiece().getPositionBonus(move.getFromIndex());
-            double toBonus = move.getMovingPiece().getPositionBonus(move.getToIndex());
-            double capBonus = move.getCapturedPiece().getPositionBonus(move.getToIndex());
-            moveBoardValue += color*(toBonus - fromBonus + capBonus);
+            allMoves.add(move);
 
-            // Add a bit of randomness to break ties.
-            moveBoardValue += Math.random()*0.001 - 0.0005;
+            // Captures and promotions are noisy.
+            noisyMove = noisyCheckMove; // Response to being in check is also noisy.
+            if (move.getCapturedPiece() != Piece.EMPTY || move.getPromotedPiece() != Piece.EMPTY) {
+                noisyMove = true;
+            }
 
             mGame.addMove(move);
             boolean checkMove = false;
@@ -188,16 +456,15 @@ public class ComputerPlayer {
                 noisyMove = true;
                 checkMove = true;
             }
-            EvaluatedMove subEvaluatedMove = getBestMove(moveBoardValue, depth + 1, maxDepth,
-                    Side.getOtherSide(side), allMoves, -beta, -alpha, noisyMove, checkMove,
-                    -color);
+            EvaluatedMove subEvaluatedMove = getBestMove(depth + 1, maxDepth,
+                    Side.getOtherSide(side), allMoves, -beta, -alpha, noisyMove, checkMove);
             mGame.undoMove();
             if (subEvaluatedMove == null) {
                 // Out of time.
                 return null;
             }
             // A good score for them is a bad score for us.
-            double moveAlpha = -subEvaluatedMove.mScore;
+            int moveAlpha = -subEvaluatedMove.mScore;
 
             /// System.out.println("Move " + move + " has score " + score);
 
@@ -218,15 +485,75 @@ public class ComputerPlayer {
         return new EvaluatedMove(bestMove, alpha, bestSubEvaluatedMove);
     }
 
+    /**
+     * Whether an earlier principal variation of this iteration starts with the move.
+     */
+    private boolean isExcludedRootMove(Move move) {
+        int packedMove = move.pack();
+        for (Move excludedMove : mExcludedRootMoves) {
+            if (excludedMove.pack() == packedMove) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether the move is a capture or pawn move, which can't be undone.
+     */
+    private static boolean isZeroingMove(Move move) {
+        return move.getCapturedPiece() != Piece.EMPTY
+            || move.getMovingPiece().getPieceType() == PieceType.PAWN;
+    }
+
+    /**
+     * Return 0 or 1 centipawn, chosen by hashing the move, the depth, and the seed.
+     * This replaces random noise so that searches are reproducible.
+     */
+    private int getTieBreak(Move move, int depth) {
+        long hash = mSeed + (move.getFromIndex() | move.getToIndex() << 6 | depth << 12);
+
+        // SplitMix64 finalizer.
+        hash *= 0x9E3779B97F4A7C15L;
+        hash = (hash ^ (hash >>> 30))*0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27))*0x94D049BB133111EBL;
+        hash ^= hash >>> 31;
+
+        return (int) (hash >>> 63);
+    }
+
+    /**
+     * Receives the progress of a search, on the searching thread.
+     */
+    public interface Listener {
+        /**
+         * An iteration of the iterative deepening completed.
+         *
+         * @param selDepth the deepest ply reached, including the quiescence search.
+         * @param multiPv which principal variation this is, starting at 1 for the best.
+         * @param evaluatedMove the best move and the principal variation.
+         */
+        void iterationFinished(int depth, int selDepth, int multiPv,
+                EvaluatedMove evaluatedMove, long movesConsidered, long elapsedTime);
+
+        /**
+         * Called about once a second with the root move being searched.
+         *
+         * @param moveNumber the index of the move in the search order, starting at 1.
+         */
+        void searching(Move move, int moveNumber, long movesConsidered, long elapsedTime);
+    }
+
     /**
      * Stores a move and its score.
      */
     public static class EvaluatedMove {
         private Move mMove;
-        private double mScore;
+        private int mScore;
         private EvaluatedMove mNextMove;
 
-        public EvaluatedMove(Move move, double score, EvaluatedMove nextMove) {
+        public EvaluatedMove(Move move, int score, EvaluatedMove nextMove) {
             mMove = move;
             mScore = score;
             mNextMove = nextMove;
@@ -241,13 +568,14 @@ public class ComputerPlayer {
         }
 
         /**
-         * Positive scores are good for the side making the move.
+         * Positive scores are good for the side making the move. The score is
+         * in centipawns.
          */
-        public void setScore(double score) {
+        public void setScore(int score) {
             mScore = score;
         }
 
-        public double getScore() {
+        public int getScore() {
             return mScore;
         }
 
@@ -266,15 +594,29 @@ public class ComputerPlayer {
     /**
      * Stores the result of the computer's move.
      */
-    public class Result {
+    public static class Result {
         public final EvaluatedMove mEvaluatedMove;
+        /**
+         * All the principal variations found, starting with mEvaluatedMove.
+         */
+        public final List<EvaluatedMove> mEvaluatedMoves;
         public final long mElapsedTime;
         public final long mMovesConsidered;
+        public final EvaluationStatistics mEvaluationStatistics;
+
+        public Result(EvaluatedMove evaluatedMove, long elapsedTime, long movesConsidered,
+                EvaluationStatistics evaluationStatistics) {
+            this(Collections.singletonList(evaluatedMove), elapsedTime, movesConsidered,
+                    evaluationStatistics);
+        }
 
-        public Result(EvaluatedMove evaluatedMove, long elapsedTime, long movesConsidered) {
-            mEvaluatedMove = evaluatedMove;
+        public Result(List<EvaluatedMove> evaluatedMoves, long elapsedTime, long movesConsidered,
+                EvaluationStatistics evaluationStatistics) {
+            mEvaluatedMove = evaluatedMoves.get(0);
+            mEvaluatedMoves = evaluatedMoves;
             mElapsedTime = elapsedTime;
             mMovesConsidered = movesConsidered;
+            mEvaluationStatistics = evaluationStatistics;
         }
     }
 }
@@ -0,0 +1,121 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+/**
+ * Direct-mapped cache of full evaluations, indexed by the position's Zobrist hash.
+ * Each entry is two longs in one array: the hash XORed with the data, and the
+ * data. Several threads can share a cache without locking. A torn write (one
+ * thread's key with another's data) fails the XOR check and reads as a miss.
+ *
+ * https://chessprogramming.wikispaces.com/Shared+Hash+Table#Lockless
+ */
+public class EvaluationCache {
+    public static final int DEFAULT_ENTRY_COUNT = 1 << 16;
+    private final long[] mTable;
+    private final int mMask;
+
+    public EvaluationCache() {
+        this(DEFAULT_ENTRY_COUNT);
+    }
+
+    /**
+     * Create a cache with the given number of entries, rounded up to a power of two.
+     */
+    public EvaluationCache(int entryCount) {
+        int size = Integer.highestOneBit(Math.max(entryCount - 1, 1)) << 1;
+
+        mTable = new long[size*2];
+        mMask = size - 1;
+
+        clear();
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        // Make every entry fail to match, even a zero hash.
+        for (int i = 0; i < mTable.length; i += 2) {
+            mTable[i] = 1;
+            mTable[i + 1] = 0;
+        }
+    }
+
+    /**
+     * Return the number of entries in the cache.
+     */
+    public int getEntryCount() {
+        return mMask + 1;
+    }
+
+    /**
+     * Return how full the cache is, in thousandths, by sampling the first thousand
+     * entries. This is what UCI reports as "hashfull".
+     */
+    public int getPermillFull() {
+        int sampleCount = Math.min(1000, mMask + 1);
+        int usedCount = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            if (isHit(mTable[i*2 + 1])) {
+                usedCount++;
+            }
+        }
+
+        return usedCount*1000/sampleCount;
+    }
+
+    /**
+     * Look up the evaluation of the position with this hash. Returns the score
+     * (from white's point of view) in the low 32 bits and 1 in bit 32 if found,
+     * otherwise returns 0. Use isHit() and getScore() to unpack.
+     */
+    public long probe(long hash) {
+        int slot = ((int) hash & mMask)*2;
+        long check = mTable[slot];
+        long data = mTable[slot + 1];
+
+        return (check ^ data) == hash ? data : 0;
+    }
+
+    /**
+     * Whether the value returned by probe() is a hit.
+     */
+    public static boolean isHit(long probe) {
+        return (probe & (1L << 32)) != 0;
+    }
+
+    /**
+     * The score of the value returned by probe(), if it was a hit.
+     */
+    public static int getScore(long probe) {
+        return (int) probe;
+    }
+
+    /**
+     * Store the evaluation (from white's point of view) of the position with this hash.
+     */
+    public void store(long hash, int score) {
+        int slot = ((int) hash & mMask)*2;
+        long data = (1L << 32) | (score & 0xFFFFFFFFL);
+
+        mTable[slot] = hash ^ data;
+        mTable[slot + 1] = data;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+/**
+ * Counters kept by an Evaluator, for reporting how well its caches are working.
+ */
+public class EvaluationStatistics {
+    private long mPawnHashProbes;
+    private long mPawnHashHits;
+    private long mEvaluationCacheProbes;
+    private long mEvaluationCacheHits;
+    private long mEvaluations;
+    private long mLazyExits;
+
+    /**
+     * Count a pawn hash table lookup.
+     */
+    public void countPawnHashProbe(boolean hit) {
+        mPawnHashProbes++;
+        if (hit) {
+            mPawnHashHits++;
+        }
+    }
+
+    /**
+     * Return the fraction (0 to 1) of pawn hash table lookups that were hits.
+     */
+    public double getPawnHashHitRate() {
+        return mPawnHashProbes == 0 ? 0 : (double) mPawnHashHits/mPawnHashProbes;
+    }
+
+    /**
+     * Count an evaluation cache lookup.
+     */
+    public void countEvaluationCacheProbe(boolean hit) {
+        mEvaluationCacheProbes++;
+        if (hit) {
+            mEvaluationCacheHits++;
+        }
+    }
+
+    /**
+     * Return the fraction (0 to 1) of evaluation cache lookups that were hits.
+     */
+    public double getEvaluationCacheHitRate() {
+        return mEvaluationCacheProbes == 0 ? 0 : (double) mEvaluationCacheHits/mEvaluationCacheProbes;
+    }
+
+    /**
+     * Count an evaluation that wasn't in the cache, and whether it exited early
+     * because the partial score was far outside the search window.
+     */
+    public void countEvaluation(boolean lazyExit) {
+        mEvaluations++;
+        if (lazyExit) {
+            mLazyExits++;
+        }
+    }
+
+    /**
+     * Return the fraction (0 to 1) of evaluations that exited early.
+     */
+    public double getLazyExitRate() {
+        return mEvaluations == 0 ? 0 : (double) mLazyExits/mEvaluations;
+    }
+
+    /**
+     * Add the counts of another set of statistics to this one, such as from
+     * another search thread.
+     */
+    public void add(EvaluationStatistics other) {
+        mPawnHashProbes += other.mPawnHashProbes;
+        mPawnHashHits += other.mPawnHashHits;
+        mEvaluationCacheProbes += other.mEvaluationCacheProbes;
+        mEvaluationCacheHits += other.mEvaluationCacheHits;
+        mEvaluations += other.mEvaluations;
+        mLazyExits += other.mLazyExits;
+    }
+
+    /**
+     * Reset all counters to zero.
+     */
+    public void clear() {
+        mPawnHashProbes = 0;
+        mPawnHashHits = 0;
+        mEvaluationCacheProbes = 0;
+        mEvaluationCacheHits = 0;
+        mEvaluations = 0;
+        mLazyExits = 0;
+    }
+
+    @Override // Object
+    public String toString() {
+        return String.format("pawn hash %.1f%%, eval cache %.1f%%, lazy exit %.1f%%",
+                getPawnHashHitRate()*100, getEvaluationCacheHitRate()*100,
+                getLazyExitRate()*100);
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+/**
+ * Static evaluation of a board. Starts with the material and position bonus that
+ * the board keeps up to date, and adds pawn structure (doubled, isolated, passed,
+ * and backward pawns), which is cached in a pawn hash table since it's expensive
+ * and changes rarely. Then adds mobility and king safety, computed from the
+ * board's attack sets. Full evaluations are cached by position hash in an
+ * EvaluationCache, which several evaluators can share. The evaluator itself is
+ * not thread-safe, each search thread should have its own.
+ *
+ * Material that needs special knowledge, such as a rook against a bare king or
+ * not enough material to mate, is recognized through the MaterialTable and
+ * evaluated by a specialized function.
+ *
+ * Evaluation is staged. The board's material and position score is nearly free,
+ * and if it's so far outside the search window that the other terms can't bring
+ * it back in, we return it without computing the rest.
+ *
+ * Pawn masks are longs where bit N is board index N, so a8 is bit 0 and h1 is bit 63.
+ */
+public class Evaluator {
+    private static final int DEFAULT_PAWN_HASH_ENTRIES = 1 << 14;
+    private static final int DOUBLED_PAWN_PENALTY = 10;
+    private static final int ISOLATED_PAWN_PENALTY = 15;
+    private static final int BACKWARD_PAWN_PENALTY = 8;
+    /**
+     * Bonus for passed pawns, indexed by rank from the pawn's point of view.
+     */
+    private static final int[] PASSED_PAWN_BONUS = new int[] { 0, 0, 5, 10, 15, 25, 40, 60, 0 };
+    /**
+     * Extra bonus per rank for a passed pawn with nothing in front of it, in the end game.
+     */
+    private static final int FREE_PASSED_PAWN_BONUS = 8;
+    /**
+     * If the first stage is more than this outside the search window, we exit early.
+     * This is a measured margin, not a bound: king danger alone can reach 500, and
+     * mobility and passed pawns add to it. Over 300,000 positions from random
+     * games the later terms never changed the score by more than 593, and moved it
+     * by more than 500 in only 0.16% of them.
+     */
+    private static final int LAZY_EVALUATION_MARGIN = 600;
+    /**
+     * Bonus per square a piece can move to (other than squares attacked by enemy
+     * pawns), beyond a typical number of squares for that piece. Indexed by
+     * Piece.getIndex() of the white piece.
+     */
+    private static final int[] MOBILITY_WEIGHT = new int[] { 0, 5, 4, 2, 1, 0 };
+    private static final int[] MOBILITY_BASELINE = new int[] { 0, 6, 4, 7, 13, 0 };
+    /**
+     * How much each piece adds to the danger of the enemy king for each square
+     * it attacks next to (or on) the king.
+     */
+    private static final int[] KING_ATTACK_WEIGHT = new int[] { 0, 2, 2, 3, 5, 0 };
+    /**
+     * Penalty for king danger, indexed by the total attack weight. Grows faster
+     * than linearly, since coordinated attacks are much more dangerous. Applied
+     * in full in the middle game and not at all in the end game.
+     */
+    private static final int[] KING_DANGER_PENALTY = new int[64];
+    /**
+     * Bonus for reaching an endgame that's a known win, so that the search prefers
+     * simplifying into it.
+     */
+    private static final int KNOWN_WIN_BONUS = 1000;
+    /**
+     * Bonus for each step the losing king is from the center, and for each step
+     * the kings are closer together, when driving a bare king to mate.
+     */
+    private static final int PUSH_TO_EDGE_WEIGHT = 20;
+    private static final int PUSH_CLOSE_WEIGHT = 10;
+    /**
+     * Bonus for each step closer the bare king is to a corner of the bishop's color.
+     */
+    private static final int PUSH_TO_CORNER_WEIGHT = 40;
+    private static final int KPK_RANK_BONUS = 10;
+
+    private static final long[] FILE_MASK = new long[Board.SIZE];
+    private static final long[] ADJACENT_FILES_MASK = new long[Board.SIZE];
+    /**
+     * Squares in front of a pawn on the same file, by side and index.
+     */
+    private static final long[][] FORWARD_MASK = new long[2][Board.NUM_SQUARES];
+    /**
+     * Squares in front of a pawn on the same and adjacent files. If no enemy pawn
+     * is there, the pawn is passed.
+     */
+    private static final long[][] PASSED_MASK = new long[2][Board.NUM_SQUARES];
+    /**
+     * Squares on adjacent files, on the same rank or behind. If no friendly pawn
+     * is there, no pawn can ever defend this one.
+     */
+    private static final long[][] SUPPORT_MASK = new long[2][Board.NUM_SQUARES];
+    /**
+     * Squares attacked by a pawn.
+     */
+    private static final long[][] PAWN_ATTACK_MASK = new long[2][Board.NUM_SQUARES];
+
+    static {
+        for (int i = 0; i < KING_DANGER_PENALTY.length; i++) {
+            KING_DANGER_PENALTY[i] = Math.min(i*i*2, 500);
+        }
+
+        for (int index = 0; index < Board.NUM_SQUARES; index++) {
+            int file = Board.getFile(index);
+            FILE_MASK[file - 1] |= 1L << index;
+        }
+        for (int file = 1; file <= Board.SIZE; file++) {
+            if (file > 1) {
+                ADJACENT_FILES_MASK[file - 1] |= FILE_MASK[file - 2];
+            }
+            if (file < Board.SIZE) {
+                ADJACENT_FILES_MASK[file - 1] |= FILE_MASK[file];
+            }
+        }
+
+        for (int side = Side.WHITE; side <= Side.BLACK; side++) {
+            int rankDirection = side == Side.WHITE ? 1 : -1;
+
+            for (int index = 0; index < Board.NUM_SQUARES; index++) {
+                int file = Board.getFile(index);
+                int rank = Board.getRank(index);
+
+                for (int otherIndex = 0; otherIndex < Board.NUM_SQUARES; otherIndex++) {
+                    int fileDistance = Math.abs(Board.getFile(otherIndex) - file);
+                    int rankAhead = (Board.getRank(otherIndex) - rank)*rankDirection;
+                    long bit = 1L << otherIndex;
+
+                    if (rankAhead > 0 && fileDistance == 0) {
+                        FORWARD_MASK[side][index] |= bit;
+                    }
+                    if (rankAhead > 0 && fileDistance <= 1) {
+                        PASSED_MASK[side][index] |= bit;
+                    }
+                    if (rankAhead <= 0 && fileDistance == 1) {
+                        SUPPORT_MASK[side][index] |= bit;
+                    }
+                    if (rankAhead == 1 && fileDistance == 1) {
+                        PAWN_ATTACK_MASK[side][index] |= bit;
+                    }
+                }
+            }
+        }
+    }
+
+    private final PawnHashTable mPawnHashTable;
+    private final EvaluationCache mEvaluationCache;
+    private final EvaluationStatistics mStatistics = new EvaluationStatistics();
+    private boolean mLazyEvaluation = true;
+
+    /**
+     * Create an evaluator with its own evaluation cache.
+     */
+    public Evaluator() {
+        this(new EvaluationCache());
+    }
+
+    /**
+     * Create an evaluator that uses the specified (possibly shared) evaluation cache.
+     */
+    public Evaluator(EvaluationCache evaluationCache) {
+        mPawnHashTable = new PawnHashTable(DEFAULT_PAWN_HASH_ENTRIES);
+        mEvaluationCache = evaluationCache;
+    }
+
+    /**
+     * Return the cache of full evaluations, which may be shared with other evaluators.
+     */
+    public EvaluationCache getEvaluationCache() {
+        return mEvaluationCache;
+    }
+
+    /**
+     * Whether to skip the expensive terms when the score is far outside the search
+     * window. Defaults to true. Turn off to measure how much accuracy it costs.
+     */
+    public void setLazyEvaluation(boolean lazyEvaluation) {
+        mLazyEvaluation = lazyEvaluation;
+    }
+
+    /**
+     * Return the counters for the caches of this evaluator.
+     */
+    public EvaluationStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * Return the evaluation of the board in centipawns from the point of view of side.
+     */
+    public int evaluate(Board board, int side) {
+        return evaluate(board, side, -ComputerPlayer.INFINITY, ComputerPlayer.INFINITY);
+    }
+
+    /**
+     * Return the evaluation of the board in centipawns from the point of view of side.
+     * If the score is clearly at or below alpha, or at or above beta, a rougher
+     * score on the same side of the window may be returned.
+     */
+    public int evaluate(Board board, int side, int alpha, int beta) {
+        int entry = MaterialTable.getEntry(board.getMaterialKey());
+        int recognizer = MaterialTable.getRecognizer(entry);
+
+        // First stage, kept up to date by the board. Can't exit early if the
+        // material is scaled down, since the final score might be inside the window.
+        // This is checked before the cache, even though the cache may have the
+        // exact score, so that the result doesn't depend on what's been cached,
+        // and searches limited by depth or nodes always give the same result.
+        int score = board.evaluate(Side.WHITE) + MaterialTable.getImbalance(entry);
+        int sideScore = side == Side.WHITE ? score : -score;
+        boolean scaled = MaterialTable.getScale(entry, Side.WHITE) != MaterialTable.NORMAL_SCALE
+            || MaterialTable.getScale(entry, Side.BLACK) != MaterialTable.NORMAL_SCALE;
+        if (mLazyEvaluation && recognizer == MaterialTable.NONE && !scaled
+                && (sideScore + LAZY_EVALUATION_MARGIN <= alpha
+                    || sideScore - LAZY_EVALUATION_MARGIN >= beta)) {
+
+            // Not cached, since it's not the real score.
+            mStatistics.countEvaluation(true);
+            return sideScore;
+        }
+
+        // The evaluation doesn't depend on whose turn it is, so take the side
+        // out of the hash and cache the score from white's point of view. The
+        // exception is KPK, where the rule of the square depends on who moves.
+        long hash = board.getHash();
+        if (board.getSide() == Side.BLACK && recognizer != MaterialTable.KPK) {
+            hash ^= Zobrist.SIDE_KEY;
+        }
+        long probe = mEvaluationCache.probe(hash);
+        boolean hit = EvaluationCache.isHit(probe);
+        mStatistics.countEvaluationCacheProbe(hit);
+
+        if (hit) {
+            score = EvaluationCache.getScore(probe);
+            return side == Side.WHITE ? score : -score;
+        }
+
+        if (recognizer != MaterialTable.NONE) {
+            mStatistics.countEvaluation(false);
+            score = evaluateEndgame(board, recognizer, MaterialTable.getStrongSide(entry));
+            mEvaluationCache.store(hash, score);
+            return side == Side.WHITE ? score : -score;
+        }
+        mStatistics.countEvaluation(false);
+
+        score += evaluatePawns(board) + evaluatePieces(board);
+        if (scaled) {
+            score = score*MaterialTable.getScale(entry, score > 0 ? Side.WHITE : Side.BLACK)
+                /MaterialTable.NORMAL_SCALE;
+        }
+        mEvaluationCache.store(hash, score);
+
+        return side == Side.WHITE ? score : -score;
+    }
+
+    /**
+     * Return the pawn evaluation in centipawns from white's point of view. The
+     * structure itself comes from the pawn hash table when possible. The bonus
+     * for passed pawns that have a free path depends on the other pieces, so it's
+     * computed every time from the cached passed pawn mask.
+     */
+    private int evaluatePawns(Board board) {
+        long pawnHash = board.getPawnHash();
+        int slot = mPawnHashTable.find(pawnHash);
+        mStatistics.countPawnHashProbe(slot != -1);
+        if (slot == -1) {
+            slot = computePawnStructure(board, pawnHash);
+        }
+
+        int score = mPawnHashTable.getScore(slot);
+
+        // Passed pawns with nothing in front of them, weighted toward the end game.
+        long passedPawns = mPawnHashTable.getPassedPawns(slot);
+        if (passedPawns != 0) {
+            int freeBonus = 0;
+            while (passedPawns != 0) {
+                int index = Long.numberOfTrailingZeros(passedPawns);
+                passedPawns &= passedPawns - 1;
+
+                Piece pawn = board.getPiece(index);
+                int side = pawn.getSide();
+                if (isPathFree(board, FORWARD_MASK[side][index])) {
+                    int bonus = FREE_PASSED_PAWN_BONUS*getRelativeRank(index, side);
+                    freeBonus += side == Side.WHITE ? bonus : -bonus;
+                }
+            }
+            score += freeBonus*(PieceType.MAX_PHASE - board.getPhase())/PieceType.MAX_PHASE;
+        }
+
+        return score;
+    }
+
+    /**
+     * Return the score in centipawns from white's point of view of material that
+     * the MaterialTable recognized. The strong side is the one with extra material.
+     */
+    private int evaluateEndgame(Board board, int recognizer, int strongSide) {
+        int weakSide = Side.getOtherSide(strongSide);
+        int strongKing = board.getKingIndex(strongSide);
+        int weakKing = board.getKingIndex(weakSide);
+        int score;
+
+        if (recognizer == MaterialTable.DRAW) {
+            return 0;
+        } else if (strongKing == -1 || weakKing == -1) {
+            // Puzzle without kings.
+            score = board.evaluate(strongSide);
+        } else if (recognizer == MaterialTable.KXK) {
+            // Drive the king to the edge and bring ours close to mate it.
+            score = board.evaluate(strongSide) + KNOWN_WIN_BONUS
+                + PUSH_TO_EDGE_WEIGHT*getCenterDistance(weakKing)
+                + PUSH_CLOSE_WEIGHT*(Board.SIZE - getDistance(strongKing, weakKing));
+        } else if (recognizer == MaterialTable.KBNK) {
+            // Can only mate in a corner of the bishop's color.
+            long bishops = board.getPieceBits(strongSide == Side.WHITE
+                    ? Piece.WHITE_BISHOP : Piece.BLACK_BISHOP);
+            int bishop = Long.numberOfTrailingZeros(bishops);
+            boolean darkBishop = isDarkSquare(bishop);
+            int cornerDistance = Math.min(
+                    getDistance(weakKing, darkBishop ? Board.getIndex(1, 1) : Board.getIndex(1, 8)),
+                    getDistance(weakKing, darkBishop ? Board.getIndex(8, 8) : Board.getIndex(8, 1)));
+
+            score = board.evaluate(strongSide) + KNOWN_WIN_BONUS
+                + PUSH_TO_CORNER_WEIGHT*(Board.SIZE - cornerDistance)
+                + PUSH_CLOSE_WEIGHT*(Board.SIZE - getDistance(strongKing, weakKing));
+        } else if (recognizer == MaterialTable.KPK) {
+            score = evaluateKpk(board, strongSide, strongKing, weakKing);
+        } else {
+            throw new IllegalStateException("Unknown endgame recognizer " + recognizer);
+        }
+
+        return strongSide == Side.WHITE ? score : -score;
+    }
+
+    /**
+     * Return the score of king and pawn against king in centipawns from the point
+     * of view of the strong side. Only recognizes the clearest wins and draws.
+     */
+    private int evaluateKpk(Board board, int strongSide, int strongKing, int weakKing) {
+        int weakSide = Side.getOtherSide(strongSide);
+        int pawn = Long.numberOfTrailingZeros(board.getPieceBits(strongSide == Side.WHITE
+                    ? Piece.WHITE_PAWN : Piece.BLACK_PAWN));
+        int rank = getRelativeRank(pawn, strongSide);
+        int file = Board.getFile(pawn);
+        int promotion = Board.getIndex(file, strongSide == Side.WHITE ? Board.SIZE : 1);
+
+        // Rule of the square: the king can't catch the pawn.
+        int pawnMoves = Math.min(Board.SIZE - rank, 5);
+        int kingMoves = getDistance(weakKing, promotion);
+        if (board.getSide() == weakSide) {
+            kingMoves--;
+        }
+        if (kingMoves > pawnMoves && (FORWARD_MASK[strongSide][pawn] & 1L << strongKing) == 0) {
+            return KNOWN_WIN_BONUS + PieceType.PAWN.getValue() + KPK_RANK_BONUS*rank;
+        }
+
+        // Rook pawn with the king in the corner.
+        if ((file == 1 || file == Board.SIZE) && getDistance(weakKing, promotion) <= 1) {
+            return 0;
+        }
+
+        // King in front of the pawn, and ours isn't.
+        if ((FORWARD_MASK[strongSide][pawn] & 1L << weakKing) != 0
+                && getRelativeRank(strongKing, strongSide) <= rank) {
+
+            return KPK_RANK_BONUS;
+        }
+
+        return PieceType.PAWN.getValue() + KPK_RANK_BONUS*rank
+            + PUSH_CLOSE_WEIGHT*(Board.SIZE - getDistance(strongKing, pawn));
+    }
+
+    /**
+     * Return the mobility and king safety score in centipawns from white's point
+     * of view. Only counts attacked squares, it doesn't generate moves.
+     */
+    private int evaluatePieces(Board board) {
+        int phase = board.getPhase();
+        int score = 0;
+
+        for (int side = Side.WHITE; side <= Side.BLACK; side++) {
+            int otherSide = Side.getOtherSide(side);
+            long own = board.getOccupied(side);
+            long safe = ~own & ~board.getPawnAttacks(otherSide);
+            long kingZone = 0;
+            int kingIndex = Long.numberOfTrailingZeros(board.getPieceBits(
+                        otherSide == Side.WHITE ? Piece.WHITE_KING : Piece.BLACK_KING));
+            if (kingIndex != 64) {
+                kingZone = Board.getKingAttacks(kingIndex) | 1L << kingIndex;
+            }
+
+            int mobility = 0;
+            int kingAttackers = 0;
+            int kingAttackWeight = 0;
+
+            long pieces = own;
+            while (pieces != 0) {
+                int index = Long.numberOfTrailingZeros(pieces);
+                pieces &= pieces - 1;
+
+                // Same for white and black pieces.
+                int pieceIndex = board.getPiece(index).getIndex() % (Piece.NUM_PIECES/2);
+                if (MOBILITY_WEIGHT[pieceIndex] == 0) {
+                    // Pawn or king.
+                    continue;
+                }
+
+                long attacks = board.getAttacks(index);
+                mobility += MOBILITY_WEIGHT[pieceIndex]*
+                    (Long.bitCount(attacks & safe) - MOBILITY_BASELINE[pieceIndex]);
+
+                int kingAttacks = Long.bitCount(attacks & kingZone);
+                if (kingAttacks != 0) {
+                    kingAttackers++;
+                    kingAttackWeight += KING_ATTACK_WEIGHT[pieceIndex]*kingAttacks;
+                }
+            }
+
+            int sideScore = mobility;
+            // A single attacker isn't much of a threat.
+            if (kingAttackers >= 2) {
+                int penalty = KING_DANGER_PENALTY[Math.min(kingAttackWeight, KING_DANGER_PENALTY.length - 1)];
+                sideScore += penalty*phase/PieceType.MAX_PHASE;
+            }
+
+            score += side == Side.WHITE ? sideScore : -sideScore;
+        }
+
+        return score;
+    }
+
+    /**
+     * Compute the pawn structure score and passed pawns and store them in the
+     * pawn hash table. Returns the slot.
+     */
+    private int computePawnStructure(Board board, long pawnHash) {
+        long[] pawns = new long[2];
+        for (int index = 0; index < Board.NUM_SQUARES; index++) {
+            Piece piece = board.getPiece(index);
+            if (piece.getPieceType() == PieceType.PAWN) {
+                pawns[piece.getSide()] |= 1L << index;
+            }
+        }
+
+        int score = 0;
+        long passedPawns = 0;
+        for (int side = Side.WHITE; side <= Side.BLACK; side++) {
+            long ownPawns = pawns[side];
+            long enemyPawns = pawns[Side.getOtherSide(side)];
+            int sideScore = 0;
+
+            long remaining = ownPawns;
+            while (remaining != 0) {
+                int index = Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                int file = Board.getFile(index);
+
+                boolean doubled = (FORWARD_MASK[side][index] & ownPawns) != 0;
+                if (doubled) {
+                    // Penalize the rear pawn.
+                    sideScore -= DOUBLED_PAWN_PENALTY;
+                }
+
+                boolean isolated = (ADJACENT_FILES_MASK[file - 1] & ownPawns) == 0;
+                if (isolated) {
+                    sideScore -= ISOLATED_PAWN_PENALTY;
+                }
+
+                if (!doubled && (PASSED_MASK[side][index] & enemyPawns) == 0) {
+                    sideScore += PASSED_PAWN_BONUS[getRelativeRank(index, side)];
+                    passedPawns |= 1L << index;
+                } else if (!isolated && (SUPPORT_MASK[side][index] & ownPawns) == 0) {
+                    // Can't be defended by a pawn. It's backward if it also can't
+                    // safely advance.
+                    int stopIndex = Board.getRelativeIndex(index, 0,
+                            side == Side.WHITE ? 1 : -1);
+                    if (stopIndex != -1 && (PAWN_ATTACK_MASK[side][stopIndex] & enemyPawns) != 0) {
+                        sideScore -= BACKWARD_PAWN_PENALTY;
+                    }
+                }
+            }
+
+            score += side == Side.WHITE ? sideScore : -sideScore;
+        }
+
+        return mPawnHashTable.store(pawnHash, score, passedPawns);
+    }
+
+    /**
+     * Return whether all squares in the mask are empty.
+     */
+    private static boolean isPathFree(Board board, long mask) {
+        while (mask != 0) {
+            int index = Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            if (board.getPiece(index) != Piece.EMPTY) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the number of king moves between the two squares.
+     */
+    private static int getDistance(int index1, int index2) {
+        return Math.max(Math.abs(Board.getFile(index1) - Board.getFile(index2)),
+                Math.abs(Board.getRank(index1) - Board.getRank(index2)));
+    }
+
+    /**
+     * Return how far the square is from the four center squares, from 0 to 6.
+     */
+    private static int getCenterDistance(int index) {
+        int file = Board.getFile(index);
+        int rank = Board.getRank(index);
+
+        return Math.max(4 - file, file - 5) + Math.max(4 - rank, rank - 5);
+    }
+
+    /**
+     * Return whether the square is dark, like a1.
+     */
+    private static boolean isDarkSquare(int index) {
+        return (Board.getFile(index) + Board.getRank(index)) % 2 == 0;
+    }
+
+    /**
+     * Return the rank (1 to 8) of the index from the point of view of side.
+     */
+    private static int getRelativeRank(int index, int side) {
+        int rank = Board.getRank(index);
+
+        return side == Side.WHITE ? rank : Board.SIZE + 1 - rank;
+    }
+}
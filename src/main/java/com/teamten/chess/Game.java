@@ -21,11 +21,15 @@
 package com.teamten.chess;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.channels.Channels;
 
 import java.text.SimpleDateFormat;
 
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Stack;
 
 /**
@@ -36,6 +40,11 @@ public class Game {
     private final Stack<Move> mMoveList = new Stack<Move>();
     private final Stack<Move> mRedoList = new Stack<Move>();
     private final Board mBoard;
+    /**
+     * Index of the first move added by addMovesTrusted() whose check flag hasn't
+     * been computed yet, or -1 if all flags are known.
+     */
+    private int mFirstUnknownCheck = -1;
 
     public Game(Board board) {
         mBoard = board;
@@ -59,9 +68,31 @@ public class Game {
      * Get the move by index.
      */
     public Move getMove(int index) {
+        if (mFirstUnknownCheck != -1 && index >= mFirstUnknownCheck) {
+            resolveChecks();
+        }
+
         return mMoveList.get(index);
     }
 
+    /**
+     * Get the move by index, packed by Move.pack(). Unlike getMove(), this
+     * doesn't need the move's check flag, so is cheap after addMovesTrusted().
+     */
+    public int getPackedMove(int index) {
+        return mMoveList.get(index).pack();
+    }
+
+    /**
+     * Remove all moves without undoing them, for when the board has been set to
+     * a new position.
+     */
+    public void clear() {
+        mMoveList.clear();
+        mRedoList.clear();
+        mFirstUnknownCheck = -1;
+    }
+
     /**
      * Adds a new move at the end of this game.
      */
@@ -89,6 +120,54 @@ public class Game {
         }
     }
 
+    /**
+     * Adds moves packed by Move.pack() at the end of this game, trusting that
+     * they're legal. Nothing is validated, and the check flag of each move is
+     * only computed when the move is read through getMove(), so this is much
+     * faster than calling addMove() for each move.
+     */
+    public void addMovesTrusted(int[] packedMoves, int count) {
+        if (count > 0 && mFirstUnknownCheck == -1) {
+            mFirstUnknownCheck = mMoveList.size();
+        }
+
+        mRedoList.clear();
+        int movesSinceCapture = mMoveList.empty() ? 0 : mMoveList.peek().getMovesSinceCapture();
+        for (int i = 0; i < count; i++) {
+            Move move = Move.unpack(mBoard, packedMoves[i]);
+
+            // Same as addMove().
+            if (move.getMovesSinceCapture() == -1) {
+                movesSinceCapture++;
+                move.setMovesSinceCapture(movesSinceCapture);
+            } else {
+                movesSinceCapture = 0;
+            }
+
+            mMoveList.push(move);
+            move.applyMove(mBoard);
+            mBoard.swapSides();
+        }
+    }
+
+    /**
+     * Compute the check flags deferred by addMovesTrusted(). Starting from the
+     * current position, moves are undone on a copy of the board, so the position
+     * right after each move is available.
+     */
+    private void resolveChecks() {
+        Board board = mBoard.copy();
+
+        for (int i = mMoveList.size() - 1; i >= mFirstUnknownCheck; i--) {
+            Move move = mMoveList.get(i);
+            move.setCheck(board.getCheckIndex(board.getSide()) != -1);
+            board.swapSides();
+            move.applyInverseMove(board);
+        }
+
+        mFirstUnknownCheck = -1;
+    }
+
     /**
      * Removes the last move in this game.
      */
@@ -96,6 +175,10 @@ public class Game {
         if (getMoveCount() == 0) {
             throw new IllegalStateException("Can't undo empty game");
         }
+        if (mFirstUnknownCheck != -1) {
+            // The move goes to the redo list, so needs its flag.
+            resolveChecks();
+        }
 
         mBoard.swapSides();
         Move move = mMoveList.pop();
@@ -121,6 +204,10 @@ public class Game {
      * and hyphens).
      */
     public String serialize() {
+        if (mFirstUnknownCheck != -1) {
+            resolveChecks();
+        }
+
         StringBuilder builder = new StringBuilder();
 
         builder.append(mBoard.serialize());
@@ -166,13 +253,38 @@ public class Game {
         return game;
     }
 
+    /**
+     * Return the Standard Algebraic Notation of every move in the game. Each
+     * needs the position before it, so the game is replayed on a copy of the
+     * board.
+     *
+     * @param useFigurine if true, uses the HTML for a drawing instead of a piece name.
+     */
+    public String[] getAlgebraicNotations(boolean useFigurine) {
+        Board board = mBoard.copy();
+        for (int i = mMoveList.size() - 1; i >= 0; i--) {
+            board.swapSides();
+            mMoveList.get(i).applyInverseMove(board);
+        }
+
+        String[] notations = new String[mMoveList.size()];
+        for (int i = 0; i < notations.length; i++) {
+            Move move = mMoveList.get(i);
+            notations[i] = move.getAlgebraicNotation(board, useFigurine);
+            move.applyMove(board);
+            board.swapSides();
+        }
+
+        return notations;
+    }
+
     public void writePgn(String filename, int winningSide, int round, String whitePlayer, String blackPlayer) {
         PrintStream w;
 
         try {
             w = new PrintStream(filename);
         } catch (FileNotFoundException e) {
-            System.out.println("Cannot write to " + filename + " (" + e + ")");
+            System.err.println("Cannot write to " + filename + " (" + e + ")");
             return;
         }
 
@@ -182,29 +294,24 @@ public class Game {
     }
 
     public void writePgn(PrintStream w, int winningSide, int round, String whitePlayer, String blackPlayer) {
-        w.printf("[Event \"Private match\"]%n");
-        w.printf("[Site \"San Francisco, CA USA\"]%n");
-        w.printf("[Date \"%s\"]%n", PGN_DATE_FORMAT.format(new Date()));
-        w.printf("[Round \"%d\"]%n", round);
-        w.printf("[White \"%s\"]%n", whitePlayer);
-        w.printf("[Black \"%s\"]%n", blackPlayer);
-        w.printf("[Result \"%s\"]%n", Side.toPgnNotation(winningSide));
-        w.printf("%n");
-
-        int ply = 0;
-        for (Move move : mMoveList) {
-            if (ply % 2 == 0) {
-                w.printf("%d. ", ply / 2 + 1);
-            }
-            w.printf("%s ", move);
-            ply++;
-        }
-
-        if (winningSide != Side.IN_PROGRESS) {
-            w.printf("%s", Side.toPgnNotation(winningSide));
+        Map<String,String> tags = new LinkedHashMap<String,String>();
+        tags.put("Event", "Private match");
+        tags.put("Site", "San Francisco, CA USA");
+        tags.put("Date", PGN_DATE_FORMAT.format(new Date()));
+        tags.put("Round", Integer.toString(round));
+        tags.put("White", whitePlayer);
+        tags.put("Black", blackPlayer);
+        tags.put("Result", Side.toPgnNotation(winningSide));
+
+        // Don't close the writer, it would close the stream.
+        PgnWriter pgnWriter = new PgnWriter(Channels.newChannel(w));
+        try {
+            pgnWriter.writeGame(tags, this, winningSide);
+            pgnWriter.flush();
+        } catch (IOException e) {
+            // Not stdout, which may be the UCI connection.
+            System.err.println("Cannot write PGN (" + e + ")");
         }
-
-        w.printf("%n%n");
     }
 
     /**
@@ -21,8 +21,8 @@
 package com.teamten.chess;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
@@ -44,17 +44,25 @@ public class Match {
     private static final SimpleDateFormat LOG_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd.HH-mm");
     private static final int GAME_COUNT = 10;
     private static final long MOVE_TIME = 2000;
+    private final OpeningBook mOpeningBook;
+
+    /**
+     * @param openingBook book to play the opening from for both sides, or null.
+     */
+    public Match(OpeningBook openingBook) {
+        mOpeningBook = openingBook;
+    }
 
     private void start(String[] gitRevisions) {
-        PrintStream log;
+        AsyncLog log;
         try {
             String logFilename = "match." + LOG_DATE_FORMAT.format(new Date()) + ".log";
-            log = new PrintStream(new FileOutputStream(logFilename), true);
+            log = new AsyncLog(new File(logFilename), System.err);
         } catch (IOException e) {
             System.err.println("Cannot create log file: " + e);
             return;
         }
-        log(log, "%s%n", new Date());
+        log(log, "%s", new Date().toString());
 
         // Delete our temporary directory.
         FileUtils.deleteQuietly(TMP_DIRECTORY);
@@ -63,7 +71,7 @@ public class Match {
         Player[] players = new Player[2];
 
         for (int i = 0; i < 2; i++) {
-            log(log, "Player %d: %s%n", i, gitRevisions[i]);
+            log(log, "Player %d: %s", i, gitRevisions[i]);
             players[i] = new Player(TMP_DIRECTORY, gitRevisions[i]);
         }
 
@@ -83,8 +91,8 @@ public class Match {
         // Play an even number of games, keeping track of statistics.
         long beforeMatch = System.currentTimeMillis();
         for (int i = 0; i < GAME_COUNT; i++) {
-            log(log, "-----------------------------------------------------------------%n");
-            log(log, "Starting game %d of %d.%n", i + 1, GAME_COUNT);
+            log(log, "-----------------------------------------------------------------");
+            log(log, "Starting game %d of %d.", i + 1, GAME_COUNT);
             boolean swap = (i % 2) != 0;
             Player[] playingPlayers = swap ? getSwapped(players) : players;
 
@@ -92,20 +100,20 @@ public class Match {
             int winner = playGame(playingPlayers, log, i + 1);
             long afterGame = System.currentTimeMillis();
             if (winner == Side.DRAW) {
-                log(log, "Game is a draw.%n");
+                log(log, "Game is a draw.");
                 playingPlayers[0].scoreDraw(Side.WHITE);
                 playingPlayers[1].scoreDraw(Side.BLACK);
             } else {
-                log(log, Side.toString(winner) + " wins.%n");
+                log(log, Side.toString(winner) + " wins.");
                 int loser = Side.getOtherSide(winner);
                 playingPlayers[winner].scoreWin(winner);
                 playingPlayers[loser].scoreLoss(loser);
             }
-            log(log, "Game took %s.%n", getElapsedTime(beforeGame, afterGame));
+            log(log, "Game took %s.", getElapsedTime(beforeGame, afterGame));
 
             //  Dump statistics.
             for (int j = 0; j < 2; j++) {
-                log(log, "Player %d: %.1f, %s, %s%n", j, players[j].getScore(),
+                log(log, "Player %d: %.1f, %s, %s", j, players[j].getScore(),
                         players[j].getScoreBreakdown(), players[j].getGitRevision());
             }
         }
@@ -115,7 +123,7 @@ public class Match {
         for (int i = 0; i < 2; i++) {
             players[i].quit();
         }
-        log(log, "Match of %d games took %s.%n",
+        log(log, "Match of %d games took %s.",
                 GAME_COUNT, getElapsedTime(beforeMatch, afterMatch));
 
         log.close();
@@ -132,17 +140,17 @@ public class Match {
     }
 
     /**
-     * Print both to stderr and to our log file.
+     * Print both to stderr and to our log file. Adds the newline. Both are written
+     * on the log's thread, so the game doesn't wait for them.
      */
-    private static void log(PrintStream log, String format, Object ... args) {
-        System.err.printf(format, (Object[]) args);
-        log.printf(format, (Object[]) args);
+    private static void log(AsyncLog log, String format, Object ... args) {
+        log.log(format, args);
     }
 
     /**
      * Returns the winning side, or Side.DRAW if it's a draw.
      */
-    private int playGame(Player[] players, PrintStream log, int round) {
+    private int playGame(Player[] players, AsyncLog log, int round) {
         Board board = new Board();
         Game game = new Game(board);
 
@@ -178,7 +186,15 @@ public class Match {
                 break;
             }
 
-            Move move = players[sideToPlay].computeMove(game);
+            // Book moves are played instantly for either side, so that games
+            // start from a variety of openings.
+            Move move = null;
+            if (mOpeningBook != null) {
+                move = mOpeningBook.getMove(game, sideToPlay);
+            }
+            if (move == null) {
+                move = players[sideToPlay].computeMove(game);
+            }
             if (move == null) {
                 // This is an error. We should ourselves have detected that there
                 // were no moves to play.
@@ -190,8 +206,10 @@ public class Match {
             sideToPlay = 1 - sideToPlay;
         }
 
-        game.writePgn(log, winner, round, players[0].getGitRevision(), players[1].getGitRevision());
-        log.flush();
+        ByteArrayOutputStream pgn = new ByteArrayOutputStream();
+        game.writePgn(new PrintStream(pgn), winner, round,
+                players[0].getGitRevision(), players[1].getGitRevision());
+        log(log, "%s", pgn.toString().trim());
 
         return winner;
     }
@@ -206,19 +224,34 @@ public class Match {
     // --------------------------------------------------------------------------------
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Must specify two git revisions or \"current\".");
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("Must specify two git revisions or \"current\", each optionally");
+            System.err.println("followed by the engine and thread count, like \"current:mcts:4\".");
+            System.err.println("An optional third argument is a Polyglot opening book.");
             System.exit(1);
         }
 
-        new Match().start(args);
+        OpeningBook openingBook = null;
+        if (args.length == 3) {
+            try {
+                openingBook = OpeningBook.load(new File(args[2]));
+            } catch (IOException e) {
+                System.err.println("Cannot load opening book: " + e);
+                System.exit(1);
+            }
+        }
+
+        new Match(openingBook).start(new String[] { args[0], args[1] });
     }
 
     // --------------------------------------------------------------------------------
 
     private static class Player {
         private static final File GIT_ROOT = new File("/Users/lk/teamten");
+        private final String mSpecification;
         private final String mGitRevision;
+        private final String mEngine;
+        private final int mThreadCount;
         private final File mDir;
         private Process mProcess;
         private PrintWriter mWriter;
@@ -226,9 +259,25 @@ public class Match {
         private int[] mDrawCount = new int[2];
         private int[] mWinCount = new int[2];
         private int[] mLossCount = new int[2];
-
-        public Player(File tmpDir, String gitRevision) {
+        /**
+         * The position command for the current game, so that each turn only
+         * appends the moves made since the last one.
+         */
+        private final StringBuilder mPositionCommand = new StringBuilder();
+        private int mPositionMoveCount;
+
+        /**
+         * The specification is a git revision (or "current"), optionally followed
+         * by the engine ("alphabeta" or "mcts") and the number of search threads,
+         * separated by colons. For example "current:mcts:4".
+         */
+        public Player(File tmpDir, String specification) {
+            String[] fields = specification.split(":");
+            String gitRevision = fields[0];
+            mSpecification = specification;
             mGitRevision = gitRevision;
+            mEngine = fields.length > 1 ? fields[1] : "alphabeta";
+            mThreadCount = fields.length > 2 ? Integer.parseInt(fields[2]) : 1;
 
             File rootDir;
 
@@ -244,8 +293,11 @@ public class Match {
             mDir = new File(rootDir, "java/test");
         }
 
+        /**
+         * Return the revision, engine, and thread count, for logs.
+         */
         public String getGitRevision() {
-            return mGitRevision;
+            return mSpecification;
         }
 
         public double getScore() {
@@ -280,7 +332,9 @@ public class Match {
 
         public boolean start() {
             try {
-                mProcess = new ProcessBuilder("./chessuci").directory(mDir).start();
+                mProcess = new ProcessBuilder("./chessuci",
+                        "-engine", mEngine,
+                        "-threads", Integer.toString(mThreadCount)).directory(mDir).start();
             } catch (IOException e) {
                 System.err.println("Cannot start " + mGitRevision + ": " + e);
                 return false;
@@ -309,6 +363,8 @@ public class Match {
         }
 
         public void newGame() {
+            mPositionCommand.setLength(0);
+            mPositionMoveCount = 0;
             mWriter.println("ucinewgame");
             waitForReady();
         }
@@ -328,16 +384,20 @@ public class Match {
         }
 
         public Move computeMove(Game game) {
-            // Send current game.
-            mWriter.print("position startpos");
-            if (game.getMoveCount() != 0) {
-                mWriter.print(" moves");
-                for (int i = 0; i < game.getMoveCount(); i++) {
-                    Move move = game.getMove(i);
-                    mWriter.print(" " + move.getLongAlgebraicNotation());
-                }
+            // Send current game. UCI wants the whole game every time, but the
+            // engine only plays the moves it hasn't seen.
+            if (mPositionMoveCount > game.getMoveCount()) {
+                mPositionCommand.setLength(0);
+                mPositionMoveCount = 0;
+            }
+            if (mPositionCommand.length() == 0) {
+                mPositionCommand.append("position startpos moves");
+            }
+            for (; mPositionMoveCount < game.getMoveCount(); mPositionMoveCount++) {
+                mPositionCommand.append(' ');
+                mPositionCommand.append(game.getMove(mPositionMoveCount).getLongAlgebraicNotation());
             }
-            mWriter.println();
+            mWriter.println(mPositionCommand);
 
             // Ask for move.
             mWriter.println("go movetime " + MOVE_TIME);
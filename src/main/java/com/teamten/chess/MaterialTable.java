@@ -0,0 +1,255 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+/**
+ * Table of everything that depends only on how many of each piece are on the
+ * board, indexed by the board's material key. The material key is a mixed-radix
+ * number with one digit per piece (other than kings), so it's a dense index.
+ * Each entry is packed into an int and holds:
+ *
+ * <ul>
+ * <li>An imbalance score in centipawns from white's point of view, for things
+ * like the bishop pair.
+ * <li>A scale factor for each side, from 0 to NORMAL_SCALE, applied to the score
+ * when that side is ahead. Used when the side that's ahead will have trouble
+ * winning, such as a minor piece up with no pawns.
+ * <li>An endgame recognizer, for material that needs a special evaluation, and
+ * the side that has the extra material.
+ * </ul>
+ */
+public class MaterialTable {
+    /**
+     * Scale factor for normal positions.
+     */
+    public static final int NORMAL_SCALE = 64;
+    /**
+     * No special evaluation.
+     */
+    public static final int NONE = 0;
+    /**
+     * Neither side can checkmate.
+     */
+    public static final int DRAW = 1;
+    /**
+     * Rook or queen (and maybe more) against a bare king.
+     */
+    public static final int KXK = 2;
+    /**
+     * Bishop and knight against a bare king.
+     */
+    public static final int KBNK = 3;
+    /**
+     * Single pawn against a bare king.
+     */
+    public static final int KPK = 4;
+
+    /**
+     * Most of each piece that fits in the key, indexed by Piece.getIndex() % 6.
+     * Positions with more (after promotions) have no key.
+     */
+    private static final int[] MAX_COUNT = new int[] { 8, 2, 2, 2, 1, 0 };
+    private static final int PIECE_TYPE_COUNT = MAX_COUNT.length;
+    private static final int[] KEY_WEIGHT = new int[Piece.NUM_PIECES];
+    private static final int TABLE_SIZE;
+    private static final int[] TABLE;
+
+    private static final int BISHOP_PAIR_BONUS = 30;
+    /**
+     * Knights gain and rooks lose value for each pawn of their own side beyond five.
+     */
+    private static final int KNIGHT_PAWN_ADJUSTMENT = 6;
+    private static final int ROOK_PAWN_ADJUSTMENT = -12;
+    /**
+     * Scale for a side with no pawns that's ahead by no more than a minor piece.
+     */
+    private static final int HARD_TO_WIN_SCALE = 8;
+
+    static {
+        int weight = 1;
+        for (int pieceIndex = 0; pieceIndex < Piece.NUM_PIECES; pieceIndex++) {
+            KEY_WEIGHT[pieceIndex] = weight;
+            weight *= MAX_COUNT[pieceIndex % PIECE_TYPE_COUNT] + 1;
+        }
+        TABLE_SIZE = weight;
+
+        TABLE = new int[TABLE_SIZE];
+        int[] counts = new int[Piece.NUM_PIECES];
+        for (int key = 0; key < TABLE_SIZE; key++) {
+            for (int pieceIndex = 0; pieceIndex < Piece.NUM_PIECES; pieceIndex++) {
+                int max = MAX_COUNT[pieceIndex % PIECE_TYPE_COUNT];
+                counts[pieceIndex] = max == 0 ? 0 : key/KEY_WEIGHT[pieceIndex] % (max + 1);
+            }
+            TABLE[key] = computeEntry(counts);
+        }
+    }
+
+    private MaterialTable() {
+        // Can't instantiate.
+    }
+
+    /**
+     * Return how much one piece adds to the material key.
+     */
+    public static int getKeyWeight(Piece piece) {
+        return KEY_WEIGHT[piece.getIndex()];
+    }
+
+    /**
+     * Return the most of this piece that fits in the material key.
+     */
+    public static int getMaxCount(Piece piece) {
+        return MAX_COUNT[piece.getIndex() % PIECE_TYPE_COUNT];
+    }
+
+    /**
+     * Return the packed entry for the material key, or the entry for a normal
+     * position if the key is -1 (too many of some piece).
+     */
+    public static int getEntry(int materialKey) {
+        return materialKey == -1 ? pack(0, NORMAL_SCALE, NORMAL_SCALE, NONE, Side.WHITE) : TABLE[materialKey];
+    }
+
+    /**
+     * Return whether the material key is a known draw.
+     */
+    public static boolean isDraw(int materialKey) {
+        return materialKey != -1 && getRecognizer(TABLE[materialKey]) == DRAW;
+    }
+
+    /**
+     * Return the imbalance score of the entry in centipawns from white's point of view.
+     */
+    public static int getImbalance(int entry) {
+        // Sign-extend the low 12 bits.
+        return entry << 20 >> 20;
+    }
+
+    /**
+     * Return the scale factor of the entry for when side is ahead.
+     */
+    public static int getScale(int entry, int side) {
+        return (entry >>> (side == Side.WHITE ? 12 : 19)) & 0x7F;
+    }
+
+    /**
+     * Return the endgame recognizer of the entry, such as KXK, or NONE.
+     */
+    public static int getRecognizer(int entry) {
+        return (entry >>> 26) & 0x7;
+    }
+
+    /**
+     * Return the side with the extra material, for recognizers other than NONE and DRAW.
+     */
+    public static int getStrongSide(int entry) {
+        return (entry >>> 29) & 0x1;
+    }
+
+    private static int pack(int imbalance, int whiteScale, int blackScale, int recognizer,
+            int strongSide) {
+
+        return (imbalance & 0xFFF) | whiteScale << 12 | blackScale << 19 | recognizer << 26
+            | strongSide << 29;
+    }
+
+    /**
+     * Compute the packed entry for the piece counts, indexed by Piece.getIndex().
+     */
+    private static int computeEntry(int[] counts) {
+        int imbalance = 0;
+        int[] scale = new int[2];
+        int[] pawns = new int[2];
+        int[] pieceMaterial = new int[2];
+        boolean[] bare = new boolean[2];
+
+        for (int side = Side.WHITE; side <= Side.BLACK; side++) {
+            int base = side*PIECE_TYPE_COUNT;
+            pawns[side] = counts[base + Piece.WHITE_PAWN.getIndex()];
+            int bishops = counts[base + Piece.WHITE_BISHOP.getIndex()];
+            int knights = counts[base + Piece.WHITE_KNIGHT.getIndex()];
+            int rooks = counts[base + Piece.WHITE_ROOK.getIndex()];
+            int queens = counts[base + Piece.WHITE_QUEEN.getIndex()];
+
+            pieceMaterial[side] = bishops*PieceType.BISHOP.getValue()
+                + knights*PieceType.KNIGHT.getValue()
+                + rooks*PieceType.ROOK.getValue()
+                + queens*PieceType.QUEEN.getValue();
+            bare[side] = pawns[side] == 0 && pieceMaterial[side] == 0;
+
+            int sideImbalance = 0;
+            if (bishops >= 2) {
+                sideImbalance += BISHOP_PAIR_BONUS;
+            }
+            sideImbalance += knights*(pawns[side] - 5)*KNIGHT_PAWN_ADJUSTMENT;
+            sideImbalance += rooks*(pawns[side] - 5)*ROOK_PAWN_ADJUSTMENT;
+
+            imbalance += side == Side.WHITE ? sideImbalance : -sideImbalance;
+        }
+
+        for (int side = Side.WHITE; side <= Side.BLACK; side++) {
+            int otherSide = Side.getOtherSide(side);
+            scale[side] = NORMAL_SCALE;
+            if (pawns[side] == 0 && pieceMaterial[side] - pieceMaterial[otherSide] <= PieceType.BISHOP.getValue()) {
+                // Can't win with only a minor piece, and it's hard to win being
+                // only a minor piece ahead.
+                scale[side] = pieceMaterial[side] <= PieceType.BISHOP.getValue() ? 0 : HARD_TO_WIN_SCALE;
+            }
+        }
+
+        // Endgames.
+        int recognizer = NONE;
+        int strongSide = Side.WHITE;
+        if (pawns[Side.WHITE] == 0 && pawns[Side.BLACK] == 0
+                && pieceMaterial[Side.WHITE] <= PieceType.BISHOP.getValue()
+                && pieceMaterial[Side.BLACK] <= PieceType.BISHOP.getValue()
+                && (bare[Side.WHITE] || bare[Side.BLACK])) {
+
+            // KK, KBK, KNK.
+            recognizer = DRAW;
+        } else {
+            for (int side = Side.WHITE; side <= Side.BLACK; side++) {
+                if (!bare[Side.getOtherSide(side)]) {
+                    continue;
+                }
+                int base = side*PIECE_TYPE_COUNT;
+                int bishops = counts[base + Piece.WHITE_BISHOP.getIndex()];
+                int knights = counts[base + Piece.WHITE_KNIGHT.getIndex()];
+                int rooks = counts[base + Piece.WHITE_ROOK.getIndex()];
+                int queens = counts[base + Piece.WHITE_QUEEN.getIndex()];
+
+                if (rooks + queens > 0) {
+                    recognizer = KXK;
+                    strongSide = side;
+                } else if (pawns[side] == 0 && bishops == 0 && knights == 2) {
+                    // Two knights can't force mate.
+                    recognizer = DRAW;
+                } else if (pawns[side] == 0 && bishops == 1 && knights == 1) {
+                    recognizer = KBNK;
+                    strongSide = side;
+                } else if (pawns[side] == 1 && pieceMaterial[side] == 0) {
+                    recognizer = KPK;
+                    strongSide = side;
+                }
+            }
+        }
+
+        return pack(imbalance, scale[Side.WHITE], scale[Side.BLACK], recognizer, strongSide);
+    }
+}
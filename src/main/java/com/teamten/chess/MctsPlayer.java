@@ -0,0 +1,522 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays chess using Monte-Carlo tree search (UCT) instead of alpha-beta. Each
+ * playout descends the tree, expands one leaf, and scores it with a short
+ * capture-only alpha-beta search that is converted to a win probability.
+ *
+ * The tree is kept in parallel arrays (a node arena) rather than as objects,
+ * so that it can grow to millions of nodes without garbage collection. Several
+ * threads can search at once, each on its own copy of the board. They share
+ * the tree with a lock per node, held only while choosing or updating that
+ * node's children, and add a "virtual loss" to the nodes they're descending
+ * through so that the other threads explore elsewhere.
+ *
+ * See http://en.wikipedia.org/wiki/Monte_Carlo_tree_search
+ */
+public class MctsPlayer {
+    private static final int DEFAULT_MAX_NODES = 1 << 20;
+    private static final double DEFAULT_EXPLORATION_CONSTANT = 1.4;
+    /**
+     * How many visits to count (as losses) for each thread currently
+     * descending through a node.
+     */
+    private static final int VIRTUAL_LOSS = 3;
+    /**
+     * Maximum number of captures in the quiescence search done at each leaf.
+     */
+    private static final int ROLLOUT_PLIES = 4;
+    /**
+     * How many centipawns of advantage make a 10:1 win ratio, for converting
+     * scores to win probabilities and back.
+     */
+    private static final double CENTIPAWNS_PER_DECADE = 400.0;
+    /**
+     * Value of mChildCount for nodes that haven't been expanded.
+     */
+    private static final int UNEXPANDED = -1;
+    private static final int ROOT = 0;
+    /**
+     * Number of locks that the nodes are spread over. Must be a power of two.
+     */
+    private static final int LOCK_STRIPES = 1024;
+    private final Board mBoard;
+    private final Game mGame;
+    private int mSide;
+    private double mExplorationConstant = DEFAULT_EXPLORATION_CONSTANT;
+    private int mThreadCount = 1;
+    private volatile long mStopTime;
+    private volatile boolean mSearching;
+    private EvaluationCache mEvaluationCache = new EvaluationCache();
+    private volatile boolean mStopRequested;
+    private long mPlayouts;
+    private final EvaluationStatistics mStatistics = new EvaluationStatistics();
+
+    // The node arena. Children of a node are allocated contiguously. The
+    // value of a node is the sum of results from the point of view of the
+    // side that made the move leading to it. A node's lock guards its child
+    // count and first child, and the visits, virtual loss, and value of its
+    // children. The root's own counts are guarded by the root's lock.
+    private final int mMaxNodes;
+    private final int[] mFirstChild;
+    private final int[] mChildCount;
+    private final int[] mVisits;
+    private final int[] mVirtualLoss;
+    private final double[] mValue;
+    private final Move[] mMove;
+    private final AtomicInteger mNodeCount = new AtomicInteger();
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+
+    /**
+     * Create a player for a side in a game.
+     */
+    public MctsPlayer(Board board, Game game, int side) {
+        this(board, game, side, DEFAULT_MAX_NODES);
+    }
+
+    /**
+     * Create a player for a side in a game, with a tree of at most maxNodes nodes.
+     */
+    public MctsPlayer(Board board, Game game, int side, int maxNodes) {
+        mBoard = board;
+        mGame = game;
+        mSide = side;
+        mMaxNodes = maxNodes;
+        mFirstChild = new int[maxNodes];
+        mChildCount = new int[maxNodes];
+        mVisits = new int[maxNodes];
+        mVirtualLoss = new int[maxNodes];
+        mValue = new double[maxNodes];
+        mMove = new Move[maxNodes];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    public int getSide() {
+        return mSide;
+    }
+
+    /**
+     * Set the side to move for. The node arena is large, so it's cheaper to
+     * keep one player and change its side than to allocate a new one per move.
+     */
+    public void setSide(int side) {
+        mSide = side;
+    }
+
+    /**
+     * Set the constant that trades off exploration (trying moves that have few
+     * visits) against exploitation (visiting moves that have done well). Higher
+     * means more exploration.
+     */
+    public void setExplorationConstant(double explorationConstant) {
+        mExplorationConstant = explorationConstant;
+    }
+
+    /**
+     * Set the number of threads that search the tree at once.
+     */
+    public void setThreadCount(int threadCount) {
+        mThreadCount = Math.max(threadCount, 1);
+    }
+
+    /**
+     * Set the evaluation cache that the search threads share.
+     */
+    public void setEvaluationCache(EvaluationCache evaluationCache) {
+        mEvaluationCache = evaluationCache;
+    }
+
+    /**
+     * Change the time allowed for the search in progress, counting from now. As
+     * with ComputerPlayer.setMoveTime(), callers should wait until isSearching()
+     * is true, since analyze() sets its own time when it starts.
+     */
+    public void setMoveTime(long moveTime) {
+        mStopTime = System.currentTimeMillis() + moveTime;
+    }
+
+    /**
+     * Whether a search is in progress and has set its time, so that setMoveTime()
+     * applies to it.
+     */
+    public boolean isSearching() {
+        return mSearching;
+    }
+
+    /**
+     * Ask the search threads to finish their playouts, from any thread. As with
+     * ComputerPlayer.stop(), a stop before analyze() starts is ignored.
+     */
+    public void stop() {
+        mStopRequested = true;
+    }
+
+    /**
+     * Makes a move on this board. Returns the move made along with a linked list of
+     * the principal variation. The number of moves considered in the result is the
+     * number of playouts.
+     *
+     * @param moveTime the time to search in milliseconds, or Long.MAX_VALUE to
+     * search until stop() is called.
+     */
+    public ComputerPlayer.Result makeMove(long moveTime) {
+        ComputerPlayer.Result result = analyze(moveTime);
+
+        Move move = result.mEvaluatedMove.getMove();
+        if (move != null) {
+            mGame.addMove(move);
+        }
+
+        return result;
+    }
+
+    /**
+     * Search like makeMove(), but don't make the move.
+     */
+    public ComputerPlayer.Result analyze(long moveTime) {
+        long beforeTime = System.currentTimeMillis();
+        mStopRequested = false;
+        mStopTime = moveTime == Long.MAX_VALUE ? Long.MAX_VALUE : beforeTime + moveTime;
+        mSearching = true;
+        mPlayouts = 0;
+        mStatistics.clear();
+
+        // Start with just the root.
+        mNodeCount.set(1);
+        mChildCount[ROOT] = UNEXPANDED;
+        mVisits[ROOT] = 0;
+        mVirtualLoss[ROOT] = 0;
+        mValue[ROOT] = 0;
+        mMove[ROOT] = null;
+
+        // All threads share one evaluation cache.
+        final EvaluationCache evaluationCache = mEvaluationCache;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < mThreadCount; i++) {
+            final Board board = mBoard.copy();
+            Thread thread = new Thread(new Runnable() {
+                @Override // Runnable
+                public void run() {
+                    search(board, new Evaluator(evaluationCache));
+                }
+            }, "mcts-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mSearching = false;
+
+        ComputerPlayer.EvaluatedMove bestEvaluatedMove = getPrincipalVariation(ROOT);
+        if (bestEvaluatedMove == null) {
+            // Checkmate or stalemate.
+            bestEvaluatedMove = new ComputerPlayer.EvaluatedMove(null, 0, null);
+        }
+        long afterTime = System.currentTimeMillis();
+
+        // Not stdout, which may be the UCI connection.
+        System.err.printf("MCTS: %,d playouts, %,d nodes, %d threads%n",
+                mPlayouts, mNodeCount.get(), mThreadCount);
+
+        return new ComputerPlayer.Result(bestEvaluatedMove, afterTime - beforeTime, mPlayouts,
+                mStatistics);
+    }
+
+    /**
+     * Run playouts on this (private) board until time runs out.
+     */
+    private void search(Board board, Evaluator evaluator) {
+        int[] path = new int[64];
+        int playouts = 0;
+
+        // Always do at least two playouts, one to expand the root and one to
+        // visit one of its children, so that we have a move to return.
+        do {
+            path = playout(board, evaluator, path);
+            playouts++;
+        } while (playouts < 2 || (!mStopRequested && System.currentTimeMillis() < mStopTime));
+
+        synchronized (this) {
+            mPlayouts += playouts;
+            mStatistics.add(evaluator.getStatistics());
+        }
+    }
+
+    /**
+     * Do one descent, expansion, evaluation, and backup. Returns the path array,
+     * which may have been grown.
+     */
+    private int[] playout(Board board, Evaluator evaluator, int[] path) {
+        int pathLength = 0;
+        int node = ROOT;
+        int childCount;
+
+        // Selection. Only walk the tree here, the moves are applied to the
+        // board once the path is known. Each step holds just the lock of the
+        // node whose children we're choosing among.
+        synchronized (getLock(ROOT)) {
+            mVirtualLoss[ROOT] += VIRTUAL_LOSS;
+        }
+        while (true) {
+            synchronized (getLock(node)) {
+                childCount = mChildCount[node];
+                if (childCount <= 0) {
+                    break;
+                }
+                node = selectChild(node);
+                mVirtualLoss[node] += VIRTUAL_LOSS;
+            }
+            if (pathLength == path.length) {
+                int[] newPath = new int[path.length*2];
+                System.arraycopy(path, 0, newPath, 0, pathLength);
+                path = newPath;
+            }
+            path[pathLength++] = node;
+        }
+
+        for (int i = 0; i < pathLength; i++) {
+            mMove[path[i]].applyMove(board);
+            board.swapSides();
+        }
+
+        // Result from the point of view of the side to move at the leaf.
+        double result;
+        List<Move> moveList = null;
+        if (childCount == UNEXPANDED) {
+            moveList = board.generateAllLegalMoves(board.getSide());
+            Collections.sort(moveList, Move.CAPTURE_COMPARATOR);
+        }
+        if (childCount == 0 || (moveList != null && moveList.isEmpty())) {
+            // Checkmate or stalemate.
+            result = board.getCheckIndex(board.getSide()) != -1 ? 0.0 : 0.5;
+        } else {
+            int score = quiesce(board, evaluator, board.getSide(),
+                    -ComputerPlayer.INFINITY, ComputerPlayer.INFINITY, ROLLOUT_PLIES);
+            result = scoreToProbability(score);
+        }
+
+        for (int i = pathLength - 1; i >= 0; i--) {
+            board.swapSides();
+            mMove[path[i]].applyInverseMove(board);
+        }
+
+        // Expansion. Another thread may have expanded the node meanwhile.
+        if (moveList != null) {
+            synchronized (getLock(node)) {
+                if (mChildCount[node] == UNEXPANDED) {
+                    expand(node, moveList);
+                }
+            }
+        }
+
+        // Backup, under the lock of each node's parent.
+        for (int i = pathLength - 1; i >= 0; i--) {
+            int pathNode = path[i];
+            // The node's value is from the point of view of the side that
+            // moved into it, which is the other side from the one to move.
+            result = 1.0 - result;
+            synchronized (getLock(i == 0 ? ROOT : path[i - 1])) {
+                mValue[pathNode] += result;
+                mVisits[pathNode]++;
+                mVirtualLoss[pathNode] -= VIRTUAL_LOSS;
+            }
+        }
+        synchronized (getLock(ROOT)) {
+            mVisits[ROOT]++;
+            mVirtualLoss[ROOT] -= VIRTUAL_LOSS;
+        }
+
+        return path;
+    }
+
+    /**
+     * Return the lock that guards node's children.
+     */
+    private Object getLock(int node) {
+        return mLocks[node & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Return the child of node with the highest upper confidence bound. Virtual
+     * losses count as visits with no wins. Must be called with the node's lock held.
+     */
+    private int selectChild(int node) {
+        int firstChild = mFirstChild[node];
+        int lastChild = firstChild + mChildCount[node];
+
+        // The node's own counts are guarded by its parent's lock, so count its
+        // visits as the sum of its children's, plus the one that expanded it.
+        int parentVisits = 1;
+        for (int child = firstChild; child < lastChild; child++) {
+            int visits = mVisits[child] + mVirtualLoss[child];
+            if (visits == 0) {
+                // Children are sorted by capture value, so take the first unvisited one.
+                return child;
+            }
+            parentVisits += visits;
+        }
+        double logParentVisits = Math.log(parentVisits);
+
+        int bestChild = firstChild;
+        double bestBound = Double.NEGATIVE_INFINITY;
+        for (int child = firstChild; child < lastChild; child++) {
+            int visits = mVisits[child] + mVirtualLoss[child];
+            double bound = mValue[child]/visits
+                + mExplorationConstant*Math.sqrt(logParentVisits/visits);
+            if (bound > bestBound) {
+                bestBound = bound;
+                bestChild = child;
+            }
+        }
+
+        return bestChild;
+    }
+
+    /**
+     * Allocate the children of node from the arena. If the arena is full the node
+     * is left unexpanded and will be evaluated again next time. Must be called
+     * with the node's lock held.
+     */
+    private void expand(int node, List<Move> moveList) {
+        int count = moveList.size();
+        int firstChild;
+        do {
+            firstChild = mNodeCount.get();
+            if (firstChild + count > mMaxNodes) {
+                return;
+            }
+        } while (!mNodeCount.compareAndSet(firstChild, firstChild + count));
+
+        for (int i = 0; i < count; i++) {
+            int child = firstChild + i;
+            mChildCount[child] = UNEXPANDED;
+            mVisits[child] = 0;
+            mVirtualLoss[child] = 0;
+            mValue[child] = 0;
+            mMove[child] = moveList.get(i);
+        }
+        mFirstChild[node] = firstChild;
+        mChildCount[node] = count;
+    }
+
+    /**
+     * Short capture-only alpha-beta search from the point of view of side.
+     */
+    private static int quiesce(Board board, Evaluator evaluator, int side,
+            int alpha, int beta, int plies) {
+
+        int standPat = evaluator.evaluate(board, side, alpha, beta);
+        if (standPat > alpha) {
+            alpha = standPat;
+        }
+        if (plies == 0 || alpha >= beta) {
+            return alpha;
+        }
+
+        List<Move> moveList = board.generateAllMoves(side, true);
+        Collections.sort(moveList, Move.CAPTURE_COMPARATOR);
+        for (Move move : moveList) {
+            if (move.getCapturedPiece().getPieceType() == PieceType.KING) {
+                // Previous move was illegal. Shouldn't happen in a quiescence search
+                // started from a legal position, but don't count the king.
+                continue;
+            }
+
+            move.applyMove(board);
+            board.swapSides();
+            int score;
+            if (board.getCheckIndex(side) != -1) {
+                // Illegal, leaves us in check.
+                score = alpha;
+            } else {
+                score = -quiesce(board, evaluator, Side.getOtherSide(side),
+                        -beta, -alpha, plies - 1);
+            }
+            board.swapSides();
+            move.applyInverseMove(board);
+
+            if (score > alpha) {
+                alpha = score;
+                if (alpha >= beta) {
+                    break;
+                }
+            }
+        }
+
+        return alpha;
+    }
+
+    /**
+     * Convert a score in centipawns to a probability of winning.
+     */
+    private static double scoreToProbability(int score) {
+        return 1.0/(1.0 + Math.pow(10, -score/CENTIPAWNS_PER_DECADE));
+    }
+
+    /**
+     * Convert a probability of winning to a score in centipawns.
+     */
+    private static int probabilityToScore(double probability) {
+        probability = Math.min(Math.max(probability, 0.001), 0.999);
+        return (int) Math.round(CENTIPAWNS_PER_DECADE*Math.log10(probability/(1.0 - probability)));
+    }
+
+    /**
+     * Return the principal variation from node, following the most-visited child,
+     * or null if the node has no visited children. Must be called after the
+     * search threads have finished.
+     */
+    private ComputerPlayer.EvaluatedMove getPrincipalVariation(int node) {
+        if (mChildCount[node] <= 0) {
+            return null;
+        }
+
+        int firstChild = mFirstChild[node];
+        int lastChild = firstChild + mChildCount[node];
+        int bestChild = -1;
+        for (int child = firstChild; child < lastChild; child++) {
+            if (mVisits[child] > 0 && (bestChild == -1 || mVisits[child] > mVisits[bestChild])) {
+                bestChild = child;
+            }
+        }
+        if (bestChild == -1) {
+            return null;
+        }
+
+        int score = probabilityToScore(mValue[bestChild]/mVisits[bestChild]);
+
+        return new ComputerPlayer.EvaluatedMove(mMove[bestChild], score,
+                getPrincipalVariation(bestChild));
+    }
+}
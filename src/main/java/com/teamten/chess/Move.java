@@ -110,20 +110,234 @@ public class Move {
         int fromIndex = Board.fromPosition(lan.substring(0, 2));
         int toIndex = Board.fromPosition(lan.substring(2, 4));
 
+        Piece promotedPiece = parsePromotion(lan, board.getSide());
+
+        return makePromotion(board, fromIndex, toIndex, promotedPiece);
+    }
+
+    /**
+     * Return this move packed in an int for Game.addMovesTrusted(): the from
+     * index, the to index, and the promoted piece.
+     */
+    public int pack() {
+        return pack(mFromIndex, mToIndex, mPromotedPiece);
+    }
+
+    /**
+     * Pack a move for Game.addMovesTrusted().
+     *
+     * @param promotedPiece the piece to promote to, or EMPTY.
+     */
+    public static int pack(int fromIndex, int toIndex, Piece promotedPiece) {
+        int promotion = promotedPiece == Piece.EMPTY ? 0 : promotedPiece.getIndex() + 1;
+
+        return fromIndex | toIndex << 6 | promotion << 12;
+    }
+
+    /**
+     * Pack a move in long algebraic notation, like "e7e8q", without looking at
+     * the board.
+     *
+     * @param side the side making the move, for promotions.
+     * @throws IllegalArgumentException if the string is not in LAN.
+     */
+    public static int packLongAlgebraicNotation(String lan, int side) {
+        if (lan.length() != 4 && lan.length() != 5) {
+            throw new IllegalArgumentException("Invalid move: " + lan);
+        }
+
+        int fromIndex = Board.fromPosition(lan.substring(0, 2));
+        int toIndex = Board.fromPosition(lan.substring(2, 4));
+        Piece promotedPiece = parsePromotion(lan, side);
+
+        return pack(fromIndex, toIndex, promotedPiece);
+    }
+
+    /**
+     * Return the piece that a five-character LAN move promotes to, or EMPTY if
+     * the move has four characters. Both LAN parsers use this so that they
+     * accept the same moves.
+     *
+     * @param side the side making the move.
+     * @throws IllegalArgumentException if the promotion isn't one of n, b, r, or q.
+     */
+    private static Piece parsePromotion(String lan, int side) {
+        if (lan.length() != 5) {
+            return Piece.EMPTY;
+        }
+
+        char ch = lan.charAt(4);
+        if ("nbrq".indexOf(ch) == -1) {
+            throw new IllegalArgumentException("Invalid promotion: " + lan);
+        }
+
+        return Piece.getPieceForTypeAndSide(Piece.getPieceForCharacter(ch).getPieceType(), side);
+    }
+
+    /**
+     * Make a move from one packed by pack(). The moving and captured pieces are
+     * determined by the board.
+     */
+    public static Move unpack(Board board, int packedMove) {
+        int promotion = packedMove >>> 12;
+
+        return makePromotion(board, packedMove & 63, (packedMove >>> 6) & 63,
+                promotion == 0 ? Piece.EMPTY : Piece.getPieceForIndex(promotion - 1));
+    }
+
+    /**
+     * Parse a move in Standard Algebraic Notation (SAN), such as "Nbxd7+" or
+     * "e8=Q", for the side to move. Disambiguation and legality are checked.
+     * Castling and en passant can't be parsed since the board doesn't support
+     * them.
+     *
+     * @throws IllegalArgumentException if the move can't be parsed, is illegal, or
+     * is ambiguous.
+     */
+    public static Move parseAlgebraicNotation(Board board, String san) {
+        // Strip check, mate, and annotations.
+        int end = san.length();
+        while (end > 0 && "+#!?".indexOf(san.charAt(end - 1)) != -1) {
+            end--;
+        }
+
+        if (san.startsWith("O-O") || san.startsWith("0-0")) {
+            throw new IllegalArgumentException("Castling isn't supported: " + san);
+        }
+
+        // Promotion, with or without the equal sign.
+        PieceType promotionType = null;
+        if (end > 0 && "NBRQ".indexOf(san.charAt(end - 1)) != -1) {
+            promotionType = Piece.getPieceForCharacter(Character.toLowerCase(san.charAt(end - 1))).getPieceType();
+            end--;
+            if (end > 0 && san.charAt(end - 1) == '=') {
+                end--;
+            }
+        }
+
+        if (end < 2) {
+            throw new IllegalArgumentException("Move too short: " + san);
+        }
+        int toIndex = Board.fromPosition(san.substring(end - 2, end));
+
+        // Moving piece.
+        int start = 0;
+        PieceType pieceType = PieceType.PAWN;
+        if ("NBRQK".indexOf(san.charAt(0)) != -1) {
+            pieceType = Piece.getPieceForCharacter(Character.toLowerCase(san.charAt(0))).getPieceType();
+            start = 1;
+        }
+
+        // Disambiguation and capture marker.
+        int fromFile = -1;
+        int fromRank = -1;
+        for (int i = start; i < end - 2; i++) {
+            char ch = san.charAt(i);
+            if (ch >= 'a' && ch <= 'h') {
+                fromFile = ch - 'a' + 1;
+            } else if (ch >= '1' && ch <= '8') {
+                fromRank = ch - '1' + 1;
+            } else if (ch != 'x' && ch != ':' && ch != '-') {
+                throw new IllegalArgumentException("Unexpected character in move: " + san);
+            }
+        }
+
+        int side = board.getSide();
+        Piece movingPiece = Piece.getPieceForTypeAndSide(pieceType, side);
+        Piece capturedPiece = board.getPiece(toIndex);
+        if (capturedPiece != Piece.EMPTY && capturedPiece.getSide() == side) {
+            throw new IllegalArgumentException("Illegal move: " + san);
+        }
+
+        // Promotions default to queen.
         Piece promotedPiece = Piece.EMPTY;
-        if (lan.length() == 5) {
-            if (lan.charAt(4) == 'q') {
-                if (board.getSide() == Side.WHITE) {
-                    promotedPiece = Piece.WHITE_QUEEN;
-                } else {
-                    promotedPiece = Piece.BLACK_QUEEN;
+        int lastRank = side == Side.WHITE ? Board.SIZE : 1;
+        if (pieceType == PieceType.PAWN && Board.getRank(toIndex) == lastRank) {
+            promotedPiece = Piece.getPieceForTypeAndSide(
+                    promotionType == null ? PieceType.QUEEN : promotionType, side);
+        } else if (promotionType != null) {
+            throw new IllegalArgumentException("Illegal promotion: " + san);
+        }
+
+        // Find the squares the piece could have come from. This is much faster
+        // than generating all legal moves.
+        long candidates;
+        if (pieceType == PieceType.PAWN) {
+            candidates = getPawnSources(board, side, toIndex, fromFile);
+        } else {
+            long occupied = board.getOccupied(Side.WHITE) | board.getOccupied(Side.BLACK);
+            candidates = Board.getAttacks(movingPiece, toIndex, occupied) & board.getPieceBits(movingPiece);
+        }
+
+        Move foundMove = null;
+        while (candidates != 0) {
+            int fromIndex = Long.numberOfTrailingZeros(candidates);
+            candidates &= candidates - 1;
+
+            if ((fromFile == -1 || Board.getFile(fromIndex) == fromFile)
+                    && (fromRank == -1 || Board.getRank(fromIndex) == fromRank)) {
+
+                Move move = makePromotion(board, fromIndex, toIndex, promotedPiece);
+                board.updateMoveCheckStatus(move);
+                if (!move.isMovingInCheck()) {
+                    if (foundMove != null) {
+                        throw new IllegalArgumentException("Ambiguous move: " + san);
+                    }
+                    foundMove = move;
                 }
-            } else {
-                throw new IllegalArgumentException("Can't handle non-queen promotion");
             }
         }
 
-        return makePromotion(board, fromIndex, toIndex, promotedPiece);
+        if (foundMove == null) {
+            throw new IllegalArgumentException("Illegal move: " + san);
+        }
+
+        return foundMove;
+    }
+
+    /**
+     * Return the squares that a pawn of the side could move from to get to
+     * toIndex, as a bit set. If fromFile is on another file the move is a
+     * capture, otherwise it's a push of one or two squares.
+     */
+    private static long getPawnSources(Board board, int side, int toIndex, int fromFile) {
+        Piece pawn = Piece.getPieceForTypeAndSide(PieceType.PAWN, side);
+        int rankDirection = side == Side.WHITE ? 1 : -1;
+        int toFile = Board.getFile(toIndex);
+
+        if (fromFile != -1 && fromFile != toFile) {
+            // Capture. En passant isn't supported, so the target must be occupied.
+            int fromIndex = Board.getRelativeIndex(toIndex, fromFile - toFile, -rankDirection);
+            if (Math.abs(fromFile - toFile) != 1 || fromIndex == -1
+                    || board.getPiece(toIndex) == Piece.EMPTY || board.getPiece(fromIndex) != pawn) {
+
+                return 0;
+            }
+            return 1L << fromIndex;
+        }
+
+        if (board.getPiece(toIndex) != Piece.EMPTY) {
+            return 0;
+        }
+
+        int fromIndex = Board.getRelativeIndex(toIndex, 0, -rankDirection);
+        if (fromIndex == -1) {
+            return 0;
+        }
+        if (board.getPiece(fromIndex) == pawn) {
+            return 1L << fromIndex;
+        }
+
+        // Double push from the starting rank.
+        int doublePushRank = side == Side.WHITE ? 4 : Board.SIZE - 3;
+        if (board.getPiece(fromIndex) == Piece.EMPTY && Board.getRank(toIndex) == doublePushRank) {
+            fromIndex = Board.getRelativeIndex(toIndex, 0, -2*rankDirection);
+            if (board.getPiece(fromIndex) == pawn) {
+                return 1L << fromIndex;
+            }
+        }
+
+        return 0;
     }
 
     /**
@@ -229,13 +443,86 @@ public class Move {
     }
 
     /**
-     * Return the Algebraic Notation.
+     * Return the Algebraic Notation without looking at the board. The origin
+     * square of pieces is always included, since we can't tell whether it's
+     * ambiguous, and checkmate is shown as check. Use the version that takes a
+     * board for standard notation.
      *
      * See http://en.wikipedia.org/wiki/Algebraic_Chess_Notation
      * 
      * @param useFigurine if true, uses the HTML for a drawing instead of a piece name.
      */
     public String getAlgebraicNotation(boolean useFigurine) {
+        String disambiguation = mMovingPiece.getPieceType() == PieceType.PAWN
+            ? "" : Board.getPosition(mFromIndex);
+
+        return getAlgebraicNotation(useFigurine, disambiguation, mCheck ? "+" : "");
+    }
+
+    /**
+     * Return the Standard Algebraic Notation (SAN). The file or rank of the
+     * origin is only included if another piece of the same type can legally
+     * move to the same square, and checkmate is marked with "#".
+     *
+     * @param board the position before this move. It's modified while checking for
+     * mate, but restored.
+     * @param useFigurine if true, uses the HTML for a drawing instead of a piece name.
+     */
+    public String getAlgebraicNotation(Board board, boolean useFigurine) {
+        String checkSuffix = "";
+        int side = mMovingPiece.getSide();
+        int otherSide = Side.getOtherSide(side);
+
+        applyMove(board);
+        if (board.getCheckIndex(otherSide) != -1) {
+            checkSuffix = board.hasLegalMove(otherSide) ? "+" : "#";
+        }
+        applyInverseMove(board);
+
+        return getAlgebraicNotation(useFigurine, getDisambiguation(board), checkSuffix);
+    }
+
+    /**
+     * Return the file and/or rank needed to tell this move apart from moves of
+     * other pieces of the same type to the same square. These are found from
+     * the attack tables, so it's cheap when there aren't any.
+     */
+    private String getDisambiguation(Board board) {
+        if (mMovingPiece.getPieceType() == PieceType.PAWN) {
+            return "";
+        }
+
+        long occupied = board.getOccupied(Side.WHITE) | board.getOccupied(Side.BLACK);
+        long others = Board.getAttacks(mMovingPiece, mToIndex, occupied)
+            & board.getPieceBits(mMovingPiece) & ~(1L << mFromIndex);
+
+        boolean ambiguous = false;
+        boolean sameFile = false;
+        boolean sameRank = false;
+        while (others != 0) {
+            int otherIndex = Long.numberOfTrailingZeros(others);
+            others &= others - 1;
+
+            // Pinned pieces don't count.
+            if (board.verifyMoveLegal(make(board, otherIndex, mToIndex)) == -1) {
+                ambiguous = true;
+                sameFile |= Board.getFile(otherIndex) == Board.getFile(mFromIndex);
+                sameRank |= Board.getRank(otherIndex) == Board.getRank(mFromIndex);
+            }
+        }
+
+        if (!ambiguous) {
+            return "";
+        } else if (!sameFile) {
+            return Board.getFileLetter(mFromIndex);
+        } else if (!sameRank) {
+            return Board.getRankDigit(mFromIndex);
+        } else {
+            return Board.getPosition(mFromIndex);
+        }
+    }
+
+    private String getAlgebraicNotation(boolean useFigurine, String disambiguation, String checkSuffix) {
         StringBuilder builder = new StringBuilder();
 
         if (mMovingPiece.getPieceType() == PieceType.PAWN) {
@@ -252,12 +539,7 @@ public class Move {
                 builder.append(mMovingPiece.getAlgebraicCharacter());
             }
 
-            // Here we're supposed to put file and/or rank of moving piece if it's
-            // ambiguous, but knowing whether it's ambiguous is a lot of work to do
-            // when generating pieces, and it's too late when displaying them. If we
-            // really want this we'll need to explicitly calculate this info when a
-            // move is going to be displayed.
-            builder.append(Board.getPosition(mFromIndex));
+            builder.append(disambiguation);
         }
 
         if (mCapturedPiece != Piece.EMPTY) {
@@ -271,9 +553,7 @@ public class Move {
             builder.append(Character.toUpperCase(mPromotedPiece.getPieceType().getCharacter()));
         }
 
-        if (mCheck) {
-            builder.append("+");
-        }
+        builder.append(checkSuffix);
 
         return builder.toString();
     }
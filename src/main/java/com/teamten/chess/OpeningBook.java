@@ -0,0 +1,231 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Opening book in the Polyglot format. The file is a list of 16-byte big-endian
+ * entries (key, move, weight, learn) sorted by key. It's memory-mapped and
+ * searched in place, so large books don't take any heap.
+ *
+ * Castling and en passant entries are never played since the board can't make
+ * those moves.
+ */
+public class OpeningBook {
+    public static final int ENTRY_SIZE = 16;
+    /**
+     * A single mapping can't be larger than 2 GB, so larger files are mapped in
+     * segments of this many entries.
+     */
+    private static final int SEGMENT_ENTRIES = 1 << 26;
+    /**
+     * Polyglot's promotion numbers, indexed by the three promotion bits of the move.
+     */
+    private static final PieceType[] PROMOTION_TYPES = new PieceType[] {
+        null, PieceType.KNIGHT, PieceType.BISHOP, PieceType.ROOK, PieceType.QUEEN
+    };
+    private final MappedByteBuffer[] mSegments;
+    private final long mEntryCount;
+    private final Random mRandom = new Random();
+
+    private OpeningBook(MappedByteBuffer[] segments, long entryCount) {
+        mSegments = segments;
+        mEntryCount = entryCount;
+    }
+
+    /**
+     * Memory-map the book in the file.
+     *
+     * @throws IOException if the file can't be read or isn't a whole number of
+     * entries, or if the standard Polyglot numbers aren't available.
+     */
+    public static OpeningBook load(File file) throws IOException {
+        if (!PolyglotKeys.isAvailable()) {
+            throw new IOException(PolyglotKeys.getLoadError());
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size % ENTRY_SIZE != 0) {
+                throw new IOException("Not a Polyglot book: " + file);
+            }
+
+            long entryCount = size/ENTRY_SIZE;
+            int segmentCount = (int) ((entryCount + SEGMENT_ENTRIES - 1)/SEGMENT_ENTRIES);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = (long) i*SEGMENT_ENTRIES*ENTRY_SIZE;
+                long length = Math.min(size - start, (long) SEGMENT_ENTRIES*ENTRY_SIZE);
+                // The mapping stays valid after the channel is closed.
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+
+            return new OpeningBook(segments, entryCount);
+        }
+    }
+
+    /**
+     * Seed the random number generator that picks among book moves, to make
+     * games repeatable.
+     */
+    public void setSeed(long seed) {
+        mRandom.setSeed(seed);
+    }
+
+    /**
+     * Return the number of entries in the book.
+     */
+    public long getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Return a book move for the side to move in the current position of the
+     * game, or null if the position isn't in the book. Moves are picked at random
+     * in proportion to their weight.
+     */
+    public Move getMove(Game game, int side) {
+        Board board = game.getBoard();
+        long key = PolyglotKeys.getKey(game, side);
+        List<Move> legalMoves = board.generateAllLegalMoves(side);
+
+        List<Move> bookMoves = new ArrayList<Move>();
+        List<Integer> weights = new ArrayList<Integer>();
+        int totalWeight = 0;
+
+        for (long entry = findFirstEntry(key); entry < mEntryCount && getEntryKey(entry) == key; entry++) {
+            int weight = getEntryWeight(entry);
+            Move move = findMove(legalMoves, getEntryMove(entry));
+            if (move != null && weight > 0) {
+                bookMoves.add(move);
+                weights.add(weight);
+                totalWeight += weight;
+            }
+        }
+
+        if (bookMoves.isEmpty()) {
+            return null;
+        }
+
+        int pick = mRandom.nextInt(totalWeight);
+        for (int i = 0; i < bookMoves.size(); i++) {
+            pick -= weights.get(i);
+            if (pick < 0) {
+                return bookMoves.get(i);
+            }
+        }
+
+        // Can't happen.
+        throw new IllegalStateException("Weights don't add up");
+    }
+
+    /**
+     * Return the index of the first entry with a key not less than this one, or
+     * the entry count if there is none. Keys are compared unsigned.
+     */
+    private long findFirstEntry(long key) {
+        long low = 0;
+        long high = mEntryCount;
+
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(getEntryKey(middle), key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Return the legal move that matches the Polyglot move bits, or null if none.
+     */
+    private static Move findMove(List<Move> legalMoves, int moveBits) {
+        int toIndex = Board.getIndex((moveBits & 7) + 1, ((moveBits >> 3) & 7) + 1);
+        int fromIndex = Board.getIndex(((moveBits >> 6) & 7) + 1, ((moveBits >> 9) & 7) + 1);
+        int promotion = (moveBits >> 12) & 7;
+        PieceType promotionType = promotion < PROMOTION_TYPES.length ? PROMOTION_TYPES[promotion] : null;
+
+        for (Move move : legalMoves) {
+            if (move.getFromIndex() == fromIndex && move.getToIndex() == toIndex) {
+                Piece promotedPiece = move.getPromotedPiece();
+                PieceType moveType = promotedPiece == Piece.EMPTY ? null : promotedPiece.getPieceType();
+                if (moveType == promotionType) {
+                    return move;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Return the Polyglot move bits for our move, for writing books.
+     */
+    public static int getMoveBits(Move move) {
+        int fromIndex = move.getFromIndex();
+        int toIndex = move.getToIndex();
+        int moveBits = (Board.getFile(toIndex) - 1)
+            | (Board.getRank(toIndex) - 1) << 3
+            | (Board.getFile(fromIndex) - 1) << 6
+            | (Board.getRank(fromIndex) - 1) << 9;
+
+        Piece promotedPiece = move.getPromotedPiece();
+        if (promotedPiece != Piece.EMPTY) {
+            for (int i = 1; i < PROMOTION_TYPES.length; i++) {
+                if (PROMOTION_TYPES[i] == promotedPiece.getPieceType()) {
+                    moveBits |= i << 12;
+                }
+            }
+        }
+
+        return moveBits;
+    }
+
+    private long getEntryKey(long entry) {
+        return getSegment(entry).getLong(getOffset(entry));
+    }
+
+    private int getEntryMove(long entry) {
+        return getSegment(entry).getShort(getOffset(entry) + 8) & 0xFFFF;
+    }
+
+    private int getEntryWeight(long entry) {
+        return getSegment(entry).getShort(getOffset(entry) + 10) & 0xFFFF;
+    }
+
+    private MappedByteBuffer getSegment(long entry) {
+        return mSegments[(int) (entry/SEGMENT_ENTRIES)];
+    }
+
+    private static int getOffset(long entry) {
+        return (int) (entry % SEGMENT_ENTRIES)*ENTRY_SIZE;
+    }
+}
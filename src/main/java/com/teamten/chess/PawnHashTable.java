@@ -0,0 +1,84 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+/**
+ * Fixed-size cache of pawn structure evaluations, indexed by the pawn-only
+ * Zobrist hash. Each entry keeps the pawn structure score and the mask of
+ * passed pawns. Newer entries replace older ones in the same slot. Not
+ * thread-safe, each search thread should have its own.
+ */
+public class PawnHashTable {
+    private final long[] mKeys;
+    private final int[] mScores;
+    private final long[] mPassedPawns;
+    private final int mMask;
+
+    /**
+     * Create a table with the given number of entries, rounded up to a power of two.
+     */
+    public PawnHashTable(int entryCount) {
+        int size = Integer.highestOneBit(Math.max(entryCount - 1, 1)) << 1;
+
+        // All keys start at zero, which is the pawn hash of a board without
+        // pawns, so those entries are correct: a zero score and no passed pawns.
+        mKeys = new long[size];
+        mScores = new int[size];
+        mPassedPawns = new long[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Return the slot for this pawn hash if it's in the table, otherwise -1.
+     */
+    public int find(long pawnHash) {
+        int slot = (int) pawnHash & mMask;
+
+        return mKeys[slot] == pawnHash ? slot : -1;
+    }
+
+    /**
+     * Return the pawn structure score in centipawns, from white's point of view,
+     * of the slot returned by find() or store().
+     */
+    public int getScore(int slot) {
+        return mScores[slot];
+    }
+
+    /**
+     * Return the mask of passed pawns (of both sides) of the slot returned by
+     * find() or store(). Bits are board indices.
+     */
+    public long getPassedPawns(int slot) {
+        return mPassedPawns[slot];
+    }
+
+    /**
+     * Store the pawn structure evaluation for this hash, returning its slot.
+     */
+    public int store(long pawnHash, int score, long passedPawns) {
+        int slot = (int) pawnHash & mMask;
+
+        mKeys[slot] = pawnHash;
+        mScores[slot] = score;
+        mPassedPawns[slot] = passedPawns;
+
+        return slot;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures how fast PGN files can be parsed, replayed, and written, on one thread.
+ */
+public class PgnBenchmark {
+    private static final double NANOS_PER_MINUTE = 60e9;
+
+    /**
+     * Arguments are the PGN file to read and the file to write the replayed
+     * games to.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: PgnBenchmark in.pgn out.pgn");
+            System.exit(1);
+        }
+        File inputFile = new File(args[0]);
+        File outputFile = new File(args[1]);
+
+        // Parse only.
+        long beforeTime = System.nanoTime();
+        long gameCount = 0;
+        long moveCount = 0;
+        try (PgnReader pgnReader = PgnReader.open(inputFile)) {
+            while (pgnReader.readGame()) {
+                gameCount++;
+                moveCount += pgnReader.getMoves().size();
+            }
+        }
+        long parseTime = System.nanoTime() - beforeTime;
+        report("Parse", gameCount, moveCount, parseTime);
+
+        // Parse, replay, replay again from packed moves, and write.
+        long replayTime = 0;
+        long trustedTime = 0;
+        long writeTime = 0;
+        long replayedMoveCount = 0;
+        long stoppedCount = 0;
+        beforeTime = System.nanoTime();
+        try (PgnReader pgnReader = PgnReader.open(inputFile);
+                PgnWriter pgnWriter = PgnWriter.open(outputFile)) {
+
+            while (pgnReader.readGame()) {
+                long replayStart = System.nanoTime();
+                Board board = new Board();
+                board.initializeTraditionalChess();
+                Game game = new Game(board);
+                for (String san : pgnReader.getMoves()) {
+                    try {
+                        game.addMove(Move.parseAlgebraicNotation(board, san));
+                    } catch (IllegalArgumentException e) {
+                        stoppedCount++;
+                        break;
+                    }
+                }
+                replayedMoveCount += game.getMoveCount();
+                long trustedStart = System.nanoTime();
+                replayTime += trustedStart - replayStart;
+
+                // Replay again from packed moves, as for a UCI position command.
+                int[] packedMoves = new int[game.getMoveCount()];
+                for (int i = 0; i < packedMoves.length; i++) {
+                    packedMoves[i] = game.getMove(i).pack();
+                }
+                trustedStart = System.nanoTime();
+                Board trustedBoard = new Board();
+                trustedBoard.initializeTraditionalChess();
+                new Game(trustedBoard).addMovesTrusted(packedMoves, packedMoves.length);
+
+                long writeStart = System.nanoTime();
+                trustedTime += writeStart - trustedStart;
+                pgnWriter.writeGame(pgnReader.getTags(), game, pgnReader.getResult());
+                writeTime += System.nanoTime() - writeStart;
+            }
+        }
+        long totalTime = System.nanoTime() - beforeTime;
+
+        report("Replay", gameCount, replayedMoveCount, replayTime);
+        report("Trust", gameCount, replayedMoveCount, trustedTime);
+        System.out.printf("       %.1f microseconds per 100 plies of trusted replay%n",
+                trustedTime/1000.0/Math.max(replayedMoveCount, 1)*100);
+        report("Write", gameCount, replayedMoveCount, writeTime);
+        report("Total", gameCount, replayedMoveCount, totalTime);
+        if (stoppedCount != 0) {
+            System.out.printf("%d games stopped early at castling, en passant, or a bad move%n",
+                    stoppedCount);
+        }
+    }
+
+    private static void report(String label, long gameCount, long moveCount, long nanos) {
+        System.out.printf("%-6s %,d games, %,d moves in %.2f s: %,.0f games/minute, %,.0f moves/second%n",
+                label, gameCount, moveCount, nanos/1e9,
+                gameCount*NANOS_PER_MINUTE/Math.max(nanos, 1),
+                moveCount*1e9/Math.max(nanos, 1));
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads games one at a time from a PGN stream. Only the tags, the main line's
+ * moves (as SAN strings), and the result are kept. Comments, variations, and
+ * NAGs are skipped.
+ *
+ * The stream is read through a large NIO buffer and parsed as ISO-8859-1
+ * bytes, without a character decoder, so files of any size stream through at
+ * disk speed.
+ *
+ * https://www.chessclub.com/user/help/PGN-spec
+ */
+public class PgnReader implements Closeable {
+    private static final int BUFFER_SIZE = 1024*1024;
+    private final ReadableByteChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] mBytes = mBuffer.array();
+    private int mPosition;
+    private int mLimit;
+    private final Map<String,String> mTags = new LinkedHashMap<String,String>();
+    private final List<String> mMoves = new ArrayList<String>();
+    private byte[] mToken = new byte[256];
+    private int mTokenLength;
+    private int mResult;
+
+    public PgnReader(ReadableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Open a reader for the PGN file.
+     */
+    public static PgnReader open(File file) throws IOException {
+        return new PgnReader(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    /**
+     * Read the next game. Returns false at the end of the stream.
+     */
+    public boolean readGame() throws IOException {
+        mTags.clear();
+        mMoves.clear();
+        mResult = Side.IN_PROGRESS;
+        boolean sawGame = false;
+
+        while (true) {
+            int ch = peek();
+            if (ch == -1) {
+                return sawGame;
+            }
+
+            if (ch == '[' && !mMoves.isEmpty()) {
+                // New game without a result for the previous one.
+                return true;
+            }
+
+            next();
+            if (isWhitespace(ch)) {
+                // Skip.
+            } else if (ch == '[') {
+                readTag();
+                sawGame = true;
+            } else if (ch == '{') {
+                skipTo('}');
+            } else if (ch == ';' || ch == '%') {
+                skipTo('\n');
+            } else if (ch == '(') {
+                skipVariation();
+            } else if (ch == '$') {
+                readToken(ch);
+            } else {
+                String token = readToken(ch);
+                sawGame = true;
+                if (token.equals("1-0") || token.equals("0-1") || token.equals("1/2-1/2") || token.equals("*")) {
+                    mResult = Side.fromPgnNotation(token);
+                    return true;
+                }
+
+                // Strip move number, like "12." or "12...".
+                int i = 0;
+                while (i < token.length() && Character.isDigit(token.charAt(i))) {
+                    i++;
+                }
+                if (i < token.length() && token.charAt(i) == '.') {
+                    while (i < token.length() && token.charAt(i) == '.') {
+                        i++;
+                    }
+                    token = token.substring(i);
+                }
+
+                if (!token.isEmpty() && !Character.isDigit(token.charAt(0))) {
+                    mMoves.add(token);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the tags of the last game read, in file order.
+     */
+    public Map<String,String> getTags() {
+        return mTags;
+    }
+
+    /**
+     * Return the value of a tag of the last game read, or null if it's missing.
+     */
+    public String getTag(String name) {
+        return mTags.get(name);
+    }
+
+    /**
+     * Return the main line moves of the last game read, in SAN.
+     */
+    public List<String> getMoves() {
+        return mMoves;
+    }
+
+    /**
+     * Return the winner of the last game read, or Side.DRAW or Side.IN_PROGRESS.
+     * The Result tag is used if the movetext has no result.
+     */
+    public int getResult() {
+        if (mResult == Side.IN_PROGRESS) {
+            String result = mTags.get("Result");
+            if (result != null) {
+                try {
+                    return Side.fromPgnNotation(result);
+                } catch (IllegalArgumentException e) {
+                    // Ignore bad tag.
+                }
+            }
+        }
+
+        return mResult;
+    }
+
+    @Override // Closeable
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    /**
+     * Read a tag after its opening bracket, like: Event "Casual game"]
+     */
+    private void readTag() throws IOException {
+        mTokenLength = 0;
+        int ch;
+        while ((ch = next()) != -1 && ch != '"' && ch != ']') {
+            if (!isWhitespace(ch)) {
+                appendToken(ch);
+            }
+        }
+        String name = getToken();
+
+        mTokenLength = 0;
+        if (ch == '"') {
+            while ((ch = next()) != -1 && ch != '"') {
+                if (ch == '\\') {
+                    ch = next();
+                }
+                if (ch != -1) {
+                    appendToken(ch);
+                }
+            }
+            skipTo(']');
+        }
+
+        mTags.put(name, getToken());
+    }
+
+    /**
+     * Read a token that starts with the character.
+     */
+    private String readToken(int first) throws IOException {
+        mTokenLength = 0;
+        appendToken(first);
+
+        while (true) {
+            int ch = peek();
+            if (ch == -1 || isWhitespace(ch) || ch == '{' || ch == '}' || ch == '(' || ch == ')'
+                    || ch == '[' || ch == ']' || ch == ';' || ch == '$') {
+
+                break;
+            }
+            appendToken(ch);
+            mPosition++;
+        }
+
+        return getToken();
+    }
+
+    private void appendToken(int ch) {
+        if (mTokenLength == mToken.length) {
+            mToken = Arrays.copyOf(mToken, mTokenLength*2);
+        }
+        mToken[mTokenLength++] = (byte) ch;
+    }
+
+    private String getToken() {
+        return new String(mToken, 0, mTokenLength, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isWhitespace(int ch) {
+        return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t' || ch == '\f';
+    }
+
+    /**
+     * Skip a variation after its opening parenthesis, including nested ones.
+     */
+    private void skipVariation() throws IOException {
+        int depth = 1;
+        int ch;
+        while (depth > 0 && (ch = next()) != -1) {
+            if (ch == '(') {
+                depth++;
+            } else if (ch == ')') {
+                depth--;
+            } else if (ch == '{') {
+                skipTo('}');
+            } else if (ch == ';') {
+                skipTo('\n');
+            }
+        }
+    }
+
+    /**
+     * Skip past the next instance of the character.
+     */
+    private void skipTo(char end) throws IOException {
+        int ch;
+        while ((ch = next()) != -1 && ch != end) {
+            // Skip.
+        }
+    }
+
+    /**
+     * Return the next character without consuming it, or -1 at the end.
+     */
+    private int peek() throws IOException {
+        if (mPosition == mLimit) {
+            mBuffer.clear();
+            int count;
+            do {
+                count = mChannel.read(mBuffer);
+            } while (count == 0);
+            mPosition = 0;
+            mLimit = Math.max(count, 0);
+            if (count == -1) {
+                return -1;
+            }
+        }
+
+        return mBytes[mPosition] & 0xFF;
+    }
+
+    /**
+     * Return and consume the next character, or -1 at the end.
+     */
+    private int next() throws IOException {
+        int ch = peek();
+        if (ch != -1) {
+            mPosition++;
+        }
+
+        return ch;
+    }
+}
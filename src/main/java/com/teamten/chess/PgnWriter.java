@@ -0,0 +1,188 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes games in PGN. Games are formatted straight into a byte buffer that's
+ * written out in large batches, instead of formatting each move separately.
+ * Movetext lines are wrapped at 80 columns as the PGN spec asks.
+ */
+public class PgnWriter implements Closeable, Flushable {
+    private static final int FLUSH_SIZE = 1024*1024;
+    /**
+     * Enough for a typical game, so that writing one game doesn't allocate a
+     * full batch. The buffer grows to FLUSH_SIZE when writing many games.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 4*1024;
+    private static final int MAX_LINE_LENGTH = 79;
+    private final WritableByteChannel mChannel;
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int mLength;
+    private int mLineStart;
+
+    public PgnWriter(WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Open a writer that replaces the contents of the file.
+     */
+    public static PgnWriter open(File file) throws IOException {
+        return new PgnWriter(FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Write a game's moves.
+     *
+     * @param tags the tags in order, such as Event and White.
+     * @param result the winning side, Side.DRAW, or Side.IN_PROGRESS.
+     */
+    public void writeGame(Map<String,String> tags, Game game, int result) throws IOException {
+        writeGame(tags, Arrays.asList(game.getAlgebraicNotations(false)), result);
+    }
+
+    /**
+     * Write a game with its moves in SAN.
+     *
+     * @param tags the tags in order, such as Event and White.
+     * @param result the winning side, Side.DRAW, or Side.IN_PROGRESS.
+     */
+    public void writeGame(Map<String,String> tags, List<String> moves, int result) throws IOException {
+        for (Map.Entry<String,String> entry : tags.entrySet()) {
+            append('[');
+            append(entry.getKey());
+            append(' ');
+            append('"');
+            String value = entry.getValue();
+            for (int i = 0; i < value.length(); i++) {
+                char ch = value.charAt(i);
+                if (ch == '"' || ch == '\\') {
+                    append('\\');
+                }
+                append(ch);
+            }
+            append('"');
+            append(']');
+            append('\n');
+        }
+        append('\n');
+
+        mLineStart = mLength;
+        for (int ply = 0; ply < moves.size(); ply++) {
+            if (ply % 2 == 0) {
+                appendWord(ply/2 + 1, moves.get(ply));
+            } else {
+                appendWord(0, moves.get(ply));
+            }
+        }
+        appendWord(0, Side.toPgnNotation(result));
+        append('\n');
+        append('\n');
+
+        if (mLength >= FLUSH_SIZE) {
+            flushBuffer();
+        }
+    }
+
+    @Override // Flushable
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override // Closeable
+    public void close() throws IOException {
+        flushBuffer();
+        mChannel.close();
+    }
+
+    /**
+     * Append a movetext word, preceded by the move number (as in "12. e4") if
+     * it's not zero, wrapping the line first if needed.
+     */
+    private void appendWord(int moveNumber, String word) {
+        String prefix = moveNumber == 0 ? null : Integer.toString(moveNumber);
+        int wordLength = word.length() + (prefix == null ? 0 : prefix.length() + 2);
+        if (mLength > mLineStart) {
+            if (mLength - mLineStart + 1 + wordLength > MAX_LINE_LENGTH) {
+                append('\n');
+                mLineStart = mLength;
+            } else {
+                append(' ');
+            }
+        }
+
+        if (prefix != null) {
+            append(prefix);
+            append('.');
+            append(' ');
+        }
+        append(word);
+    }
+
+    private void append(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            mBuffer[mLength++] = toByte(s.charAt(i));
+        }
+    }
+
+    private void append(char ch) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = toByte(ch);
+    }
+
+    /**
+     * PGN is ISO-8859-1, so other characters can't be written.
+     */
+    private static byte toByte(char ch) {
+        return (byte) (ch <= 0xFF ? ch : '?');
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length*2, mLength + extra));
+        }
+    }
+
+    /**
+     * Write everything in the buffer to the channel.
+     */
+    private void flushBuffer() throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(mBuffer, 0, mLength);
+        while (byteBuffer.hasRemaining()) {
+            mChannel.write(byteBuffer);
+        }
+        mLength = 0;
+        mLineStart = 0;
+    }
+}
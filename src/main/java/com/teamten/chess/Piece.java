@@ -27,27 +27,33 @@ import java.util.List;
  * Represents a piece of a type and color.
  */
 public class Piece {
-    public static final Piece EMPTY = new Piece(null, 0);
-    public static final Piece WHITE_PAWN = new Piece(PieceType.PAWN, Side.WHITE);
-    public static final Piece WHITE_BISHOP = new Piece(PieceType.BISHOP, Side.WHITE);
-    public static final Piece WHITE_KNIGHT = new Piece(PieceType.KNIGHT, Side.WHITE);
-    public static final Piece WHITE_ROOK = new Piece(PieceType.ROOK, Side.WHITE);
-    public static final Piece WHITE_QUEEN = new Piece(PieceType.QUEEN, Side.WHITE);
-    public static final Piece WHITE_KING = new Piece(PieceType.KING, Side.WHITE);
-    public static final Piece BLACK_PAWN = new Piece(PieceType.PAWN, Side.BLACK);
-    public static final Piece BLACK_BISHOP = new Piece(PieceType.BISHOP, Side.BLACK);
-    public static final Piece BLACK_KNIGHT = new Piece(PieceType.KNIGHT, Side.BLACK);
-    public static final Piece BLACK_ROOK = new Piece(PieceType.ROOK, Side.BLACK);
-    public static final Piece BLACK_QUEEN = new Piece(PieceType.QUEEN, Side.BLACK);
-    public static final Piece BLACK_KING = new Piece(PieceType.KING, Side.BLACK);
+    public static final Piece EMPTY = new Piece(null, 0, -1);
+    public static final Piece WHITE_PAWN = new Piece(PieceType.PAWN, Side.WHITE, 0);
+    public static final Piece WHITE_BISHOP = new Piece(PieceType.BISHOP, Side.WHITE, 1);
+    public static final Piece WHITE_KNIGHT = new Piece(PieceType.KNIGHT, Side.WHITE, 2);
+    public static final Piece WHITE_ROOK = new Piece(PieceType.ROOK, Side.WHITE, 3);
+    public static final Piece WHITE_QUEEN = new Piece(PieceType.QUEEN, Side.WHITE, 4);
+    public static final Piece WHITE_KING = new Piece(PieceType.KING, Side.WHITE, 5);
+    public static final Piece BLACK_PAWN = new Piece(PieceType.PAWN, Side.BLACK, 6);
+    public static final Piece BLACK_BISHOP = new Piece(PieceType.BISHOP, Side.BLACK, 7);
+    public static final Piece BLACK_KNIGHT = new Piece(PieceType.KNIGHT, Side.BLACK, 8);
+    public static final Piece BLACK_ROOK = new Piece(PieceType.ROOK, Side.BLACK, 9);
+    public static final Piece BLACK_QUEEN = new Piece(PieceType.QUEEN, Side.BLACK, 10);
+    public static final Piece BLACK_KING = new Piece(PieceType.KING, Side.BLACK, 11);
     private static final List<Piece> ALL_PIECES = getPieceList();
+    /**
+     * Number of different pieces, not including EMPTY. See getIndex().
+     */
+    public static final int NUM_PIECES = 12;
 
     private final PieceType mPieceType;
     private final int mSide;
+    private final int mIndex;
 
-    private Piece(PieceType pieceType, int side) {
+    private Piece(PieceType pieceType, int side, int index) {
         mPieceType = pieceType;
         mSide = side;
+        mIndex = index;
     }
 
     /**
@@ -66,22 +72,45 @@ public class Piece {
     }
 
     /**
-     * Return the position bonus for this piece at this location.
+     * Return a unique index for this piece, from 0 to NUM_PIECES - 1, or -1 for
+     * an empty square. Useful for indexing tables by piece.
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Return the middle game position bonus in centipawns for this piece at this location.
      */
-    public double getPositionBonus(int index) {
+    public int getMiddleGamePositionBonus(int index) {
         if (mPieceType == null) {
             // Convenience so we can call this on EMPTY.
             return 0;
         } else {
-            if (mSide == Side.BLACK) {
-                // Piece types are from white's point of view. Note that this depends
-                // on the position bonus to be left-right symmetric.
-                index = Board.NUM_SQUARES - 1 - index;
-            }
-            return mPieceType.getPositionBonus(index);
+            return mPieceType.getMiddleGamePositionBonus(getWhiteIndex(index));
+        }
+    }
+
+    /**
+     * Return the end game position bonus in centipawns for this piece at this location.
+     */
+    public int getEndGamePositionBonus(int index) {
+        if (mPieceType == null) {
+            // Convenience so we can call this on EMPTY.
+            return 0;
+        } else {
+            return mPieceType.getEndGamePositionBonus(getWhiteIndex(index));
         }
     }
 
+    /**
+     * Piece types are from white's point of view, so flip the rank of the index
+     * for black pieces.
+     */
+    private int getWhiteIndex(int index) {
+        return mSide == Side.BLACK ? index ^ (Board.NUM_SQUARES - Board.SIZE) : index;
+    }
+
     /**
      * Return the character that can be used to represent this piece in ASCII mode.
      */
@@ -155,6 +184,13 @@ public class Piece {
             BLACK_KING);
     }
 
+    /**
+     * Return the piece that would have returned this from its getIndex() method.
+     */
+    public static Piece getPieceForIndex(int index) {
+        return ALL_PIECES.get(index);
+    }
+
     /**
      * Return the piece that would have returned this from its getCharacter()
      * method.
@@ -28,8 +28,8 @@ import java.util.List;
  * color.
  */
 public abstract class PieceType {
-    public static final PieceType PAWN = new PieceType('p', 5, 1) {
-        private final int[] POSITION_BONUS = new int[]{
+    public static final PieceType PAWN = new PieceType('p', 5, 100, 0) {
+        private final int[] MIDDLE_GAME_POSITION_BONUS = new int[]{
              0,  0,  0,  0,  0,  0,  0,  0,
             50, 50, 50, 50, 50, 50, 50, 50,
             10, 10, 20, 30, 30, 20, 10, 10,
@@ -39,6 +39,16 @@ public abstract class PieceType {
              5, 10, 10,-25,-25, 10, 10,  5,
              0,  0,  0,  0,  0,  0,  0,  0
         };
+        private final int[] END_GAME_POSITION_BONUS = new int[]{
+              0,  0,  0,  0,  0,  0,  0,  0,
+            100,100,100,100,100,100,100,100,
+             70, 70, 70, 70, 70, 70, 70, 70,
+             45, 45, 45, 45, 45, 45, 45, 45,
+             25, 25, 25, 25, 25, 25, 25, 25,
+             10, 10, 10, 10, 10, 10, 10, 10,
+              0,  0,  0,  0,  0,  0,  0,  0,
+              0,  0,  0,  0,  0,  0,  0,  0,
+        };
 
         @Override // PieceType
         public void addMoves(Board board, int index, int side, boolean capturesOnly,
@@ -100,12 +110,17 @@ public abstract class PieceType {
         }
 
         @Override // PieceType
-        public double getPositionBonus(int index) {
-            return POSITION_BONUS[index]/100.0;
+        public int getMiddleGamePositionBonus(int index) {
+            return MIDDLE_GAME_POSITION_BONUS[index];
+        }
+
+        @Override // PieceType
+        public int getEndGamePositionBonus(int index) {
+            return END_GAME_POSITION_BONUS[index];
         }
     };
-    public static final PieceType BISHOP = new PieceType('b', 3, 3) {
-        private final int[] POSITION_BONUS = new int[]{
+    public static final PieceType BISHOP = new PieceType('b', 3, 300, 1) {
+        private final int[] MIDDLE_GAME_POSITION_BONUS = new int[]{
             -20,-10,-10,-10,-10,-10,-10,-20,
             -10,  0,  0,  0,  0,  0,  0,-10,
             -10,  0,  5, 10, 10,  5,  0,-10,
@@ -115,6 +130,16 @@ public abstract class PieceType {
             -10,  5,  0,  0,  0,  0,  5,-10,
             -20,-10,-40,-10,-10,-40,-10,-20,
         };
+        private final int[] END_GAME_POSITION_BONUS = new int[]{
+            -20,-10,-10,-10,-10,-10,-10,-20,
+            -10,  0,  0,  0,  0,  0,  0,-10,
+            -10,  0,  5, 10, 10,  5,  0,-10,
+            -10,  5, 10, 15, 15, 10,  5,-10,
+            -10,  5, 10, 15, 15, 10,  5,-10,
+            -10,  0,  5, 10, 10,  5,  0,-10,
+            -10,  0,  0,  0,  0,  0,  0,-10,
+            -20,-10,-10,-10,-10,-10,-10,-20,
+        };
 
         // Pair of numbers to provide the four directions, starting up-right
         // and going clockwise.
@@ -135,12 +160,17 @@ public abstract class PieceType {
         }
 
         @Override // PieceType
-        public double getPositionBonus(int index) {
-            return POSITION_BONUS[index]/100.0;
+        public int getMiddleGamePositionBonus(int index) {
+            return MIDDLE_GAME_POSITION_BONUS[index];
+        }
+
+        @Override // PieceType
+        public int getEndGamePositionBonus(int index) {
+            return END_GAME_POSITION_BONUS[index];
         }
     };
-    public static final PieceType KNIGHT = new PieceType('n', 4, 3) {
-        private final int[] POSITION_BONUS = new int[]{
+    public static final PieceType KNIGHT = new PieceType('n', 4, 300, 1) {
+        private final int[] MIDDLE_GAME_POSITION_BONUS = new int[]{
             -50,-40,-30,-30,-30,-30,-40,-50,
             -40,-20,  0,  0,  0,  0,-20,-40,
             -30,  0, 10, 15, 15, 10,  0,-30,
@@ -150,6 +180,16 @@ public abstract class PieceType {
             -40,-20,  0,  5,  5,  0,-20,-40,
             -50,-40,-20,-30,-30,-20,-40,-50,
         };
+        private final int[] END_GAME_POSITION_BONUS = new int[]{
+            -50,-40,-30,-30,-30,-30,-40,-50,
+            -40,-20,  0,  0,  0,  0,-20,-40,
+            -30,  0, 10, 15, 15, 10,  0,-30,
+            -30,  5, 15, 20, 20, 15,  5,-30,
+            -30,  0, 15, 20, 20, 15,  0,-30,
+            -30,  5, 10, 15, 15, 10,  5,-30,
+            -40,-20,  0,  5,  5,  0,-20,-40,
+            -50,-40,-30,-30,-30,-30,-40,-50,
+        };
 
         // Pair of numbers to provide the eight directions, starting up-right
         // and going clockwise.
@@ -170,11 +210,37 @@ public abstract class PieceType {
         }
 
         @Override // PieceType
-        public double getPositionBonus(int index) {
-            return POSITION_BONUS[index]/100.0;
+        public int getMiddleGamePositionBonus(int index) {
+            return MIDDLE_GAME_POSITION_BONUS[index];
+        }
+
+        @Override // PieceType
+        public int getEndGamePositionBonus(int index) {
+            return END_GAME_POSITION_BONUS[index];
         }
     };
-    public static final PieceType ROOK = new PieceType('r', 2, 5) {
+    public static final PieceType ROOK = new PieceType('r', 2, 500, 2) {
+        private final int[] MIDDLE_GAME_POSITION_BONUS = new int[]{
+              0,  0,  0,  0,  0,  0,  0,  0,
+              5, 10, 10, 10, 10, 10, 10,  5,
+             -5,  0,  0,  0,  0,  0,  0, -5,
+             -5,  0,  0,  0,  0,  0,  0, -5,
+             -5,  0,  0,  0,  0,  0,  0, -5,
+             -5,  0,  0,  0,  0,  0,  0, -5,
+             -5,  0,  0,  0,  0,  0,  0, -5,
+              0,  0,  0,  5,  5,  0,  0,  0,
+        };
+        private final int[] END_GAME_POSITION_BONUS = new int[]{
+              0,  0,  0,  0,  0,  0,  0,  0,
+             10, 10, 10, 10, 10, 10, 10, 10,
+              0,  0,  0,  0,  0,  0,  0,  0,
+              0,  0,  0,  0,  0,  0,  0,  0,
+              0,  0,  0,  0,  0,  0,  0,  0,
+              0,  0,  0,  0,  0,  0,  0,  0,
+              0,  0,  0,  0,  0,  0,  0,  0,
+              0,  0,  0,  0,  0,  0,  0,  0,
+        };
+
         // Pair of numbers to provide the four directions, starting up and going clockwise.
         private final int[] FILE_DELTAS = new int[] { 0, 1, 0, -1 };
         private final int[] RANK_DELTAS = new int[] { 1, 0, -1, 0 };
@@ -191,8 +257,39 @@ public abstract class PieceType {
         public String toString() {
             return "rook";
         }
+
+        @Override // PieceType
+        public int getMiddleGamePositionBonus(int index) {
+            return MIDDLE_GAME_POSITION_BONUS[index];
+        }
+
+        @Override // PieceType
+        public int getEndGamePositionBonus(int index) {
+            return END_GAME_POSITION_BONUS[index];
+        }
     };
-    public static final PieceType QUEEN = new PieceType('q', 1, 9) {
+    public static final PieceType QUEEN = new PieceType('q', 1, 900, 4) {
+        private final int[] MIDDLE_GAME_POSITION_BONUS = new int[]{
+            -20,-10,-10, -5, -5,-10,-10,-20,
+            -10,  0,  0,  0,  0,  0,  0,-10,
+            -10,  0,  5,  5,  5,  5,  0,-10,
+             -5,  0,  5,  5,  5,  5,  0, -5,
+             -5,  0,  5,  5,  5,  5,  0, -5,
+            -10,  0,  5,  5,  5,  5,  0,-10,
+            -10,  0,  0,  0,  0,  0,  0,-10,
+            -20,-10,-10, -5, -5,-10,-10,-20,
+        };
+        private final int[] END_GAME_POSITION_BONUS = new int[]{
+            -20,-10,-10, -5, -5,-10,-10,-20,
+            -10,  0,  5,  5,  5,  5,  0,-10,
+            -10,  5, 10, 10, 10, 10,  5,-10,
+             -5,  5, 10, 15, 15, 10,  5, -5,
+             -5,  5, 10, 15, 15, 10,  5, -5,
+            -10,  5, 10, 10, 10, 10,  5,-10,
+            -10,  0,  5,  5,  5,  5,  0,-10,
+            -20,-10,-10, -5, -5,-10,-10,-20,
+        };
+
         // Pair of numbers to provide the eight directions, starting up and going clockwise.
         private final int[] FILE_DELTAS = new int[] { 0, 1, 1, 1, 0, -1, -1, -1 };
         private final int[] RANK_DELTAS = new int[] { 1, 1, 0, -1, -1, -1, 0, 1 };
@@ -209,8 +306,39 @@ public abstract class PieceType {
         public String toString() {
             return "queen";
         }
+
+        @Override // PieceType
+        public int getMiddleGamePositionBonus(int index) {
+            return MIDDLE_GAME_POSITION_BONUS[index];
+        }
+
+        @Override // PieceType
+        public int getEndGamePositionBonus(int index) {
+            return END_GAME_POSITION_BONUS[index];
+        }
     };
-    public static final PieceType KING = new PieceType('k', 0, 200) { // Shannon
+    public static final PieceType KING = new PieceType('k', 0, 20000, 0) { // Shannon
+        private final int[] MIDDLE_GAME_POSITION_BONUS = new int[]{
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -20,-30,-30,-40,-40,-30,-30,-20,
+            -10,-20,-20,-20,-20,-20,-20,-10,
+             20, 20,  0,  0,  0,  0, 20, 20,
+             20, 30, 10,  0,  0, 10, 30, 20,
+        };
+        private final int[] END_GAME_POSITION_BONUS = new int[]{
+            -50,-40,-30,-20,-20,-30,-40,-50,
+            -30,-20,-10,  0,  0,-10,-20,-30,
+            -30,-10, 20, 30, 30, 20,-10,-30,
+            -30,-10, 30, 40, 40, 30,-10,-30,
+            -30,-10, 30, 40, 40, 30,-10,-30,
+            -30,-10, 20, 30, 30, 20,-10,-30,
+            -30,-30,  0,  0,  0,  0,-30,-30,
+            -50,-30,-30,-30,-30,-30,-30,-50,
+        };
+
         // Pair of numbers to provide the eight directions, starting up and going clockwise.
         private final int[] FILE_DELTAS = new int[] { 0, 1, 1, 1, 0, -1, -1, -1 };
         private final int[] RANK_DELTAS = new int[] { 1, 1, 0, -1, -1, -1, 0, 1 };
@@ -227,16 +355,33 @@ public abstract class PieceType {
         public String toString() {
             return "king";
         }
+
+        @Override // PieceType
+        public int getMiddleGamePositionBonus(int index) {
+            return MIDDLE_GAME_POSITION_BONUS[index];
+        }
+
+        @Override // PieceType
+        public int getEndGamePositionBonus(int index) {
+            return END_GAME_POSITION_BONUS[index];
+        }
     };
 
+    /**
+     * Game phase of the full set of starting pieces. See getPhase().
+     */
+    public static final int MAX_PHASE = 24;
+
     private final char mCharacter;
     private final int mUnicodeOffset;
     private final int mValue;
+    private final int mPhase;
 
-    private PieceType(char ch, int unicodeOffset, int value) {
+    private PieceType(char ch, int unicodeOffset, int value, int phase) {
         mCharacter = ch;
         mUnicodeOffset = unicodeOffset;
         mValue = value;
+        mPhase = phase;
     }
 
     /**
@@ -258,7 +403,7 @@ public abstract class PieceType {
     }
 
     /**
-     * Return the piece's value (e.g., 3 for bishop, 9 for queen).
+     * Return the piece's value in centipawns (e.g., 300 for bishop, 900 for queen).
      */
     public int getValue() {
         return mValue;
@@ -272,14 +417,27 @@ public abstract class PieceType {
             List<Move> moveList);
 
     /**
-     * Return the position bonus, as a double where 1 means a pawn value. Index is 
-     * from white's point of view. (It assumes this is a white piece.)
+     * Return how much this piece contributes to the game phase. The phase goes
+     * from MAX_PHASE with all pieces on the board (the middle game) down to 0
+     * with only kings and pawns (the end game). Evaluation blends between the
+     * middle and end game position bonuses according to the phase.
      */
-    public double getPositionBonus(int index) {
-        // Default implementation. Subclass can override.
-        return 0;
+    public int getPhase() {
+        return mPhase;
     }
 
+    /**
+     * Return the position bonus in centipawns in the middle game. Index is from
+     * white's point of view. (It assumes this is a white piece.)
+     */
+    public abstract int getMiddleGamePositionBonus(int index);
+
+    /**
+     * Return the position bonus in centipawns in the end game. Index is from
+     * white's point of view. (It assumes this is a white piece.)
+     */
+    public abstract int getEndGamePositionBonus(int index);
+
     /**
      * Adds the moves of a piece that can slide in any number of directions.
      */
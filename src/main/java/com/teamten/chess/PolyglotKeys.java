@@ -0,0 +1,277 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Position hashes in the Polyglot opening book format. These are different
+ * from our own Zobrist hashes: they use Polyglot's fixed table of 781 random
+ * numbers, and include castling rights and en passant.
+ *
+ * The table is read from the polyglot-random64.txt resource (781 hex numbers,
+ * in the order of the Random64 array of the Polyglot book format). It's checked
+ * by hashing the start position, which must give Polyglot's documented key. If
+ * it's missing or wrong, books can't be used at all, since any other numbers
+ * would silently miss every position in every standard book.
+ *
+ * http://hgm.nubati.net/book_format.html
+ */
+public class PolyglotKeys {
+    private static final String RESOURCE_NAME = "polyglot-random64.txt";
+    private static final int KEY_COUNT = 781;
+    private static final int CASTLE_OFFSET = 768;
+    private static final int EN_PASSANT_OFFSET = 772;
+    private static final int TURN_OFFSET = 780;
+    /**
+     * Key of the start position, from the Polyglot book format.
+     */
+    private static final long START_POSITION_KEY = 0x463B96181691FC9CL;
+    /**
+     * Polyglot's index of each of our pieces, indexed by Piece.getIndex().
+     * Polyglot orders them black pawn, white pawn, black knight, white knight,
+     * and so on through the kings.
+     */
+    private static final int[] POLYGLOT_PIECE = new int[] { 1, 5, 3, 7, 9, 11, 0, 4, 2, 6, 8, 10 };
+    private static final long[] RANDOM64;
+    /**
+     * Why the table couldn't be loaded, or null if it was.
+     */
+    private static final String LOAD_ERROR;
+
+    static {
+        long[] keys = null;
+        String loadError = null;
+        try {
+            keys = loadKeys();
+        } catch (IllegalStateException e) {
+            loadError = e.getMessage();
+        }
+        RANDOM64 = keys;
+        LOAD_ERROR = loadError;
+    }
+
+    private PolyglotKeys() {
+        // Can't instantiate.
+    }
+
+    /**
+     * Whether the standard Polyglot numbers were loaded, and so books can be used.
+     */
+    public static boolean isAvailable() {
+        return RANDOM64 != null;
+    }
+
+    /**
+     * Return why the standard numbers couldn't be loaded, or null if they were.
+     */
+    public static String getLoadError() {
+        return LOAD_ERROR;
+    }
+
+    /**
+     * Return the Polyglot key for the current position of the game, with side
+     * to move. The board doesn't keep castling rights or the en passant square,
+     * so they're figured out from the game's moves.
+     *
+     * @throws IllegalStateException if the standard numbers couldn't be loaded.
+     */
+    public static long getKey(Game game, int side) {
+        if (RANDOM64 == null) {
+            throw new IllegalStateException(LOAD_ERROR);
+        }
+
+        return getKey(RANDOM64, game, side);
+    }
+
+    /**
+     * Return the key of the position using the given table of random numbers.
+     */
+    private static long getKey(long[] random64, Game game, int side) {
+        Board board = game.getBoard();
+        long key = 0;
+
+        for (int index = 0; index < Board.NUM_SQUARES; index++) {
+            Piece piece = board.getPiece(index);
+            if (piece != Piece.EMPTY) {
+                // Polyglot rows go up from rank 1.
+                int row = Board.getRank(index) - 1;
+                int file = Board.getFile(index) - 1;
+                key ^= random64[64*POLYGLOT_PIECE[piece.getIndex()] + 8*row + file];
+            }
+        }
+
+        boolean[] castlingRights = getCastlingRights(game);
+        for (int i = 0; i < castlingRights.length; i++) {
+            if (castlingRights[i]) {
+                key ^= random64[CASTLE_OFFSET + i];
+            }
+        }
+
+        int enPassantFile = getEnPassantFile(game, side);
+        if (enPassantFile != -1) {
+            key ^= random64[EN_PASSANT_OFFSET + enPassantFile - 1];
+        }
+
+        if (side == Side.WHITE) {
+            key ^= random64[TURN_OFFSET];
+        }
+
+        return key;
+    }
+
+    /**
+     * Return the castling rights in Polyglot order: white short, white long,
+     * black short, black long. A side can castle if its king and rook are on
+     * their original squares and no move in the game has touched either square.
+     */
+    static boolean[] getCastlingRights(Game game) {
+        Board board = game.getBoard();
+        boolean[] rights = new boolean[4];
+
+        for (int side = Side.WHITE; side <= Side.BLACK; side++) {
+            int rank = side == Side.WHITE ? 1 : Board.SIZE;
+            int kingIndex = Board.getIndex(5, rank);
+            Piece king = Piece.getPieceForTypeAndSide(PieceType.KING, side);
+            Piece rook = Piece.getPieceForTypeAndSide(PieceType.ROOK, side);
+
+            for (int i = 0; i < 2; i++) {
+                int rookIndex = Board.getIndex(i == 0 ? Board.SIZE : 1, rank);
+                rights[side*2 + i] = board.getPiece(kingIndex) == king
+                    && board.getPiece(rookIndex) == rook
+                    && !isSquareTouched(game, kingIndex)
+                    && !isSquareTouched(game, rookIndex);
+            }
+        }
+
+        return rights;
+    }
+
+    /**
+     * Return the file (1 to 8) of the en passant square, or -1 if none. Following
+     * Polyglot, there's only an en passant square if a pawn of the side to move
+     * could capture onto it.
+     */
+    static int getEnPassantFile(Game game, int side) {
+        int moveCount = game.getMoveCount();
+        if (moveCount == 0) {
+            return -1;
+        }
+
+        Move move = game.getMove(moveCount - 1);
+        if (move.getMovingPiece().getPieceType() != PieceType.PAWN
+                || Math.abs(Board.getRank(move.getFromIndex()) - Board.getRank(move.getToIndex())) != 2) {
+
+            return -1;
+        }
+
+        Board board = game.getBoard();
+        Piece ourPawn = Piece.getPieceForTypeAndSide(PieceType.PAWN, side);
+        for (int fileDelta = -1; fileDelta <= 1; fileDelta += 2) {
+            int index = Board.getRelativeIndex(move.getToIndex(), fileDelta, 0);
+            if (index != -1 && board.getPiece(index) == ourPawn) {
+                return Board.getFile(move.getToIndex());
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Whether any move in the game went from or to the index.
+     */
+    private static boolean isSquareTouched(Game game, int index) {
+        for (int i = 0; i < game.getMoveCount(); i++) {
+            Move move = game.getMove(i);
+            if (move.getFromIndex() == index || move.getToIndex() == index) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Read the standard keys from the resource and check them.
+     *
+     * @throws IllegalStateException if the resource is missing or isn't the standard table.
+     */
+    private static long[] loadKeys() {
+        long[] keys = new long[KEY_COUNT];
+
+        InputStream inputStream = PolyglotKeys.class.getResourceAsStream(RESOURCE_NAME);
+        if (inputStream == null) {
+            throw new IllegalStateException(RESOURCE_NAME + " is missing, so Polyglot "
+                    + "books can't be used. It must hold the Random64 table from "
+                    + "http://hgm.nubati.net/book_format.html");
+        }
+
+        try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(inputStream, StandardCharsets.US_ASCII))) {
+
+            int count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (String field : line.split("[\\s,]+")) {
+                    field = field.trim();
+                    if (field.isEmpty()) {
+                        continue;
+                    }
+                    if (field.startsWith("0x") || field.startsWith("0X")) {
+                        field = field.substring(2);
+                    }
+                    if (field.endsWith("ULL") || field.endsWith("ull")) {
+                        field = field.substring(0, field.length() - 3);
+                    }
+                    if (count == KEY_COUNT) {
+                        throw new IllegalStateException("Too many keys in " + RESOURCE_NAME);
+                    }
+                    try {
+                        keys[count++] = new BigInteger(field, 16).longValue();
+                    } catch (NumberFormatException e) {
+                        throw new IllegalStateException("Bad key \"" + field + "\" in "
+                                + RESOURCE_NAME);
+                    }
+                }
+            }
+            if (count != KEY_COUNT) {
+                throw new IllegalStateException("Expected " + KEY_COUNT + " keys in "
+                        + RESOURCE_NAME + " but found " + count);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + RESOURCE_NAME + " (" + e + ")");
+        }
+
+        Board board = new Board();
+        board.initializeTraditionalChess();
+        long startPositionKey = getKey(keys, new Game(board), Side.WHITE);
+        if (startPositionKey != START_POSITION_KEY) {
+            throw new IllegalStateException(String.format("%s isn't the standard table: "
+                        + "the start position hashes to %016x instead of %016x",
+                        RESOURCE_NAME, startPositionKey, START_POSITION_KEY));
+        }
+
+        return keys;
+    }
+}
@@ -104,4 +104,27 @@ public class Side {
 
         return "?";
     }
+
+    /**
+     * Get the side (or DRAW or IN_PROGRESS) for a PGN result.
+     *
+     * @throws IllegalArgumentException if the result isn't valid PGN.
+     */
+    public static int fromPgnNotation(String result) {
+        switch (result) {
+            case "1-0":
+                return WHITE;
+
+            case "0-1":
+                return BLACK;
+
+            case "1/2-1/2":
+                return DRAW;
+
+            case "*":
+                return IN_PROGRESS;
+        }
+
+        throw new IllegalArgumentException("Invalid PGN result: " + result);
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+/**
+ * Decides how long to think about a move, from the clock parameters of a UCI
+ * "go" command. All times are in milliseconds.
+ *
+ * The clock is split evenly over the moves left until the next time control,
+ * guessing DEFAULT_MOVES_TO_GO in sudden death, plus most of the increment. A
+ * reserve is held back and never budgeted, so that the time it takes to stop
+ * the search and send the move can't lose on time.
+ */
+public class TimeManager {
+    /**
+     * Move time when the GUI gives no clock at all.
+     */
+    public static final long DEFAULT_MOVE_TIME = 5000;
+    /**
+     * Number of moves we expect to still have to play in sudden death.
+     */
+    private static final int DEFAULT_MOVES_TO_GO = 30;
+    /**
+     * Time lost between the search stopping and the GUI getting the move.
+     */
+    private static final long MOVE_OVERHEAD = 50;
+    /**
+     * The reserve is this fraction of the time left, up to MAX_RESERVE.
+     */
+    private static final int RESERVE_DIVISOR = 20;
+    private static final long MAX_RESERVE = 1000;
+    /**
+     * Shortest budget, so that we always finish the shallowest search.
+     */
+    private static final long MIN_BUDGET = 10;
+    private final long[] mTimeLeft = { -1, -1 };
+    private final long[] mIncrement = new long[2];
+    private int mMovesToGo;
+    private long mMoveTime = -1;
+    private boolean mInfinite;
+    private boolean mLimited;
+
+    /**
+     * Set the time left on a side's clock (UCI "wtime" and "btime").
+     */
+    public void setTimeLeft(int side, long timeLeft) {
+        mTimeLeft[side] = timeLeft;
+    }
+
+    /**
+     * Set the time a side gets back after each move (UCI "winc" and "binc").
+     */
+    public void setIncrement(int side, long increment) {
+        mIncrement[side] = increment;
+    }
+
+    /**
+     * Set the number of moves until the next time control, or 0 for sudden death.
+     */
+    public void setMovesToGo(int movesToGo) {
+        mMovesToGo = movesToGo;
+    }
+
+    /**
+     * Set an exact time to think, which overrides the clock.
+     */
+    public void setMoveTime(long moveTime) {
+        mMoveTime = moveTime;
+    }
+
+    /**
+     * Search until told to stop.
+     */
+    public void setInfinite(boolean infinite) {
+        mInfinite = infinite;
+    }
+
+    public boolean isInfinite() {
+        return mInfinite;
+    }
+
+    /**
+     * Whether the search is limited by depth or nodes. If so, and there's no
+     * clock, it's not limited by time at all.
+     */
+    public void setLimited(boolean limited) {
+        mLimited = limited;
+    }
+
+    /**
+     * Return how long the side should think about its move, or Long.MAX_VALUE if
+     * the search is infinite.
+     */
+    public long getBudget(int side) {
+        if (mInfinite) {
+            return Long.MAX_VALUE;
+        }
+        if (mMoveTime >= 0) {
+            return mMoveTime;
+        }
+
+        long timeLeft = mTimeLeft[side];
+        if (timeLeft < 0) {
+            return mLimited ? Long.MAX_VALUE : DEFAULT_MOVE_TIME;
+        }
+
+        long reserve = Math.min(timeLeft/RESERVE_DIVISOR, MAX_RESERVE) + MOVE_OVERHEAD;
+        long usableTime = timeLeft - reserve;
+        if (usableTime < MIN_BUDGET) {
+            // Into the reserve. Move almost instantly.
+            return Math.max(timeLeft/4, 1);
+        }
+
+        int movesToGo = mMovesToGo > 0 ? mMovesToGo : DEFAULT_MOVES_TO_GO;
+
+        // The increment only comes back after the move, so it can't take us
+        // past what's usable now.
+        long budget = usableTime/movesToGo + mIncrement[side]*3/4;
+
+        return Math.max(Math.min(budget, usableTime), MIN_BUDGET);
+    }
+}
@@ -20,14 +20,13 @@
 
 package com.teamten.chess;
 
-import java.util.Date;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
-import java.io.FileOutputStream;
 
 /**
  * Parses the Universal Chess Interface (UCI) protocol.
@@ -35,26 +34,149 @@ import java.io.FileOutputStream;
  * http://wbec-ridderkerk.nl/html/UCIProtocol.html
  */
 public class UciParser {
+    /**
+     * Largest evaluation cache, in megabytes.
+     */
+    private static final int MAX_HASH_SIZE = 1024;
+    private static final int DEFAULT_HASH_SIZE = 1;
+    private static final int MAX_THREAD_COUNT = 256;
+    private static final int MAX_MULTI_PV = 64;
     private final BufferedReader mIn;
     private final PrintWriter mOut;
-    private final PrintWriter mLog;
-    private Board mBoard;
-    private Game mGame;
+    private final AsyncLog mLog;
+    private final Board mBoard = new Board();
+    private final Game mGame = new Game(mBoard);
+    /**
+     * The "startpos" or FEN string that the game starts from, or null if the board
+     * must be set up again on the next position command.
+     */
+    private String mPositionBase;
+    private int mPositionBaseSide;
+    private ComputerPlayer mComputerPlayer;
+    private MctsPlayer mMctsPlayer;
+    private EvaluationCache mEvaluationCache;
+    private int mHashSize = DEFAULT_HASH_SIZE;
+    private int mMultiPv = 1;
+    private boolean mPonder;
+    private Thread mSearchThread;
+    /**
+     * Guards the state of the search that the input thread changes while it runs.
+     */
+    private final Object mSearchLock = new Object();
+    /**
+     * Whether the search must keep its move until stop (or ponderhit, if not
+     * infinite). The search thread waits on mSearchLock until this is false.
+     */
+    private boolean mHoldMove;
+    private boolean mInfinite;
+    private boolean mPondering;
+    private boolean mSearchDone;
+    private long mBudget;
+    private long mStartTime;
+    private boolean mUseMcts;
+    private boolean mWarmUp = true;
+    private int mThreadCount = 1;
+    private int mDefaultThreadCount = 1;
+    private volatile long mSearchTime;
+    private volatile int mSearchCount;
+    private Bitbases mBitbases;
+    private OpeningBook mOpeningBook;
 
     public UciParser(InputStream in, PrintStream out) throws IOException {
-        mIn = new BufferedReader(new InputStreamReader(in));
+        this(in, out, new File("uci.log"));
+    }
+
+    /**
+     * Create a parser that logs to the given file.
+     *
+     * @param in the stream that start() reads from, or null if lines will be
+     * passed to parseLine() instead.
+     */
+    public UciParser(InputStream in, PrintStream out, File logFile) throws IOException {
+        mIn = in == null ? null : new BufferedReader(new InputStreamReader(in));
         mOut = new PrintWriter(out, true);
-        mLog = new PrintWriter(new FileOutputStream("uci.log"), true);
+        mLog = new AsyncLog(logFile);
+        mBoard.initializeTraditionalChess();
     }
 
     /**
-     * Write a log line to the log file. Adds the date and newline.
+     * Use the Monte-Carlo tree search player instead of the alpha-beta one.
+     */
+    public void setUseMcts(boolean useMcts) {
+        mUseMcts = useMcts;
+    }
+
+    /**
+     * Whether to warm up the JIT before answering the first "isready" or
+     * "ucinewgame". Defaults to true.
+     */
+    public void setWarmUp(boolean warmUp) {
+        mWarmUp = warmUp;
+    }
+
+    /**
+     * Set the number of search threads. Only the Monte-Carlo player uses more than one.
+     */
+    public void setThreadCount(int threadCount) {
+        mThreadCount = threadCount;
+        mDefaultThreadCount = threadCount;
+    }
+
+    /**
+     * Set the endgame bitbases for the alpha-beta player to probe, or null for none.
+     */
+    public void setBitbases(Bitbases bitbases) {
+        mBitbases = bitbases;
+    }
+
+    /**
+     * Set the opening book to play from, or null for none.
+     */
+    public void setOpeningBook(OpeningBook openingBook) {
+        mOpeningBook = openingBook;
+    }
+
+    /**
+     * Stop any search and put the engine back the way it was created, except for
+     * its allocations, so that it can be handed to a new client.
+     */
+    public void reset() {
+        stopSearch();
+        mPositionBase = null;
+        mThreadCount = mDefaultThreadCount;
+        mMultiPv = 1;
+        mPonder = false;
+        if (mHashSize != DEFAULT_HASH_SIZE) {
+            mHashSize = DEFAULT_HASH_SIZE;
+            mEvaluationCache = null;
+            createPlayer();
+        } else if (mEvaluationCache != null) {
+            mEvaluationCache.clear();
+        }
+        mSearchTime = 0;
+        mSearchCount = 0;
+    }
+
+    /**
+     * Return the total time spent searching since creation or reset(), in milliseconds.
+     */
+    public long getSearchTime() {
+        return mSearchTime;
+    }
+
+    /**
+     * Return the number of searches since creation or reset(), not counting book moves.
+     */
+    public int getSearchCount() {
+        return mSearchCount;
+    }
+
+    /**
+     * Write a log line to the log file. Adds the date and newline. Formatting and
+     * writing happen on the log's own thread, so this doesn't slow the search.
      */
     private void log(String format, String ... args) {
-        mLog.print(new Date());
-        mLog.print(" - ");
-        mLog.printf(format, (Object[]) args);
-        mLog.println();
+        mLog.log(format, (Object[]) args);
     }
 
     /**
@@ -73,63 +195,531 @@ public class UciParser {
         if (command.equals("uci")) {
             mOut.println("id name LKChess 1.0");
             mOut.println("id author Lawrence Kesteloot");
-            // No options.
+            mOut.printf("option name Hash type spin default %d min 1 max %d%n",
+                    mHashSize, MAX_HASH_SIZE);
+            mOut.printf("option name Threads type spin default %d min 1 max %d%n",
+                    mThreadCount, MAX_THREAD_COUNT);
+            mOut.printf("option name MultiPV type spin default 1 min 1 max %d%n", MAX_MULTI_PV);
+            mOut.println("option name Ponder type check default false");
+            mOut.println("option name Clear Hash type button");
             mOut.println("uciok");
         } else if (command.equals("isready")) {
+            // Don't wait for a search, but do finish allocating and warming up.
+            if (mSearchThread == null) {
+                createPlayer();
+                warmUp();
+            }
             mOut.println("readyok");
+        } else if (command.equals("setoption")) {
+            stopSearch();
+            setOption(fields);
         } else if (command.equals("ucinewgame")) {
-            mBoard = new Board();
-            mGame = new Game(mBoard);
-            mBoard.initializeTraditionalChess();
+            stopSearch();
+            // Keep the players, and with them their caches, but set the board up
+            // from scratch on the next position command.
+            mPositionBase = null;
+            warmUp();
         } else if (command.equals("position")) {
-            if (fields.length <= 2) {
+            stopSearch();
+            if (fields.length < 2) {
                 log("Not enough params to position command");
             } else {
-                if (fields[1].equals("startpos")) {
-                    mBoard.initializeTraditionalChess();
-                } else {
-                    log("Can't yet parse FEN string in position");
-                    // mBoard.initializeWithFen(...);
+                setPosition(fields);
+            }
+        } else if (command.equals("go")) {
+            stopSearch();
+            startSearch(fields);
+        } else if (command.equals("bench")) {
+            // Not part of UCI, but engines customarily accept it.
+            stopSearch();
+            SearchBenchmark.run(mOut, fields.length > 1
+                    ? Integer.parseInt(fields[1]) : SearchBenchmark.DEFAULT_DEPTH);
+        } else if (command.equals("ponderhit")) {
+            ponderHit();
+        } else if (command.equals("stop")) {
+            stopSearch();
+        } else if (command.equals("quit")) {
+            stopSearch();
+            return false;
+        } else {
+            log("Unknown command: %s", command);
+        }
+
+        return true;
+    }
+
+    /**
+     * Compile the search before the first real one, if we haven't already.
+     */
+    private void warmUp() {
+        if (mWarmUp) {
+            long elapsedTime = WarmUp.run();
+            if (elapsedTime != 0) {
+                log("Warmed up in %s ms", Long.toString(elapsedTime));
+            }
+        }
+    }
+
+    /**
+     * Handle the fields of "go", starting a search on its own thread. The move is
+     * reported when the search finishes, or when stopSearch() is called.
+     */
+    private void startSearch(String[] fields) {
+        long startTime = System.currentTimeMillis();
+        TimeManager timeManager = new TimeManager();
+        boolean ponder = false;
+        int maxDepth = 0;
+        long maxNodes = 0;
+
+        // Parse sub-commands.
+        int i = 1;
+        while (i < fields.length) {
+            String subCommand = fields[i];
+            if (subCommand.equals("infinite")) {
+                timeManager.setInfinite(true);
+            } else if (subCommand.equals("ponder")) {
+                ponder = true;
+            } else if (i + 1 == fields.length) {
+                System.err.println("Missing value for sub-command of go: " + subCommand);
+            } else if (subCommand.equals("movetime")) {
+                i++;
+                timeManager.setMoveTime(Long.parseLong(fields[i]));
+            } else if (subCommand.equals("wtime") || subCommand.equals("btime")) {
+                i++;
+                timeManager.setTimeLeft(subCommand.charAt(0) == 'w' ? Side.WHITE : Side.BLACK,
+                        Long.parseLong(fields[i]));
+            } else if (subCommand.equals("winc") || subCommand.equals("binc")) {
+                i++;
+                timeManager.setIncrement(subCommand.charAt(0) == 'w' ? Side.WHITE : Side.BLACK,
+                        Long.parseLong(fields[i]));
+            } else if (subCommand.equals("movestogo")) {
+                i++;
+                timeManager.setMovesToGo(Integer.parseInt(fields[i]));
+            } else if (subCommand.equals("depth")) {
+                i++;
+                maxDepth = Integer.parseInt(fields[i]);
+            } else if (subCommand.equals("nodes")) {
+                i++;
+                maxNodes = Long.parseLong(fields[i]);
+            } else {
+                System.err.println("Unknown sub-command of go: " + subCommand);
+            }
+            i++;
+        }
+        timeManager.setLimited(maxDepth > 0 || maxNodes > 0);
+        boolean infinite = timeManager.isInfinite();
+        long budget = timeManager.getBudget(mBoard.getSide());
+
+        // Play instantly from the book if we can. When analyzing or pondering,
+        // we can't answer until told to, so search anyway.
+        if (mOpeningBook != null && !infinite && !ponder) {
+            Move bookMove = mOpeningBook.getMove(mGame, mBoard.getSide());
+            if (bookMove != null) {
+                log("Book move: %s", bookMove.getLongAlgebraicNotation());
+                mOut.printf("bestmove %s%n", bookMove.getLongAlgebraicNotation());
+                return;
+            }
+        }
+
+        // The players are kept between moves so that their tables stay warm.
+        createPlayer();
+        if (mUseMcts) {
+            mMctsPlayer.setSide(mBoard.getSide());
+            mMctsPlayer.setThreadCount(mThreadCount);
+        } else {
+            mComputerPlayer.setSide(mBoard.getSide());
+            mComputerPlayer.setBitbases(mBitbases);
+            mComputerPlayer.setMultiPv(mMultiPv);
+            mComputerPlayer.setMaxDepth(maxDepth);
+            mComputerPlayer.setMaxNodes(maxNodes);
+        }
+
+        // While pondering, search until ponderhit and only then start the clock.
+        final long moveTime = ponder ? Long.MAX_VALUE : budget;
+        synchronized (mSearchLock) {
+            mInfinite = infinite;
+            mHoldMove = infinite || ponder;
+            mPondering = ponder;
+            mSearchDone = false;
+            mBudget = budget;
+            mStartTime = startTime;
+        }
+        mSearchThread = new Thread(new Runnable() {
+            @Override // Runnable
+            public void run() {
+                search(moveTime);
+            }
+        }, "search");
+        mSearchThread.start();
+    }
+
+    /**
+     * Search and report the best move. Runs on the search thread. The move isn't
+     * made, since every "go" must search the last position the GUI sent.
+     */
+    private void search(long moveTime) {
+        ComputerPlayer.Result result;
+        if (mUseMcts) {
+            result = mMctsPlayer.analyze(moveTime);
+            // No iterations to report as we go, so report the final tree.
+            printInfo(0, 0, 1, result.mEvaluatedMove, result.mMovesConsidered,
+                    result.mElapsedTime, -1);
+        } else {
+            result = mComputerPlayer.analyze(moveTime);
+        }
+
+        // UCI doesn't allow the move until the GUI stops an infinite search or
+        // a ponder, even if we've finished (say at the maximum depth or with a
+        // forced mate).
+        boolean timed;
+        long budget;
+        long startTime;
+        synchronized (mSearchLock) {
+            mSearchDone = true;
+            mSearchLock.notifyAll();
+            while (mHoldMove) {
+                try {
+                    mSearchLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            // A ponder that's stopped was never on our clock.
+            timed = !mInfinite && !mPondering;
+            budget = mBudget;
+            startTime = mStartTime;
+        }
+
+        ComputerPlayer.EvaluatedMove evaluatedMove = result.mEvaluatedMove;
+        Move move = evaluatedMove.getMove();
+        if (move == null) {
+            // Checkmate or stalemate. This is the UCI null move.
+            mOut.println("bestmove 0000");
+        } else if (mPonder && evaluatedMove.getNextMove() != null
+                && evaluatedMove.getNextMove().getMove() != null) {
+
+            // Suggest the expected reply for the GUI to let us ponder on.
+            mOut.printf("bestmove %s ponder %s%n", move.getLongAlgebraicNotation(),
+                    evaluatedMove.getNextMove().getMove().getLongAlgebraicNotation());
+        } else {
+            mOut.printf("bestmove %s%n", move.getLongAlgebraicNotation());
+        }
+
+        // Only the searching thread writes these.
+        mSearchTime += System.currentTimeMillis() - startTime;
+        mSearchCount++;
+
+        if (timed) {
+            log("Budget %s ms, used %s ms",
+                    budget == Long.MAX_VALUE ? "unlimited" : Long.toString(budget),
+                    Long.toString(System.currentTimeMillis() - startTime));
+        }
+    }
+
+    /**
+     * The opponent played the move we were pondering on, so switch the search
+     * to our own clock.
+     */
+    private void ponderHit() {
+        if (mSearchThread == null) {
+            return;
+        }
+
+        long budget;
+        synchronized (mSearchLock) {
+            if (!mInfinite) {
+                mHoldMove = false;
+                mSearchLock.notifyAll();
+            }
+            mPondering = false;
+            mStartTime = System.currentTimeMillis();
+            budget = mInfinite ? Long.MAX_VALUE : mBudget;
+        }
+        if (budget == Long.MAX_VALUE) {
+            return;
+        }
+
+        // The player sets its own time when it starts searching, which would
+        // undo ours, so wait until it has. The ponderhit can come right after
+        // the "go ponder", before the search thread has got that far.
+        synchronized (mSearchLock) {
+            while (!mSearchDone && !isPlayerSearching()) {
+                try {
+                    mSearchLock.wait(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (mSearchDone) {
+                // Already waiting for us to let it report its move.
+                return;
+            }
+        }
+        if (mUseMcts) {
+            mMctsPlayer.setMoveTime(budget);
+        } else {
+            mComputerPlayer.setMoveTime(budget);
+        }
+    }
+
+    /**
+     * Whether the current player has started searching and set its time.
+     */
+    private boolean isPlayerSearching() {
+        return mUseMcts ? mMctsPlayer.isSearching() : mComputerPlayer.isSearching();
+    }
+
+    /**
+     * Stop the search, if any, and wait for it to report its move. The players
+     * ignore a stop that arrives before they start searching, so we keep asking.
+     */
+    private void stopSearch() {
+        if (mSearchThread == null) {
+            return;
+        }
+
+        synchronized (mSearchLock) {
+            mHoldMove = false;
+            mSearchLock.notifyAll();
+        }
+        while (mSearchThread.isAlive()) {
+            if (mUseMcts) {
+                mMctsPlayer.stop();
+            } else {
+                mComputerPlayer.stop();
+            }
+            try {
+                mSearchThread.join(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mSearchThread = null;
+    }
+
+    /**
+     * Allocate the evaluation cache and the player for the chosen engine, if
+     * they don't exist yet. Called before the first search, and when the GUI
+     * asks whether we're ready, so that the first move doesn't pay for it.
+     */
+    private void createPlayer() {
+        if (mEvaluationCache == null) {
+            // Each entry is two longs.
+            long entryCount = (long) mHashSize*1024*1024/16;
+            mEvaluationCache = new EvaluationCache((int) Long.highestOneBit(entryCount));
+            if (mMctsPlayer != null) {
+                mMctsPlayer.setEvaluationCache(mEvaluationCache);
+            }
+            // Can't change the alpha-beta player's cache, so make a new player.
+            mComputerPlayer = null;
+        }
+
+        if (mUseMcts) {
+            if (mMctsPlayer == null) {
+                mMctsPlayer = new MctsPlayer(mBoard, mGame, mBoard.getSide());
+                mMctsPlayer.setEvaluationCache(mEvaluationCache);
+            }
+        } else if (mComputerPlayer == null) {
+            mComputerPlayer = new ComputerPlayer(mBoard, mGame, mBoard.getSide(), mEvaluationCache);
+            mComputerPlayer.setListener(new ComputerPlayer.Listener() {
+                @Override // ComputerPlayer.Listener
+                public void iterationFinished(int depth, int selDepth, int multiPv,
+                        ComputerPlayer.EvaluatedMove evaluatedMove,
+                        long movesConsidered, long elapsedTime) {
+
+                    printInfo(depth, selDepth, multiPv, evaluatedMove, movesConsidered,
+                            elapsedTime, mEvaluationCache.getPermillFull());
+                }
+
+                @Override // ComputerPlayer.Listener
+                public void searching(Move move, int moveNumber, long movesConsidered,
+                        long elapsedTime) {
+
+                    mOut.printf("info currmove %s currmovenumber %d nodes %d nps %d%n",
+                            move.getLongAlgebraicNotation(), moveNumber, movesConsidered,
+                            getNodesPerSecond(movesConsidered, elapsedTime));
                 }
-                if (fields.length > 2 && fields[2].equals("moves")) {
-                    for (int i = 3; i < fields.length; i++) {
-                        String lan = fields[i];
+            });
+        }
+    }
 
-                        Move move = Move.parseLongAlgebraicNotation(mBoard, lan);
-                        mGame.addMove(move);
-                    }
+    /**
+     * Handle the fields of "setoption name NAME [value VALUE]". The name can have
+     * spaces. Options are only changed between searches.
+     */
+    private void setOption(String[] fields) {
+        StringBuilder name = new StringBuilder();
+        String value = null;
+        int i = 1;
+        if (i < fields.length && fields[i].equals("name")) {
+            for (i++; i < fields.length && !fields[i].equals("value"); i++) {
+                if (name.length() > 0) {
+                    name.append(' ');
                 }
+                name.append(fields[i]);
             }
-        } else if (command.equals("go")) {
-            long moveTime = 5000; // XXX
-
-            // Parse sub-commands.
-            int i = 1;
-            while (i < fields.length) {
-                if (fields[i].equals("movetime")) {
-                    i++;
-                    moveTime = Long.parseLong(fields[i]);
-                } else {
-                    System.err.println("Unknown sub-command of go: " + fields[i]);
+        }
+        if (i + 1 < fields.length) {
+            value = fields[i + 1];
+        }
+
+        try {
+            if (name.toString().equalsIgnoreCase("Hash") && value != null) {
+                int hashSize = Math.max(1, Math.min(Integer.parseInt(value), MAX_HASH_SIZE));
+                if (hashSize != mHashSize) {
+                    mHashSize = hashSize;
+                    mEvaluationCache = null;
+                    createPlayer();
                 }
-                i++;
+            } else if (name.toString().equalsIgnoreCase("Threads") && value != null) {
+                mThreadCount = Math.max(1, Math.min(Integer.parseInt(value), MAX_THREAD_COUNT));
+            } else if (name.toString().equalsIgnoreCase("MultiPV") && value != null) {
+                mMultiPv = Math.max(1, Math.min(Integer.parseInt(value), MAX_MULTI_PV));
+            } else if (name.toString().equalsIgnoreCase("Ponder") && value != null) {
+                mPonder = value.equals("true");
+            } else if (name.toString().equalsIgnoreCase("Clear Hash")) {
+                // Only frees the cache, since cached scores don't change the search.
+                if (mEvaluationCache != null) {
+                    mEvaluationCache.clear();
+                }
+            } else {
+                log("Unknown option: %s", name.toString());
+            }
+        } catch (NumberFormatException e) {
+            log("Bad value for option %s: %s", name.toString(), value);
+        }
+    }
+
+    /**
+     * Print a UCI info line about a search.
+     *
+     * @param depth the depth of the search, or 0 if it's not a depth-first search.
+     * @param multiPv which principal variation this is, starting at 1.
+     * @param hashFull how full the cache is in thousandths, or -1 if unknown.
+     */
+    private void printInfo(int depth, int selDepth, int multiPv,
+            ComputerPlayer.EvaluatedMove evaluatedMove, long movesConsidered, long elapsedTime,
+            int hashFull) {
+
+        StringBuilder builder = new StringBuilder("info");
+        if (depth != 0) {
+            builder.append(" depth ").append(depth);
+            builder.append(" seldepth ").append(selDepth);
+        }
+        if (mMultiPv > 1) {
+            builder.append(" multipv ").append(multiPv);
+        }
+
+        int score = evaluatedMove.getScore();
+        if (ComputerPlayer.isMateScore(score)) {
+            // Moves, not plies, and negative if we're getting mated.
+            int moves = (ComputerPlayer.MATE_SCORE - Math.abs(score) + 1)/2;
+            builder.append(" score mate ").append(score > 0 ? moves : -moves);
+        } else {
+            builder.append(" score cp ").append(score);
+        }
+
+        builder.append(" nodes ").append(movesConsidered);
+        builder.append(" nps ").append(getNodesPerSecond(movesConsidered, elapsedTime));
+        builder.append(" time ").append(elapsedTime);
+        if (hashFull >= 0) {
+            builder.append(" hashfull ").append(hashFull);
+        }
+
+        if (evaluatedMove.getMove() != null) {
+            builder.append(" pv");
+            for (ComputerPlayer.EvaluatedMove pv = evaluatedMove;
+                    pv != null && pv.getMove() != null; pv = pv.getNextMove()) {
+
+                builder.append(' ').append(pv.getMove().getLongAlgebraicNotation());
             }
+        }
+
+        mOut.println(builder);
+    }
 
-            ComputerPlayer player = new ComputerPlayer(mBoard, mGame, mBoard.getSide());
-            ComputerPlayer.Result result = player.makeMove(moveTime);
-            ComputerPlayer.EvaluatedMove evaluatedMove = result.mEvaluatedMove;
-            Move move = evaluatedMove.getMove();
-            if (move == null) {
-                // Checkmate or stalemate.
+    private static long getNodesPerSecond(long movesConsidered, long elapsedTime) {
+        return movesConsidered*1000/Math.max(elapsedTime, 1);
+    }
+
+    /**
+     * Handle the fields of "position startpos|fen FEN [moves MOVE ...]". GUIs send
+     * the whole game every time, so if it starts with the game we already have,
+     * only the new moves are played. Moves past the common part, such as our own
+     * move if the GUI didn't play it, are undone.
+     */
+    private void setPosition(String[] fields) {
+        // Find the base position and the start of the move list.
+        String base;
+        int i;
+        if (fields[1].equals("startpos")) {
+            base = "startpos";
+            i = 2;
+        } else if (fields[1].equals("fen")) {
+            StringBuilder builder = new StringBuilder();
+            for (i = 2; i < fields.length && !fields[i].equals("moves"); i++) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(fields[i]);
             }
-            mOut.printf("bestmove %s%n", move.getLongAlgebraicNotation());
-        } else if (command.equals("quit")) {
-            return false;
+            base = builder.toString();
         } else {
-            log("Unknown command: %s", command);
+            log("Unknown position type: %s", fields[1]);
+            return;
         }
 
-        return true;
+        if (!base.equals(mPositionBase)) {
+            mPositionBase = null;
+            mGame.clear();
+            if (base.equals("startpos")) {
+                mBoard.initializeTraditionalChess();
+            } else {
+                try {
+                    mBoard.initializeWithFen(base);
+                } catch (IllegalArgumentException e) {
+                    log("Invalid FEN string \"%s\" (%s)", base, e.getMessage());
+                    return;
+                }
+            }
+            mPositionBase = base;
+            mPositionBaseSide = mBoard.getSide();
+        }
+
+        int[] packedMoves;
+        if (i < fields.length && fields[i].equals("moves")) {
+            i++;
+            packedMoves = new int[fields.length - i];
+            int side = mPositionBaseSide;
+            for (int j = 0; j < packedMoves.length; j++) {
+                packedMoves[j] = Move.packLongAlgebraicNotation(fields[i + j], side);
+                side = Side.getOtherSide(side);
+            }
+        } else {
+            packedMoves = new int[0];
+        }
+
+        // Keep the moves we already have in common.
+        int commonCount = 0;
+        int moveCount = mGame.getMoveCount();
+        while (commonCount < moveCount && commonCount < packedMoves.length
+                && mGame.getPackedMove(commonCount) == packedMoves[commonCount]) {
+
+            commonCount++;
+        }
+        while (mGame.getMoveCount() > commonCount) {
+            mGame.undoMove();
+        }
+
+        // The GUI sends only legal moves, so replay them without checking.
+        int newCount = packedMoves.length - commonCount;
+        System.arraycopy(packedMoves, commonCount, packedMoves, 0, newCount);
+        mGame.addMovesTrusted(packedMoves, newCount);
+        log("Kept %s moves, played %s new moves", Integer.toString(commonCount),
+                Integer.toString(newCount));
     }
 
     /**
@@ -141,7 +731,8 @@ public class UciParser {
         do {
             String line = mIn.readLine();
             if (line == null) {
-                // End of file.
+                // End of file. Don't leave an infinite search running.
+                stopSearch();
                 return;
             }
 
@@ -149,8 +740,39 @@ public class UciParser {
         } while (keepGoing);
     }
 
+    /**
+     * Command-line options are "-engine alphabeta|mcts", "-threads N",
+     * "-bitbases FILE|none", "-nowarmup", and "-book FILE". If the bitbase file
+     * is missing or bad, it's generated in the background while we play without
+     * it. The book is a Polyglot file.
+     */
     public static void main(String[] args) throws IOException {
         UciParser uciParser = new UciParser(System.in, System.out);
+        String bitbasesPathname = "bitbases.bin";
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-engine") && i + 1 < args.length) {
+                i++;
+                uciParser.setUseMcts(args[i].equals("mcts"));
+            } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                i++;
+                uciParser.setThreadCount(Integer.parseInt(args[i]));
+            } else if (args[i].equals("-bitbases") && i + 1 < args.length) {
+                i++;
+                bitbasesPathname = args[i];
+            } else if (args[i].equals("-nowarmup")) {
+                uciParser.setWarmUp(false);
+            } else if (args[i].equals("-book") && i + 1 < args.length) {
+                i++;
+                uciParser.setOpeningBook(OpeningBook.load(new File(args[i])));
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+            }
+        }
+
+        if (!bitbasesPathname.equals("none")) {
+            uciParser.setBitbases(Bitbases.loadOrGenerate(new File(bitbasesPathname)));
+        }
 
         uciParser.start();
     }
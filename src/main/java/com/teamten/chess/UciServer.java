@@ -0,0 +1,569 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Serves the UCI protocol over TCP, so that GUIs and other programs can share
+ * one engine host instead of each starting a JVM.
+ *
+ * One selector thread does all the socket I/O without blocking. Each new
+ * connection is queued for the next free engine of a fixed pool (one per core
+ * by default), and the engine's own thread then runs the connection's commands
+ * through its UciParser. When all engines are busy, connections wait in a
+ * bounded queue, and beyond that are turned away. A client that sends commands
+ * faster than its engine handles them stops being read until the engine
+ * catches up.
+ *
+ * When a connection closes, the time it waited for an engine and the time its
+ * searches took are reported on standard error.
+ */
+public class UciServer {
+    public static final int DEFAULT_PORT = 7878;
+    private static final int MAX_QUEUED_CONNECTIONS = 64;
+    /**
+     * Stop reading from a client when this many of its lines are waiting for
+     * its engine, and start again when half of them have been handled.
+     */
+    private static final int MAX_PENDING_LINES = 256;
+    private static final int MAX_LINE_LENGTH = 64*1024;
+    /**
+     * Drop a client that lets this much of our output pile up without reading it.
+     */
+    private static final int MAX_PENDING_OUTPUT = 1024*1024;
+    /**
+     * Marks the end of a connection's lines. Compared by reference.
+     */
+    private static final String END_OF_INPUT = new String("");
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final Engine[] mEngines;
+    /**
+     * Connections waiting for an engine. Also the lock for mIdleEngineCount.
+     */
+    private final Queue<Connection> mQueuedConnections = new ArrayDeque<Connection>();
+    /**
+     * Connections whose selection key the selector thread must update, because
+     * of something another thread did.
+     */
+    private final Queue<Connection> mInterestChanges = new ConcurrentLinkedQueue<Connection>();
+    /**
+     * Engines waiting for a connection. Guarded by mQueuedConnections.
+     */
+    private int mIdleEngineCount;
+    private int mNextConnectionId = 1;
+
+    /**
+     * Create a server and its engines. The bitbases and opening book, which may
+     * be null, are shared by all engines.
+     */
+    public UciServer(int port, int engineCount, boolean useMcts, Bitbases bitbases,
+            OpeningBook openingBook) throws IOException {
+
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.bind(new InetSocketAddress(port));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+
+        mEngines = new Engine[engineCount];
+        for (int i = 0; i < engineCount; i++) {
+            ConnectionOutputStream output = new ConnectionOutputStream();
+            UciParser uciParser = new UciParser(null, new PrintStream(output, true),
+                    new File("uci-" + i + ".log"));
+            uciParser.setUseMcts(useMcts);
+            uciParser.setBitbases(bitbases);
+            uciParser.setOpeningBook(openingBook);
+            mEngines[i] = new Engine(i, uciParser, output);
+        }
+    }
+
+    /**
+     * Whether engines warm up the JIT before their first "isready". Defaults to true.
+     */
+    public void setWarmUp(boolean warmUp) {
+        for (Engine engine : mEngines) {
+            engine.mUciParser.setWarmUp(warmUp);
+        }
+    }
+
+    /**
+     * Start the engines and serve connections forever on this thread.
+     */
+    public void start() throws IOException {
+        for (Engine engine : mEngines) {
+            new Thread(engine, "engine-" + engine.mId).start();
+        }
+        System.err.printf("Serving UCI on port %d with %d engines%n",
+                mServerChannel.socket().getLocalPort(), mEngines.length);
+
+        while (true) {
+            mSelector.select();
+
+            Connection connection;
+            while ((connection = mInterestChanges.poll()) != null) {
+                updateInterest(connection);
+            }
+
+            Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else {
+                    connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(connection);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Accept a new connection and queue it for an engine.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+
+        Connection connection = new Connection(mNextConnectionId++, channel);
+        connection.mKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+
+        // Decide under the lock, so that the idle engines we count are the ones
+        // that will take the connections ahead of this one.
+        boolean turnedAway;
+        boolean waiting;
+        synchronized (mQueuedConnections) {
+            turnedAway = mQueuedConnections.size() >= MAX_QUEUED_CONNECTIONS;
+            waiting = mQueuedConnections.size() >= mIdleEngineCount;
+            if (!turnedAway) {
+                mQueuedConnections.add(connection);
+                mQueuedConnections.notify();
+            }
+        }
+
+        if (turnedAway) {
+            System.err.printf("Connection %d from %s: turned away, queue is full%n",
+                    connection.mId, connection.mAddress);
+            connection.send("info string Server busy, try again later\n");
+            connection.mCloseRequested = true;
+            updateInterest(connection);
+        } else if (waiting) {
+            connection.send("info string All engines busy, waiting for one\n");
+        }
+    }
+
+    /**
+     * Read what the client has sent and queue its complete lines for the engine.
+     */
+    private void read(Connection connection) {
+        ByteBuffer buffer = connection.mReadBuffer;
+        int count;
+        try {
+            count = connection.mChannel.read(buffer);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if (count == -1) {
+            close(connection);
+            return;
+        }
+
+        buffer.flip();
+        StringBuilder partialLine = connection.mPartialLine;
+        while (buffer.hasRemaining()) {
+            char ch = (char) (buffer.get() & 0xFF);
+            if (ch == '\n') {
+                int length = partialLine.length();
+                if (length > 0 && partialLine.charAt(length - 1) == '\r') {
+                    partialLine.setLength(length - 1);
+                }
+                connection.mLines.add(partialLine.toString());
+                partialLine.setLength(0);
+            } else {
+                partialLine.append(ch);
+            }
+        }
+        buffer.clear();
+
+        if (partialLine.length() > MAX_LINE_LENGTH) {
+            System.err.printf("Connection %d from %s: line too long%n",
+                    connection.mId, connection.mAddress);
+            close(connection);
+            return;
+        }
+
+        if (connection.mLines.size() >= MAX_PENDING_LINES) {
+            connection.mReadPaused = true;
+            updateInterest(connection);
+        }
+    }
+
+    /**
+     * Write as much pending output as the socket will take.
+     */
+    private void write(Connection connection) {
+        synchronized (connection.mOutput) {
+            try {
+                while (!connection.mOutput.isEmpty()) {
+                    ByteBuffer buffer = connection.mOutput.peek();
+                    connection.mChannel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    connection.mOutput.poll();
+                    connection.mOutputSize -= buffer.limit();
+                }
+            } catch (IOException e) {
+                connection.mOutput.clear();
+                connection.mOutputSize = 0;
+                close(connection);
+                return;
+            }
+        }
+
+        updateInterest(connection);
+    }
+
+    /**
+     * Set what the selector waits for on the connection, from its state. Closes
+     * the connection once its engine is done with it and all output is written.
+     * Only called on the selector thread.
+     */
+    private void updateInterest(Connection connection) {
+        if (connection.mClosed) {
+            return;
+        }
+
+        // The engine has caught up, so we can read again.
+        if (connection.mReadPaused && connection.mLines.size() < MAX_PENDING_LINES/2) {
+            connection.mReadPaused = false;
+        }
+
+        int interestOps = 0;
+        if (!connection.mReadPaused && !connection.mCloseRequested) {
+            interestOps |= SelectionKey.OP_READ;
+        }
+        synchronized (connection.mOutput) {
+            if (!connection.mOutput.isEmpty()) {
+                interestOps |= SelectionKey.OP_WRITE;
+            } else if (connection.mCloseRequested) {
+                close(connection);
+                return;
+            }
+        }
+        connection.mKey.interestOps(interestOps);
+    }
+
+    /**
+     * Close the connection, and tell its engine (or the queue) that there's no
+     * more input. Only called on the selector thread.
+     */
+    private void close(Connection connection) {
+        if (connection.mClosed) {
+            return;
+        }
+
+        connection.mClosed = true;
+        connection.mKey.cancel();
+        try {
+            connection.mChannel.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+        connection.mLines.add(END_OF_INPUT);
+    }
+
+    /**
+     * Ask the selector thread to update the connection's selection key.
+     */
+    private void requestInterestUpdate(Connection connection) {
+        mInterestChanges.add(connection);
+        mSelector.wakeup();
+    }
+
+    /**
+     * A client socket, with the lines it has sent that its engine hasn't handled
+     * yet, and the output that hasn't been written to it yet.
+     */
+    private class Connection {
+        private final int mId;
+        private final SocketChannel mChannel;
+        private final String mAddress;
+        private final long mAcceptTime = System.currentTimeMillis();
+        private SelectionKey mKey;
+        private final ByteBuffer mReadBuffer = ByteBuffer.allocate(8*1024);
+        private final StringBuilder mPartialLine = new StringBuilder();
+        private final BlockingQueue<String> mLines = new LinkedBlockingQueue<String>();
+        /**
+         * Output waiting to be written. Guarded by itself, along with mOutputSize.
+         */
+        private final Queue<ByteBuffer> mOutput = new ArrayDeque<ByteBuffer>();
+        private int mOutputSize;
+        // Only changed on the selector thread.
+        private volatile boolean mReadPaused;
+        private volatile boolean mClosed;
+        /**
+         * Set when the engine is done, or we've turned the client away. We'll close
+         * after writing the rest of the output.
+         */
+        private volatile boolean mCloseRequested;
+
+        private Connection(int id, SocketChannel channel) throws IOException {
+            mId = id;
+            mChannel = channel;
+            mAddress = String.valueOf(channel.getRemoteAddress());
+        }
+
+        /**
+         * Return the next line for the engine, blocking until there is one, or
+         * END_OF_INPUT if the connection is closed.
+         */
+        private String takeLine() throws InterruptedException {
+            String line = mLines.take();
+            if (line == END_OF_INPUT) {
+                // Leave it for anyone who asks again.
+                mLines.add(END_OF_INPUT);
+            } else if (mReadPaused && mLines.size() < MAX_PENDING_LINES/2) {
+                requestInterestUpdate(this);
+            }
+
+            return line;
+        }
+
+        /**
+         * Queue output for the client, from any thread.
+         */
+        private void send(byte[] bytes, int offset, int length) {
+            synchronized (mOutput) {
+                if (mClosed) {
+                    return;
+                }
+                if (mOutputSize + length > MAX_PENDING_OUTPUT) {
+                    // The client isn't reading. Give up on it.
+                    mCloseRequested = true;
+                    mOutput.clear();
+                    mOutputSize = 0;
+                } else {
+                    ByteBuffer buffer = ByteBuffer.allocate(length);
+                    buffer.put(bytes, offset, length);
+                    buffer.flip();
+                    mOutput.add(buffer);
+                    mOutputSize += length;
+                }
+            }
+
+            requestInterestUpdate(this);
+        }
+
+        private void send(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+            send(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Sends an engine's output to whichever connection it's serving, or drops it
+     * if it's between connections.
+     */
+    private static class ConnectionOutputStream extends OutputStream {
+        private volatile Connection mConnection;
+
+        public void setConnection(Connection connection) {
+            mConnection = connection;
+        }
+
+        @Override // OutputStream
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override // OutputStream
+        public void write(byte[] bytes, int offset, int length) {
+            Connection connection = mConnection;
+            if (connection != null) {
+                connection.send(bytes, offset, length);
+            }
+        }
+    }
+
+    /**
+     * One engine of the pool, serving queued connections one at a time on its
+     * own thread.
+     */
+    private class Engine implements Runnable {
+        private final int mId;
+        private final UciParser mUciParser;
+        private final ConnectionOutputStream mOutput;
+
+        private Engine(int id, UciParser uciParser, ConnectionOutputStream output) {
+            mId = id;
+            mUciParser = uciParser;
+            mOutput = output;
+        }
+
+        @Override // Runnable
+        public void run() {
+            while (true) {
+                Connection connection;
+                synchronized (mQueuedConnections) {
+                    mIdleEngineCount++;
+                    try {
+                        while (mQueuedConnections.isEmpty()) {
+                            mQueuedConnections.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        mIdleEngineCount--;
+                    }
+                    connection = mQueuedConnections.remove();
+                }
+
+                serve(connection);
+            }
+        }
+
+        /**
+         * Run the connection's commands until it closes or sends quit.
+         */
+        private void serve(Connection connection) {
+            long waitTime = System.currentTimeMillis() - connection.mAcceptTime;
+            mOutput.setConnection(connection);
+
+            try {
+                while (true) {
+                    String line = connection.takeLine();
+                    if (line == END_OF_INPUT) {
+                        break;
+                    }
+
+                    // A bad command shouldn't take the engine down.
+                    boolean keepGoing;
+                    try {
+                        keepGoing = mUciParser.parseLine(line);
+                    } catch (IOException e) {
+                        System.err.printf("Connection %d: %s%n", connection.mId, e);
+                        keepGoing = true;
+                    } catch (RuntimeException e) {
+                        System.err.printf("Connection %d: bad command \"%s\" (%s)%n",
+                                connection.mId, line, e);
+                        keepGoing = true;
+                    }
+                    if (!keepGoing) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            // Stop any search the client left running, while its move can still go out.
+            try {
+                mUciParser.parseLine("stop");
+            } catch (IOException e) {
+                // Can't happen.
+            }
+            mOutput.setConnection(null);
+
+            System.err.printf("Connection %d from %s: waited %d ms for engine %d, "
+                    + "%d searches in %d ms%n", connection.mId, connection.mAddress,
+                    waitTime, mId, mUciParser.getSearchCount(), mUciParser.getSearchTime());
+            mUciParser.reset();
+
+            connection.mCloseRequested = true;
+            requestInterestUpdate(connection);
+        }
+    }
+
+    /**
+     * Command-line options are "-port N", "-engines N" (defaults to the number of
+     * cores), and as for UciParser, "-engine alphabeta|mcts", "-bitbases FILE|none",
+     * "-nowarmup", and "-book FILE".
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int engineCount = Runtime.getRuntime().availableProcessors();
+        boolean useMcts = false;
+        String bitbasesPathname = "bitbases.bin";
+        OpeningBook openingBook = null;
+        boolean warmUp = true;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port") && i + 1 < args.length) {
+                i++;
+                port = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-engines") && i + 1 < args.length) {
+                i++;
+                engineCount = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-engine") && i + 1 < args.length) {
+                i++;
+                useMcts = args[i].equals("mcts");
+            } else if (args[i].equals("-bitbases") && i + 1 < args.length) {
+                i++;
+                bitbasesPathname = args[i];
+            } else if (args[i].equals("-nowarmup")) {
+                warmUp = false;
+            } else if (args[i].equals("-book") && i + 1 < args.length) {
+                i++;
+                openingBook = OpeningBook.load(new File(args[i]));
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+            }
+        }
+
+        Bitbases bitbases = null;
+        if (!bitbasesPathname.equals("none")) {
+            bitbases = Bitbases.loadOrGenerate(new File(bitbasesPathname));
+        }
+
+        UciServer uciServer = new UciServer(port, engineCount, useMcts, bitbases, openingBook);
+        uciServer.setWarmUp(warmUp);
+        uciServer.start();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+import java.util.List;
+
+/**
+ * Runs the move generator, evaluation, and search on a few positions, so that
+ * the JIT has compiled them before the first real search. Without this the
+ * first moves of a game are searched mostly by the interpreter, and at short
+ * time controls they're noticeably weaker.
+ *
+ * The work is done once per JVM, since compiled code is shared by all players.
+ */
+public class WarmUp {
+    /**
+     * Give up after this long, in milliseconds. Checked before each position,
+     * and each search is limited to the time that's left.
+     */
+    private static final long TIME_LIMIT = 2000;
+    private static final int MAX_ROUNDS = 5;
+    private static final int PERFT_DEPTH = 3;
+    /**
+     * Nodes to search per position. A node limit rather than a depth, because
+     * the same depth costs wildly different amounts in different positions.
+     */
+    private static final long SEARCH_NODES = 100000;
+    /**
+     * An opening, a middlegame, and two endgames.
+     */
+    private static final String[] FENS = {
+        "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w - - 0 1",
+        "r1bq1rk1/ppp1nppp/4n3/3p3Q/3P4/1BP1B3/PP1N2PP/R4RK1 w - - 1 16",
+        "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 11",
+        "8/pp2r1k1/2p1p3/3pP2p/1P1P1P1P/P5KR/8/8 w - - 0 1"
+    };
+    /**
+     * Keeps the player from printing its progress.
+     */
+    private static final ComputerPlayer.Listener QUIET_LISTENER = new ComputerPlayer.Listener() {
+        @Override // ComputerPlayer.Listener
+        public void iterationFinished(int depth, int selDepth, int multiPv,
+                ComputerPlayer.EvaluatedMove evaluatedMove, long movesConsidered,
+                long elapsedTime) {
+            // Nothing.
+        }
+
+        @Override // ComputerPlayer.Listener
+        public void searching(Move move, int moveNumber, long movesConsidered,
+                long elapsedTime) {
+            // Nothing.
+        }
+    };
+    private static boolean sDone;
+
+    /**
+     * Warm up, unless it's already been done. Returns how long it took in
+     * milliseconds, or 0 if it had already been done. Other callers wait until
+     * it's finished.
+     */
+    public static synchronized long run() {
+        if (sDone) {
+            return 0;
+        }
+
+        long beforeTime = System.currentTimeMillis();
+        long stopTime = beforeTime + TIME_LIMIT;
+        for (int i = 0; i < MAX_ROUNDS*FENS.length; i++) {
+            if (System.currentTimeMillis() >= stopTime) {
+                break;
+            }
+
+            Board board = new Board();
+            board.initializeWithFen(FENS[i % FENS.length]);
+            Game game = new Game(board);
+            perft(board, game, PERFT_DEPTH);
+
+            long remainingTime = stopTime - System.currentTimeMillis();
+            if (remainingTime <= 0) {
+                break;
+            }
+            ComputerPlayer player = new ComputerPlayer(board, game, board.getSide());
+            player.setListener(QUIET_LISTENER);
+            player.setMaxNodes(SEARCH_NODES);
+            player.analyze(remainingTime);
+        }
+        sDone = true;
+
+        return Math.max(System.currentTimeMillis() - beforeTime, 1);
+    }
+
+    /**
+     * Return the number of leaf positions at the given depth, making moves
+     * through the game as the search does.
+     */
+    private static long perft(Board board, Game game, int depth) {
+        if (depth == 0) {
+            return 1;
+        }
+
+        List<Move> moveList = board.generateAllLegalMoves(board.getSide());
+        if (depth == 1) {
+            return moveList.size();
+        }
+
+        long count = 0;
+        for (Move move : moveList) {
+            game.addMove(move);
+            count += perft(board, game, depth - 1);
+            game.undoMove();
+        }
+
+        return count;
+    }
+
+    /**
+     * Measures the nodes per second of the first move from the start position.
+     * Run it once with "-cold" and once without to see what warming up gains.
+     * The optional number is the move time in milliseconds.
+     */
+    public static void main(String[] args) {
+        boolean warmUp = true;
+        long moveTime = 1000;
+        for (String arg : args) {
+            if (arg.equals("-cold")) {
+                warmUp = false;
+            } else {
+                moveTime = Long.parseLong(arg);
+            }
+        }
+
+        if (warmUp) {
+            System.out.printf("Warm-up took %d ms%n", run());
+        }
+
+        Board board = new Board();
+        board.initializeTraditionalChess();
+        ComputerPlayer player = new ComputerPlayer(board, new Game(board), board.getSide());
+        long beforeTime = System.currentTimeMillis();
+        ComputerPlayer.Result result = player.analyze(moveTime);
+        long elapsedTime = Math.max(System.currentTimeMillis() - beforeTime, 1);
+
+        System.out.printf("First move (%s): %d nodes in %d ms, %d nodes/second%n",
+                warmUp ? "warm" : "cold", result.mMovesConsidered, elapsedTime,
+                result.mMovesConsidered*1000/elapsedTime);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.chess;
+
+/**
+ * Random keys for Zobrist hashing of board positions. The hash of a position is
+ * the XOR of the keys of each piece on its square, and of the side key if it's
+ * black's turn. It can be updated incrementally as pieces move.
+ *
+ * https://chessprogramming.wikispaces.com/Zobrist+Hashing
+ */
+public class Zobrist {
+    /**
+     * Fixed so that hashes are the same from run to run.
+     */
+    private static final long SEED = 0x2545F4914F6CDD1DL;
+    private static final long[] PIECE_KEYS = new long[Piece.NUM_PIECES*Board.NUM_SQUARES];
+    /**
+     * XORed into the hash when it's black's turn.
+     */
+    public static final long SIDE_KEY;
+
+    static {
+        long state = SEED;
+        for (int i = 0; i < PIECE_KEYS.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            PIECE_KEYS[i] = mix(state);
+        }
+        state += 0x9E3779B97F4A7C15L;
+        SIDE_KEY = mix(state);
+    }
+
+    private Zobrist() {
+        // Can't instantiate.
+    }
+
+    /**
+     * Return the key for the piece at the index, or 0 for an empty square.
+     */
+    public static long getPieceKey(Piece piece, int index) {
+        int pieceIndex = piece.getIndex();
+
+        return pieceIndex == -1 ? 0 : PIECE_KEYS[pieceIndex*Board.NUM_SQUARES + index];
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
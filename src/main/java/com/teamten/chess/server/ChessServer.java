@@ -20,6 +20,11 @@
 
 package com.teamten.chess.server;
 
+import com.teamten.chess.OpeningBook;
+
+import java.io.File;
+import java.io.IOException;
+
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.servlet.ServletContextHandler;
@@ -31,6 +36,7 @@ import org.eclipse.jetty.server.nio.SelectChannelConnector;
  */
 public class ChessServer {
     private static final int PORT = 8080;
+    private static final File OPENING_BOOK_FILE = new File("book.bin");
 
     public void start() {
         // Create Jetty server.
@@ -47,6 +53,13 @@ public class ChessServer {
 
         context = new ServletContextHandler(contexts, "/chess");
         ChessServlet servlet = new ChessServlet();
+        if (OPENING_BOOK_FILE.exists()) {
+            try {
+                servlet.setOpeningBook(OpeningBook.load(OPENING_BOOK_FILE));
+            } catch (IOException e) {
+                System.err.println("Cannot load opening book: " + e);
+            }
+        }
         context.addServlet(new ServletHolder(servlet), "/*");
 
         server.setHandler(contexts);
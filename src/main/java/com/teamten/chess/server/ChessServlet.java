@@ -33,6 +33,7 @@ import com.teamten.chess.Piece;
 import com.teamten.chess.Side;
 import com.teamten.chess.Move;
 import com.teamten.chess.ComputerPlayer;
+import com.teamten.chess.OpeningBook;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -49,6 +50,18 @@ import java.util.Map;
  */
 public class ChessServlet extends HttpServlet {
     private static final int GAME_COLUMN_MOVES = 70;
+    /**
+     * Number of principal variations to show when analyzing.
+     */
+    private static final int ANALYSIS_LINES = 3;
+    private OpeningBook mOpeningBook;
+
+    /**
+     * Set the opening book for the computer to play from, or null for none.
+     */
+    public void setOpeningBook(OpeningBook openingBook) {
+        mOpeningBook = openingBook;
+    }
 
     @Override // HttpServlet
     public void doGet(HttpServletRequest request,
@@ -91,40 +104,42 @@ public class ChessServlet extends HttpServlet {
         // Figure out what the user wants us to do.
         String command = request.getParameter("command");
         if (command != null) {
-            if (command.equals("computerMove")) {
+            Move bookMove = null;
+            if (command.equals("computerMove") && mOpeningBook != null) {
+                bookMove = mOpeningBook.getMove(game, board.getSide());
+            }
+
+            if (bookMove != null) {
+                // Play instantly from the book.
+                message = "Book move: " + bookMove.getAlgebraicNotation(board, true);
+                game.addMove(bookMove);
+            } else if (command.equals("computerMove")) {
                 // Have computer make a move.
                 ComputerPlayer player = new ComputerPlayer(board, game, board.getSide());
                 ComputerPlayer.Result result = player.makeMove(2000);
                 ComputerPlayer.EvaluatedMove evaluatedMove = result.mEvaluatedMove;
                 if (evaluatedMove.getMove() == null) {
                     message = "Cannot move";
+                } else {
+                    // The move has been made, so the variation starts one move back.
+                    message = "Principal variation: "
+                        + getPrincipalVariation(game.getMoveCount() - 1, evaluatedMove);
+                }
+            } else if (command.equals("analyze")) {
+                // Show the best few lines without playing.
+                ComputerPlayer player = new ComputerPlayer(board, game, board.getSide());
+                player.setMultiPv(ANALYSIS_LINES);
+                ComputerPlayer.Result result = player.analyze(2000);
+                if (result.mEvaluatedMove.getMove() == null) {
+                    message = "No moves";
                 } else {
                     StringBuilder builder = new StringBuilder();
-                    int moveNumber = (game.getMoveCount() + 1)/2;
-                    builder.append("Principal variation: ");
-                    if (game.getMoveCount() % 2 == 0) {
-                        builder.append(moveNumber);
-                        builder.append(". ... ");
-                    }
-                    for (ComputerPlayer.EvaluatedMove e = evaluatedMove;
-                            e != null && e.getMove() != null;
-                            e = e.getNextMove()) {
-
-                        Move move = e.getMove();
-                        if (move.getMovingPiece().getSide() == Side.WHITE) {
-                            builder.append(moveNumber);
-                            builder.append(". ");
-                            builder.append(move.getAlgebraicNotation(true));
-                            builder.append(" ");
-                        } else {
-                            moveNumber++;
-                            builder.append(move.getAlgebraicNotation(true));
-                            builder.append("&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;");
+                    for (ComputerPlayer.EvaluatedMove evaluatedMove : result.mEvaluatedMoves) {
+                        if (builder.length() > 0) {
+                            builder.append("<br>");
                         }
+                        builder.append(getPrincipalVariation(game.getMoveCount(), evaluatedMove));
                     }
-
-                    builder.append(String.format("(%.1f)", evaluatedMove.getScore()));
-
                     message = builder.toString();
                 }
             } else if (command.equals("undo")) {
@@ -215,6 +230,42 @@ public class ChessServlet extends HttpServlet {
         response.setHeader("Location", url);
     }
 
+    /**
+     * Return the HTML for a principal variation and its score (in pawns).
+     *
+     * @param moveCount number of moves played before the variation's first move.
+     */
+    private static String getPrincipalVariation(int moveCount,
+            ComputerPlayer.EvaluatedMove evaluatedMove) {
+
+        StringBuilder builder = new StringBuilder();
+        int moveNumber = moveCount/2 + 1;
+        if (moveCount % 2 == 1) {
+            builder.append(moveNumber);
+            builder.append(". ... ");
+        }
+        for (ComputerPlayer.EvaluatedMove e = evaluatedMove;
+                e != null && e.getMove() != null;
+                e = e.getNextMove()) {
+
+            Move move = e.getMove();
+            if (move.getMovingPiece().getSide() == Side.WHITE) {
+                builder.append(moveNumber);
+                builder.append(". ");
+                builder.append(move.getAlgebraicNotation(true));
+                builder.append(" ");
+            } else {
+                moveNumber++;
+                builder.append(move.getAlgebraicNotation(true));
+                builder.append("&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;");
+            }
+        }
+
+        builder.append(String.format("(%.1f)", evaluatedMove.getScore()/100.0));
+
+        return builder.toString();
+    }
+
     /**
      * Poor man's static file server.
      */
@@ -346,6 +397,7 @@ public class ChessServlet extends HttpServlet {
         writer.println("<input type='hidden' id='command' name='command'>");
         if (!iPad) {
             writer.println("<input type='button' id='makeMoveButton' value='Make Move' id='makeMoveButton'>");
+            writer.println("<input type='button' id='analyzeButton' value='Analyze'>");
         }
         writer.println("<input type='button' id='undoButton' value='Undo'>");
         writer.println("<input type='button' id='redoButton' value='Redo'>");
@@ -367,6 +419,7 @@ public class ChessServlet extends HttpServlet {
         }
 
         if (!iPad) {
+            String[] notations = game.getAlgebraicNotations(true);
             int numColumns = (game.getMoveCount() + GAME_COLUMN_MOVES - 1)/GAME_COLUMN_MOVES;
             for (int column = 0; column < numColumns; column++) {
                 writer.println("</td><td valign='top'>"); // Vertical split.
@@ -375,13 +428,11 @@ public class ChessServlet extends HttpServlet {
                 for (int i = column*GAME_COLUMN_MOVES; i < game.getMoveCount()
                         && i < (column + 1)*GAME_COLUMN_MOVES; i++) {
 
-                    Move move = game.getMove(i);
                     if (i % 2 == 0) {
                         writer.printf("<tr><td class='number'>%d.</td><td class='white'>%s</td>%n",
-                                i/2 + 1, move.getAlgebraicNotation(true));
+                                i/2 + 1, notations[i]);
                     } else {
-                        writer.printf("<td class='black'>%s</td></tr>%n",
-                                move.getAlgebraicNotation(true));
+                        writer.printf("<td class='black'>%s</td></tr>%n", notations[i]);
                     }
                         }
                 writer.println("</table>"); // Game
@@ -75,6 +75,7 @@ $(function () {
 
     // Set up the buttons.
     configureButton("makeMoveButton", "computerMove");
+    configureButton("analyzeButton", "analyze");
     configureButton("undoButton", "undo");
     configureButton("redoButton", "redo");
     configureButton("newGameButton", "newGame");